@@ -0,0 +1,36 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.mail.ra;
+
+import javax.mail.Message;
+
+/**
+ * The message inflow interface an MDB can implement to receive the messages
+ * from the JavaMail adaptor in batches, bounded by the batchSize and batchLinger
+ * properties of the activation spec. A batch is a single endpoint invocation, and
+ * so a single transaction with container-managed transactions.
+ */
+public interface MailBatchListener {
+    /**
+     * Calls with a batch of messages
+     *
+     * @param msgs The messages, in the order of the folder
+     */
+    void onMessages(Message[] msgs);
+}
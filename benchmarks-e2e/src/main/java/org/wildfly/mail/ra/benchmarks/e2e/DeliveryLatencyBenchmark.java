@@ -0,0 +1,146 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.mail.ra.benchmarks.e2e;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wildfly.mail.ra.MailActivationSpec;
+import org.wildfly.mail.ra.MailResourceAdapter;
+import org.wildfly.mail.ra.testsuite.EmbeddedMailServer;
+import org.wildfly.mail.ra.testsuite.RecordingEndpointFactory;
+import org.wildfly.mail.ra.testsuite.StandInBootstrapContext;
+
+/**
+ * Measures the latency distribution from the arrival of a message in the mailbox to its
+ * delivery to a MailListener endpoint, with an activation watching the mailbox.
+ *
+ * When the trial ends the deliveries are checked to be exactly-once; a violation fails
+ * the benchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class DeliveryLatencyBenchmark {
+    private static final long TIMEOUT = TimeUnit.MINUTES.toMillis(1);
+
+    @Param({"imap", "pop3"})
+    public String protocol;
+
+    @Param({"100", "1000"})
+    public long pollingInterval;
+
+    @Param({"false", "true"})
+    public boolean adaptivePolling;
+
+    @Param({"2048"})
+    public int messageSize;
+
+    private final List<String> expected = new ArrayList<>();
+
+    private EmbeddedMailServer server;
+
+    private StandInBootstrapContext ctx;
+
+    private MailResourceAdapter ra;
+
+    private RecordingEndpointFactory endpointFactory;
+
+    private MailActivationSpec spec;
+
+    /**
+     * Start the mail server, the resource adapter and the activation
+     *
+     * @throws Exception Thrown if an error occurs
+     */
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        server = new EmbeddedMailServer();
+        server.start();
+        server.purge();
+
+        ctx = new StandInBootstrapContext(32);
+        ra = new MailResourceAdapter();
+        ra.start(ctx);
+
+        endpointFactory = new RecordingEndpointFactory("latency");
+
+        spec = server.createSpec(protocol);
+        spec.setPollingInterval(pollingInterval);
+        spec.setAdaptivePolling(adaptivePolling);
+        spec.setMinPollingInterval(Math.min(10L, pollingInterval));
+        spec.setMaxPollingInterval(pollingInterval);
+        spec.setFetchEnvelope(true);
+
+        ra.endpointActivation(endpointFactory, spec);
+    }
+
+    /**
+     * Stop the activation, check the deliveries and stop the resource adapter and
+     * the mail server
+     *
+     * @throws Exception Thrown if the run isn't correct
+     */
+    @TearDown(Level.Trial)
+    public void stop() throws Exception {
+        try {
+            ra.endpointDeactivation(endpointFactory, spec);
+            server.awaitConsumed(protocol, TIMEOUT, TimeUnit.MILLISECONDS);
+            endpointFactory.verifyExactlyOnce(expected);
+        } finally {
+            ra.stop();
+            ctx.getWorkManager().shutdown();
+            server.stop();
+        }
+    }
+
+    /**
+     * Deliver a message to the mailbox and wait for it at the endpoint
+     *
+     * @return The Message-ID
+     * @throws Exception Thrown if the message isn't delivered in time
+     */
+    @Benchmark
+    public String deliver() throws Exception {
+        String id = server.deliver(messageSize);
+        expected.add(id);
+
+        if (!endpointFactory.awaitMessage(id, TIMEOUT, TimeUnit.MILLISECONDS)) {
+            throw new IllegalStateException("Message not delivered: " + id);
+        }
+        return id;
+    }
+}
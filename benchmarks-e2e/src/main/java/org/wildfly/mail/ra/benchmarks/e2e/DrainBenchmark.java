@@ -0,0 +1,162 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.mail.ra.benchmarks.e2e;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wildfly.mail.ra.MailActivationSpec;
+import org.wildfly.mail.ra.MailResourceAdapter;
+import org.wildfly.mail.ra.testsuite.EmbeddedMailServer;
+import org.wildfly.mail.ra.testsuite.RecordingEndpointFactory;
+import org.wildfly.mail.ra.testsuite.StandInBootstrapContext;
+
+/**
+ * Measures the time the resource adapter takes to drain a mailbox of new messages
+ * through a MailListener endpoint; the throughput is messages / time.
+ *
+ * After each run the deliveries are checked to be exactly-once, and the mailbox to be
+ * consumed (SEEN for IMAP, DELETED for POP3); a violation fails the benchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DrainBenchmark {
+    private static final long TIMEOUT = TimeUnit.MINUTES.toMillis(5);
+
+    @Param({"imap", "pop3"})
+    public String protocol;
+
+    @Param({"5000"})
+    public int messages;
+
+    @Param({"2048"})
+    public int messageSize;
+
+    @Param({"100"})
+    public int maxMessages;
+
+    @Param({"1", "4"})
+    public int deliveryConcurrency;
+
+    @Param({"1", "50"})
+    public int flagBatchSize;
+
+    private EmbeddedMailServer server;
+
+    private StandInBootstrapContext ctx;
+
+    private MailResourceAdapter ra;
+
+    private RecordingEndpointFactory endpointFactory;
+
+    private MailActivationSpec spec;
+
+    private List<String> expected;
+
+    /**
+     * Start the mail server and the resource adapter
+     *
+     * @throws Exception Thrown if an error occurs
+     */
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        server = new EmbeddedMailServer();
+        server.start();
+
+        ctx = new StandInBootstrapContext(32);
+        ra = new MailResourceAdapter();
+        ra.start(ctx);
+    }
+
+    /**
+     * Stop the resource adapter and the mail server
+     */
+    @TearDown(Level.Trial)
+    public void stop() {
+        if (ra != null) { ra.stop(); }
+        if (ctx != null) { ctx.getWorkManager().shutdown(); }
+        if (server != null) { server.stop(); }
+    }
+
+    /**
+     * Fill the mailbox with new messages
+     *
+     * @throws Exception Thrown if an error occurs
+     */
+    @Setup(Level.Invocation)
+    public void fill() throws Exception {
+        server.purge();
+        expected = server.deliver(messages, messageSize);
+
+        endpointFactory = new RecordingEndpointFactory("drain");
+
+        spec = server.createSpec(protocol);
+        spec.setPollingInterval(100L);
+        spec.setMaxMessages(maxMessages);
+        spec.setDeliveryConcurrency(deliveryConcurrency);
+        spec.setFlagBatchSize(flagBatchSize);
+        spec.setFetchEnvelope(true);
+    }
+
+    /**
+     * Check the deliveries and the mailbox
+     *
+     * @throws Exception Thrown if the run isn't correct
+     */
+    @TearDown(Level.Invocation)
+    public void verify() throws Exception {
+        server.awaitConsumed(protocol, TIMEOUT, TimeUnit.MILLISECONDS);
+        endpointFactory.verifyExactlyOnce(expected);
+    }
+
+    /**
+     * Drain the mailbox
+     *
+     * @throws Exception Thrown if the messages aren't delivered in time
+     */
+    @Benchmark
+    public void drain() throws Exception {
+        ra.endpointActivation(endpointFactory, spec);
+        try {
+            if (!endpointFactory.awaitDistinct(messages, TIMEOUT, TimeUnit.MILLISECONDS)) {
+                throw new IllegalStateException("Delivered " + endpointFactory.getDistinct() + " of " + messages +
+                        " messages");
+            }
+        } finally {
+            ra.endpointDeactivation(endpointFactory, spec);
+        }
+    }
+}
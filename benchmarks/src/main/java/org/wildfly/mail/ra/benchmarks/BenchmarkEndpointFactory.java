@@ -0,0 +1,127 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.mail.ra.benchmarks;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.LongAdder;
+import javax.mail.Message;
+import javax.resource.spi.endpoint.MessageEndpoint;
+import javax.resource.spi.endpoint.MessageEndpointFactory;
+import javax.transaction.xa.XAResource;
+
+import org.wildfly.mail.ra.MailListener;
+
+/**
+ * A message endpoint factory whose endpoints only count the delivered messages
+ */
+public class BenchmarkEndpointFactory implements MessageEndpointFactory {
+    private final LongAdder delivered = new LongAdder();
+
+    private final String activationName;
+
+    /**
+     * Constructor
+     *
+     * @param activationName The activation name
+     */
+    public BenchmarkEndpointFactory(String activationName) {
+        this.activationName = activationName;
+    }
+
+    /**
+     * Get the number of delivered messages
+     *
+     * @return The value
+     */
+    public long getDelivered() {
+        return delivered.sum();
+    }
+
+    /**
+     * Reset the number of delivered messages
+     */
+    public void reset() {
+        delivered.reset();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public MessageEndpoint createEndpoint(XAResource xaResource) {
+        return new Endpoint();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public MessageEndpoint createEndpoint(XAResource xaResource, long timeout) {
+        return new Endpoint();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isDeliveryTransacted(Method method) {
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getActivationName() {
+        return activationName;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Class<?> getEndpointClass() {
+        return Endpoint.class;
+    }
+
+    /**
+     * An endpoint counting the messages
+     */
+    public class Endpoint implements MessageEndpoint, MailListener {
+        /**
+         * {@inheritDoc}
+         */
+        public void onMessage(Message msg) {
+            delivered.increment();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void beforeDelivery(Method method) {
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void afterDelivery() {
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void release() {
+        }
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.mail.ra.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import javax.mail.FetchProfile;
+import javax.mail.Flags;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.MethodNotSupportedException;
+import javax.mail.UIDFolder;
+import javax.mail.search.SearchTerm;
+
+/**
+ * A folder of the in-memory store. Opening the folder takes a snapshot of the mailbox,
+ * flag changes are written through, and expunge removes the deleted messages
+ */
+public class InMemoryFolder extends Folder implements UIDFolder {
+    private final String name;
+
+    private final InMemoryMailbox mailbox;
+
+    private InMemoryMessage[] messages;
+
+    private long modCount = -1L;
+
+    private boolean open;
+
+    /**
+     * Constructor
+     *
+     * @param store   The store
+     * @param name    The folder name
+     * @param mailbox The mailbox
+     */
+    InMemoryFolder(InMemoryStore store, String name, InMemoryMailbox mailbox) {
+        super(store);
+        this.name = name;
+        this.mailbox = mailbox;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getFullName() {
+        return name;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Folder getParent() throws MessagingException {
+        return name.isEmpty() ? null : store.getDefaultFolder();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean exists() {
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Folder[] list(String pattern) {
+        return new Folder[0];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public char getSeparator() {
+        return '/';
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getType() {
+        return HOLDS_MESSAGES;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean create(int type) {
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean hasNewMessages() {
+        return mailbox.countWithout(Flags.Flag.SEEN) > 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Folder getFolder(String folderName) throws MessagingException {
+        return store.getFolder(folderName);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean delete(boolean recurse) {
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean renameTo(Folder f) {
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void open(int openMode) throws MessagingException {
+        if (open) { throw new IllegalStateException("Folder is open: " + name); }
+
+        InMemoryStore.roundTrip();
+
+        synchronize();
+
+        mode = openMode;
+        open = true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void close(boolean expunge) throws MessagingException {
+        checkOpen();
+
+        InMemoryStore.roundTrip();
+
+        if (expunge) { mailbox.expunge(); }
+
+        messages = null;
+        modCount = -1L;
+        open = false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Flags getPermanentFlags() {
+        Flags flags = new Flags(Flags.Flag.SEEN);
+        flags.add(Flags.Flag.DELETED);
+        return flags;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getMessageCount() throws MessagingException {
+        return open ? messages.length : mailbox.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Message getMessage(int msgnum) throws MessagingException {
+        checkOpen();
+
+        if (msgnum < 1 || msgnum > messages.length) {
+            throw new IndexOutOfBoundsException("Message number out of range: " + msgnum);
+        }
+        return messages[msgnum - 1];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void appendMessages(Message[] msgs) throws MessagingException {
+        for (Message m : msgs) {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            try {
+                m.writeTo(os);
+            } catch (IOException e) {
+                throw new MessagingException("Failed to append message", e);
+            }
+            mailbox.append(os.toByteArray());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Message[] expunge() throws MessagingException {
+        throw new MethodNotSupportedException("Expunge is only supported on close");
+    }
+
+    /**
+     * Searching is a single round trip; the matching runs on the snapshot
+     *
+     * @param term The search term
+     * @param msgs The messages
+     * @return The matching messages
+     * @throws MessagingException Thrown if an error occurs
+     */
+    public Message[] search(SearchTerm term, Message[] msgs) throws MessagingException {
+        checkOpen();
+
+        InMemoryStore.roundTrip();
+
+        List<Message> matches = new ArrayList<>();
+        for (Message m : msgs) {
+            if (m.match(term)) { matches.add(m); }
+        }
+        return matches.toArray(new Message[matches.size()]);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Message[] search(SearchTerm term) throws MessagingException {
+        checkOpen();
+        synchronize();
+
+        return search(term, messages);
+    }
+
+    /**
+     * Fetching is a single round trip; the content is already in memory
+     *
+     * @param msgs The messages
+     * @param fp   The fetch profile
+     * @throws MessagingException Thrown if an error occurs
+     */
+    public void fetch(Message[] msgs, FetchProfile fp) throws MessagingException {
+        checkOpen();
+
+        InMemoryStore.roundTrip();
+    }
+
+    /**
+     * Setting the flags of several messages is a single round trip
+     *
+     * @param msgs  The messages
+     * @param flag  The flags
+     * @param value The value
+     * @throws MessagingException Thrown if an error occurs
+     */
+    public void setFlags(Message[] msgs, Flags flag, boolean value) throws MessagingException {
+        checkOpen();
+
+        InMemoryStore.roundTrip();
+
+        for (Message m : msgs) {
+            ((InMemoryMessage) m).updateFlags(flag, value);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getUIDValidity() {
+        return mailbox.getUidValidity();
+    }
+
+    /**
+     * Get the UID the next message will get
+     *
+     * @return The value
+     */
+    public long getUIDNext() {
+        return mailbox.getUidNext();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Message getMessageByUID(long uid) throws MessagingException {
+        Message[] result = getMessagesByUID(new long[] {uid});
+        return result[0];
+    }
+
+    /**
+     * Get the messages in a UID range. As "UID start:*" does on an IMAP server, the last
+     * message matches even if its UID is below the start
+     *
+     * @param start The first UID
+     * @param end   The last UID, or LASTUID
+     * @return The messages
+     * @throws MessagingException Thrown if an error occurs
+     */
+    public Message[] getMessagesByUID(long start, long end) throws MessagingException {
+        checkOpen();
+        synchronize();
+
+        InMemoryStore.roundTrip();
+
+        long last = end == LASTUID ? Long.MAX_VALUE : end;
+        List<Message> result = new ArrayList<>();
+        for (InMemoryMessage m : messages) {
+            if (m.getUID() >= start && m.getUID() <= last) { result.add(m); }
+        }
+        if (result.isEmpty() && end == LASTUID && messages.length > 0) {
+            result.add(messages[messages.length - 1]);
+        }
+        return result.toArray(new Message[result.size()]);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Message[] getMessagesByUID(long[] uids) throws MessagingException {
+        checkOpen();
+
+        InMemoryStore.roundTrip();
+
+        Message[] result = new Message[uids.length];
+        for (int i = 0; i < uids.length; i++) {
+            for (InMemoryMessage m : messages) {
+                if (m.getUID() == uids[i]) {
+                    result[i] = m;
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getUID(Message message) throws MessagingException {
+        if (message.getFolder() != this) { throw new NoSuchElementException("Message is not in this folder"); }
+        return ((InMemoryMessage) message).getUID();
+    }
+
+    /**
+     * Take a new snapshot if the mailbox changed, as an IMAP server reports changes to
+     * an open folder with the response to the next command
+     *
+     * @throws MessagingException Thrown if a message can't be parsed
+     */
+    private void synchronize() throws MessagingException {
+        long current = mailbox.getModCount();
+        if (current == modCount) { return; }
+
+        InMemoryMailbox.Entry[] entries = mailbox.snapshot();
+        messages = new InMemoryMessage[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            messages[i] = new InMemoryMessage(this, i + 1, mailbox, entries[i]);
+        }
+        modCount = current;
+    }
+
+    private void checkOpen() {
+        if (!open) { throw new IllegalStateException("Folder is not open: " + name); }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.mail.ra.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.mail.Flags;
+
+/**
+ * The server side state of an in-memory mailbox: the messages, their UIDs and their
+ * flags. Mailboxes are looked up by user and folder name, so that a benchmark fills
+ * the same mailbox the resource adapter connects to
+ */
+public final class InMemoryMailbox {
+    private static final ConcurrentHashMap<String, InMemoryMailbox> MAILBOXES = new ConcurrentHashMap<>();
+
+    private final List<Entry> entries = new ArrayList<>();
+
+    private long uidValidity = 1L;
+
+    private long uidNext = 1L;
+
+    private long modCount;
+
+    private InMemoryMailbox() {
+    }
+
+    /**
+     * Get a mailbox, creating it if needed
+     *
+     * @param user   The user name
+     * @param folder The folder name
+     * @return The mailbox
+     */
+    public static InMemoryMailbox get(String user, String folder) {
+        return MAILBOXES.computeIfAbsent(user + "/" + folder, k -> new InMemoryMailbox());
+    }
+
+    /**
+     * Replace the content of the mailbox with new, unseen messages
+     *
+     * @param count The number of messages
+     * @param size  The approximate size of a message in bytes
+     */
+    public synchronized void fill(int count, int size) {
+        entries.clear();
+        modCount++;
+        uidValidity++;
+        uidNext = 1L;
+        for (int i = 0; i < count; i++) {
+            append(createMessage(uidNext, size));
+        }
+    }
+
+    /**
+     * Append a new, unseen message
+     *
+     * @param raw The RFC 822 content
+     */
+    public synchronized void append(byte[] raw) {
+        entries.add(new Entry(uidNext++, raw));
+        modCount++;
+    }
+
+    /**
+     * Clear the flags of all the messages, so that they are new again
+     */
+    public synchronized void clearFlags() {
+        for (Entry entry : entries) {
+            entry.flags = new Flags();
+        }
+        modCount++;
+    }
+
+    /**
+     * Get the number of messages
+     *
+     * @return The value
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Get the number of messages without the given flag
+     *
+     * @param flag The flag
+     * @return The value
+     */
+    public synchronized int countWithout(Flags.Flag flag) {
+        int count = 0;
+        for (Entry entry : entries) {
+            if (!entry.flags.contains(flag)) { count++; }
+        }
+        return count;
+    }
+
+    synchronized long getUidValidity() {
+        return uidValidity;
+    }
+
+    synchronized long getUidNext() {
+        return uidNext;
+    }
+
+    synchronized long getModCount() {
+        return modCount;
+    }
+
+    synchronized Entry[] snapshot() {
+        return entries.toArray(new Entry[entries.size()]);
+    }
+
+    synchronized Flags getFlags(Entry entry) {
+        return new Flags(entry.flags);
+    }
+
+    synchronized void setFlags(Entry entry, Flags flags, boolean set) {
+        if (set) {
+            entry.flags.add(flags);
+        } else {
+            entry.flags.remove(flags);
+        }
+    }
+
+    synchronized int expunge() {
+        int expunged = 0;
+        Iterator<Entry> it = entries.iterator();
+        while (it.hasNext()) {
+            if (it.next().flags.contains(Flags.Flag.DELETED)) {
+                it.remove();
+                expunged++;
+            }
+        }
+        if (expunged > 0) { modCount++; }
+        return expunged;
+    }
+
+    /**
+     * Create a plain text message
+     *
+     * @param n    The message number, used in the subject
+     * @param size The approximate size in bytes
+     * @return The RFC 822 content
+     */
+    public static byte[] createMessage(long n, int size) {
+        StringBuilder sb = new StringBuilder(size + 256);
+        sb.append("From: sender@example.org\r\n");
+        sb.append("To: receiver@example.org\r\n");
+        sb.append("Subject: Message ").append(n).append("\r\n");
+        sb.append("Date: Mon, 4 Jul 2016 10:00:00 +0000\r\n");
+        sb.append("Message-ID: <").append(n).append("@example.org>\r\n");
+        sb.append("MIME-Version: 1.0\r\n");
+        sb.append("Content-Type: text/plain; charset=us-ascii\r\n");
+        sb.append("\r\n");
+        while (sb.length() < size) {
+            sb.append("The quick brown fox jumps over the lazy dog.\r\n");
+        }
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * A message of the mailbox
+     */
+    static final class Entry {
+        final long uid;
+        final byte[] raw;
+        Flags flags = new Flags();
+
+        Entry(long uid, byte[] raw) {
+            this.uid = uid;
+            this.raw = raw;
+        }
+    }
+}
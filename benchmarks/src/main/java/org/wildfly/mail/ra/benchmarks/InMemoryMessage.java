@@ -0,0 +1,78 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.mail.ra.benchmarks;
+
+import javax.mail.Flags;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
+
+/**
+ * A message of the in-memory store. The headers are parsed when the folder is
+ * opened and the content shares the bytes of the mailbox
+ */
+public class InMemoryMessage extends MimeMessage {
+    private final InMemoryMailbox mailbox;
+
+    private final InMemoryMailbox.Entry entry;
+
+    /**
+     * Constructor
+     *
+     * @param folder  The folder
+     * @param msgnum  The message number
+     * @param mailbox The mailbox
+     * @param entry   The mailbox entry
+     * @throws MessagingException Thrown if the message can't be parsed
+     */
+    InMemoryMessage(InMemoryFolder folder, int msgnum, InMemoryMailbox mailbox, InMemoryMailbox.Entry entry)
+        throws MessagingException {
+        super(folder, new SharedByteArrayInputStream(entry.raw), msgnum);
+        this.mailbox = mailbox;
+        this.entry = entry;
+        this.flags = mailbox.getFlags(entry);
+    }
+
+    /**
+     * Get the UID
+     *
+     * @return The value
+     */
+    long getUID() {
+        return entry.uid;
+    }
+
+    /**
+     * Setting the flags of a single message is a round trip
+     *
+     * @param flag The flags
+     * @param set  The value
+     * @throws MessagingException Thrown if an error occurs
+     */
+    public synchronized void setFlags(Flags flag, boolean set) throws MessagingException {
+        InMemoryStore.roundTrip();
+
+        updateFlags(flag, set);
+    }
+
+    synchronized void updateFlags(Flags flag, boolean set) throws MessagingException {
+        super.setFlags(flag, set);
+        mailbox.setFlags(entry, flag, set);
+    }
+}
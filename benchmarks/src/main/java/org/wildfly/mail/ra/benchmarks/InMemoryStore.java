@@ -0,0 +1,99 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.mail.ra.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import javax.mail.Folder;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Store;
+import javax.mail.URLName;
+
+/**
+ * An in-process mail store. It is registered for the imap and pop3 protocols in
+ * META-INF/javamail.providers, which takes precedence over the providers of the JavaMail
+ * jar, so the resource adapter runs unchanged against it.
+ *
+ * Every command that would be a round trip to a real server parks the calling thread
+ * for the configured latency
+ */
+public class InMemoryStore extends Store {
+    private static volatile long latencyNanos;
+
+    private String user;
+
+    /**
+     * Constructor
+     *
+     * @param session The session
+     * @param url     The URL of the store
+     */
+    public InMemoryStore(Session session, URLName url) {
+        super(session, url);
+    }
+
+    /**
+     * Set the simulated latency of a round trip
+     *
+     * @param micros The latency in microseconds; 0 for none
+     */
+    public static void setLatency(long micros) {
+        latencyNanos = TimeUnit.MICROSECONDS.toNanos(micros);
+    }
+
+    /**
+     * Simulate a round trip to the server
+     */
+    static void roundTrip() {
+        long nanos = latencyNanos;
+        if (nanos > 0) { LockSupport.parkNanos(nanos); }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    protected boolean protocolConnect(String host, int port, String user, String password) {
+        roundTrip();
+        this.user = user;
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Folder getDefaultFolder() throws MessagingException {
+        return getFolder("");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Folder getFolder(String name) throws MessagingException {
+        if (name == null) { name = "INBOX"; }
+        return new InMemoryFolder(this, name, InMemoryMailbox.get(user, name));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Folder getFolder(URLName url) throws MessagingException {
+        return getFolder(url.getFile());
+    }
+}
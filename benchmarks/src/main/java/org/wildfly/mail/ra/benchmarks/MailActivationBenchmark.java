@@ -0,0 +1,133 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.mail.ra.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wildfly.mail.ra.MailActivation;
+import org.wildfly.mail.ra.MailActivationSpec;
+
+/**
+ * Measures a complete check of an activation, including the endpoint deliveries.
+ * The mailbox is refilled with new messages before each check; the "messages" counter
+ * reports the messages per second
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MailActivationBenchmark {
+    @Param({"imap", "pop3"})
+    public String protocol;
+
+    @Param({"100"})
+    public int mailboxSize;
+
+    @Param({"2048"})
+    public int messageSize;
+
+    @Param({"0", "200"})
+    public long latency;
+
+    @Param({"false", "true"})
+    public boolean prefetch;
+
+    private BenchmarkEndpointFactory endpointFactory;
+
+    private MailActivation activation;
+
+    private InMemoryMailbox mailbox;
+
+    /**
+     * Create the activation
+     */
+    @Setup(Level.Trial)
+    public void setup() {
+        InMemoryStore.setLatency(latency);
+
+        MailActivationSpec spec = new MailActivationSpec();
+        spec.setMailServer("localhost");
+        spec.setStoreProtocol(protocol);
+        spec.setMailFolder("INBOX");
+        spec.setUserName("activation-" + protocol);
+        spec.setPassword("secret");
+        spec.setMaxMessages(mailboxSize);
+        spec.setFetchEnvelope(prefetch);
+        spec.setFetchFlags(prefetch);
+
+        endpointFactory = new BenchmarkEndpointFactory("benchmark");
+        activation = new MailActivation(endpointFactory, spec);
+        mailbox = InMemoryMailbox.get(spec.getUserName(), spec.getMailFolder());
+    }
+
+    /**
+     * Make all the messages new again
+     */
+    @Setup(Level.Invocation)
+    public void refill() {
+        mailbox.fill(mailboxSize, messageSize);
+    }
+
+    /**
+     * A check of the activation
+     *
+     * @param counters The counters
+     */
+    @Benchmark
+    public void run(Counters counters) {
+        long before = endpointFactory.getDelivered();
+        activation.run();
+        counters.messages += endpointFactory.getDelivered() - before;
+    }
+
+    /**
+     * The messages delivered by the benchmark
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        /**
+         * The number of messages
+         */
+        public long messages;
+
+        /**
+         * Reset the counters
+         */
+        @Setup(Level.Iteration)
+        public void reset() {
+            messages = 0;
+        }
+    }
+}
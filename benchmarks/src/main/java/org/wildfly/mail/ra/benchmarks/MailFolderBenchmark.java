@@ -0,0 +1,140 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.mail.ra.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import javax.mail.Message;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.wildfly.mail.ra.MailActivationSpec;
+import org.wildfly.mail.ra.MailFolder;
+
+/**
+ * Measures a poll of a mail folder: open, iterate and mark the new messages, close.
+ * The mailbox is refilled with new messages before each poll; the "messages" counter
+ * reports the messages per second
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MailFolderBenchmark {
+    @Param({"imap", "pop3"})
+    public String protocol;
+
+    @Param({"10", "1000"})
+    public int mailboxSize;
+
+    @Param({"2048"})
+    public int messageSize;
+
+    @Param({"0", "200"})
+    public long latency;
+
+    @Param({"1", "100"})
+    public int flagBatchSize;
+
+    private MailActivationSpec spec;
+
+    private InMemoryMailbox mailbox;
+
+    /**
+     * Create the spec
+     */
+    @Setup(Level.Trial)
+    public void setup() {
+        InMemoryStore.setLatency(latency);
+
+        spec = new MailActivationSpec();
+        spec.setMailServer("localhost");
+        spec.setStoreProtocol(protocol);
+        spec.setMailFolder("INBOX");
+        spec.setUserName("folder-" + protocol);
+        spec.setPassword("secret");
+        spec.setMaxMessages(mailboxSize);
+        spec.setFlagBatchSize(flagBatchSize);
+
+        mailbox = InMemoryMailbox.get(spec.getUserName(), spec.getMailFolder());
+    }
+
+    /**
+     * Make all the messages new again
+     */
+    @Setup(Level.Invocation)
+    public void refill() {
+        mailbox.fill(mailboxSize, messageSize);
+    }
+
+    /**
+     * A poll of the folder
+     *
+     * @param counters The counters
+     * @param bh       The blackhole
+     * @throws Exception Thrown if the poll fails
+     */
+    @Benchmark
+    public void poll(Counters counters, Blackhole bh) throws Exception {
+        MailFolder folder = MailFolder.getInstance(spec);
+        folder.open();
+        try {
+            while (folder.hasNext()) {
+                Message m = (Message) folder.next();
+                bh.consume(m);
+                counters.messages++;
+            }
+        } finally {
+            folder.close();
+        }
+    }
+
+    /**
+     * The messages delivered by the benchmark
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        /**
+         * The number of messages
+         */
+        public long messages;
+
+        /**
+         * Reset the counters
+         */
+        @Setup(Level.Iteration)
+        public void reset() {
+            messages = 0;
+        }
+    }
+}
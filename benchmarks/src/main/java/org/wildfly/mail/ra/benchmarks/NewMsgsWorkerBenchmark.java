@@ -0,0 +1,167 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.mail.ra.benchmarks;
+
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import javax.resource.spi.work.ExecutionContext;
+import javax.resource.spi.work.Work;
+import javax.resource.spi.work.WorkEvent;
+import javax.resource.spi.work.WorkListener;
+import javax.resource.spi.work.WorkManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wildfly.mail.ra.MailActivation;
+import org.wildfly.mail.ra.MailActivationSpec;
+import org.wildfly.mail.ra.NewMsgsWorker;
+
+/**
+ * Measures the scheduler overhead of the NewMsgsWorker: with all the activations due,
+ * an operation is one dispatch by the worker thread, handed over to the benchmark thread,
+ * followed by the completion which queues the activation again
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NewMsgsWorkerBenchmark {
+    @Param({"1", "100", "1000", "10000"})
+    public int activations;
+
+    private final SynchronousQueue<Work> dispatched = new SynchronousQueue<>();
+
+    private NewMsgsWorker worker;
+
+    private Thread runner;
+
+    /**
+     * Start the worker with all the activations due
+     *
+     * @throws InterruptedException Thrown if interrupted
+     */
+    @Setup(Level.Trial)
+    public void setup() throws InterruptedException {
+        worker = new NewMsgsWorker(new HandOffWorkManager());
+
+        BenchmarkEndpointFactory endpointFactory = new BenchmarkEndpointFactory("benchmark");
+        for (int i = 0; i < activations; i++) {
+            MailActivationSpec spec = new MailActivationSpec();
+            spec.setMailServer("mail" + i + ".example.org");
+            spec.setUserName("user" + i);
+            spec.setPollingInterval(0L);
+            worker.watch(new MailActivation(endpointFactory, spec));
+        }
+
+        runner = new Thread(worker, "NewMsgsWorker");
+        runner.setDaemon(true);
+        runner.start();
+    }
+
+    /**
+     * Stop the worker
+     *
+     * @throws InterruptedException Thrown if interrupted
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        worker.release();
+        // Unblock a dispatch waiting for the hand-off
+        dispatched.poll(1, TimeUnit.SECONDS);
+        runner.join(TimeUnit.SECONDS.toMillis(10));
+    }
+
+    /**
+     * A dispatch of the next due activation
+     *
+     * @return The dispatched activation
+     * @throws InterruptedException Thrown if interrupted
+     */
+    @Benchmark
+    public Work dispatch() throws InterruptedException {
+        Work work = dispatched.take();
+        worker.workCompleted(new WorkEvent(this, WorkEvent.WORK_COMPLETED, work, null));
+        return work;
+    }
+
+    /**
+     * A work manager handing the scheduled checks over to the benchmark thread, which
+     * completes them without running them
+     */
+    private class HandOffWorkManager implements WorkManager {
+        /**
+         * {@inheritDoc}
+         */
+        public void doWork(Work work) {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void doWork(Work work, long startTimeout, ExecutionContext ctx, WorkListener listener) {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public long startWork(Work work) {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public long startWork(Work work, long startTimeout, ExecutionContext ctx, WorkListener listener) {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void scheduleWork(Work work) {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void scheduleWork(Work work, long startTimeout, ExecutionContext ctx, WorkListener listener) {
+            try {
+                dispatched.put(work);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,571 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wildfly.mail.ra;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import org.jboss.logging.Logger;
+
+/**
+ * The local checkpoints of the delivery progress of the activations: the IMAP UID marks
+ * and the delivered POP3 UIDLs, so that a restarted adapter resumes where the last
+ * acknowledged delivery left off instead of redelivering or rescanning.
+ *
+ * Changes are appended to a log of checksummed records, and made durable by {@link #sync()},
+ * which forces the log once for all the changes appended by concurrent callers (group commit).
+ * Once the log grows past a threshold, the whole state is written to a snapshot and the log
+ * is truncated. A torn record at the end of the log, left by a crash, is discarded
+ * on recovery.
+ *
+ * The directory is locked while the store is open, so that two adapters, in this or another
+ * JVM, can't interleave their records in the same log
+ */
+class CheckpointStore {
+    private static Logger log = Logger.getLogger(CheckpointStore.class);
+
+    private static final String LOG_FILE = "checkpoint.log";
+
+    private static final String SNAPSHOT_FILE = "checkpoint.snapshot";
+
+    private static final String LOCK_FILE = "checkpoint.lock";
+
+    private static final int SNAPSHOT_MAGIC = 0x4d524143;
+
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private static final long SNAPSHOT_THRESHOLD = 4L * 1024L * 1024L;
+
+    private static final byte MARK = 1;
+
+    private static final byte UIDL_ADD = 2;
+
+    private static final byte UIDL_REMOVE = 3;
+
+    private static final int MAX_RECORD = 64 * 1024;
+
+    private final Path directory;
+
+    private final Object lock = new Object();
+
+    private final Object syncLock = new Object();
+
+    private final Map<String, long[]> marks = new HashMap<>();
+
+    private final Map<String, Set<String>> uidls = new HashMap<>();
+
+    private FileChannel channel;
+
+    private FileLock directoryLock;
+
+    /**
+     * The number of bytes appended since the store was opened
+     */
+    private long appended;
+
+    /**
+     * The number of appended bytes known to be durable
+     */
+    private long synced;
+
+    private CheckpointStore(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Open the store of a directory, recovering its state
+     *
+     * @param directory The directory
+     * @return The store
+     * @throws IOException Thrown if the store can't be opened, or the directory is in use
+     */
+    static CheckpointStore open(Path directory) throws IOException {
+        CheckpointStore store = new CheckpointStore(directory);
+        long start = System.nanoTime();
+
+        Files.createDirectories(directory);
+        store.lockDirectory();
+        int records;
+        try {
+            store.loadSnapshot();
+            store.channel = FileChannel.open(directory.resolve(LOG_FILE), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            records = store.replay();
+        } catch (IOException | RuntimeException e) {
+            if (store.channel != null) { store.channel.close(); }
+            store.unlockDirectory();
+            throw e;
+        }
+
+        log.debugf("Recovered checkpoints from %s: marks=%d, uidls=%d, replayed=%d, time=%dms", directory,
+                store.marks.size(), store.uidls.size(), records, (System.nanoTime() - start) / 1000000L);
+        return store;
+    }
+
+    /**
+     * Get the directory of the local state of the activations
+     *
+     * @param directory The directory of the spec; <code>null</code> for the default
+     * @return The server data directory if known; otherwise the temporary directory
+     */
+    static Path getStateDirectory(String directory) {
+        if (directory != null) { return Paths.get(directory); }
+
+        String dataDir = System.getProperty("jboss.server.data.dir");
+        return Paths.get(dataDir != null ? dataDir : System.getProperty("java.io.tmpdir"), "mail-ra");
+    }
+
+    /**
+     * Get the checkpoint key of a folder watched by a spec
+     *
+     * @param spec   The mail activation spec
+     * @param folder The folder full name
+     * @return The value
+     */
+    static String getKey(MailActivationSpec spec, String folder) {
+        return spec.getStoreProtocol() + "://" + spec.getUserName() + "@" + spec.getMailServer() + ":" +
+                spec.getPort() + "/" + folder;
+    }
+
+    /**
+     * Get the directory
+     *
+     * @return The value
+     */
+    Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Get a UID mark
+     *
+     * @param key The checkpoint key
+     * @return The UIDVALIDITY and the last UID; <code>null</code> if there is none
+     */
+    long[] getMark(String key) {
+        synchronized (lock) {
+            long[] mark = marks.get(key);
+            return mark != null ? mark.clone() : null;
+        }
+    }
+
+    /**
+     * Record a UID mark
+     *
+     * @param key         The checkpoint key
+     * @param uidValidity The UIDVALIDITY
+     * @param lastUid     The last delivered UID
+     */
+    void putMark(String key, long uidValidity, long lastUid) {
+        synchronized (lock) {
+            long[] mark = marks.get(key);
+            if (mark != null && mark[0] == uidValidity && mark[1] == lastUid) { return; }
+
+            marks.put(key, new long[] {uidValidity, lastUid});
+            append(MARK, key, out -> {
+                out.writeLong(uidValidity);
+                out.writeLong(lastUid);
+            });
+        }
+    }
+
+    /**
+     * Get the delivered UIDLs
+     *
+     * @param key The checkpoint key
+     * @return A copy of the UIDLs
+     */
+    Set<String> getUIDLs(String key) {
+        synchronized (lock) {
+            Set<String> set = uidls.get(key);
+            return set != null ? new HashSet<>(set) : new HashSet<>();
+        }
+    }
+
+    /**
+     * Record a delivered UIDL
+     *
+     * @param key  The checkpoint key
+     * @param uidl The UIDL
+     */
+    void addUIDL(String key, String uidl) {
+        synchronized (lock) {
+            if (uidls.computeIfAbsent(key, k -> new HashSet<>()).add(uidl)) {
+                append(UIDL_ADD, key, out -> out.writeUTF(uidl));
+            }
+        }
+    }
+
+    /**
+     * Forget a UIDL which is no longer on the server
+     *
+     * @param key  The checkpoint key
+     * @param uidl The UIDL
+     */
+    void removeUIDL(String key, String uidl) {
+        synchronized (lock) {
+            Set<String> set = uidls.get(key);
+            if (set != null && set.remove(uidl)) {
+                if (set.isEmpty()) { uidls.remove(key); }
+                append(UIDL_REMOVE, key, out -> out.writeUTF(uidl));
+            }
+        }
+    }
+
+    /**
+     * Make the changes recorded so far durable. Concurrent callers share a single force of the
+     * log: the ones arriving while a force is in progress are covered by the next one
+     */
+    void sync() {
+        long target;
+        synchronized (lock) {
+            target = appended;
+        }
+
+        synchronized (syncLock) {
+            if (synced >= target) { return; }
+
+            long upTo;
+            FileChannel c;
+            synchronized (lock) {
+                upTo = appended;
+                c = channel;
+            }
+            if (c == null) { return; }
+
+            try {
+                c.force(false);
+                synced = upTo;
+            } catch (IOException e) {
+                log.warn("Failed to sync the checkpoints of " + directory, e);
+            }
+        }
+    }
+
+    /**
+     * Close the store, leaving a snapshot of its state
+     */
+    void close() {
+        synchronized (syncLock) {
+            synchronized (lock) {
+                if (channel == null) { return; }
+
+                try {
+                    snapshot();
+                } catch (IOException e) {
+                    log.warn("Failed to snapshot the checkpoints of " + directory, e);
+                }
+
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    log.debug("Failed to close the checkpoint log", e);
+                }
+                channel = null;
+                unlockDirectory();
+            }
+        }
+    }
+
+    /**
+     * Lock the directory for this store
+     *
+     * @throws IOException Thrown if the directory is locked by another store
+     */
+    private void lockDirectory() throws IOException {
+        FileChannel c = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        try {
+            directoryLock = c.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // Locked by another store of this JVM
+            directoryLock = null;
+        } catch (IOException | RuntimeException e) {
+            c.close();
+            throw e;
+        }
+
+        if (directoryLock == null) {
+            c.close();
+            throw new IOException("The checkpoint directory " + directory + " is in use by another adapter, " +
+                    "set stateDirectory to a directory of its own");
+        }
+    }
+
+    private void unlockDirectory() {
+        if (directoryLock == null) { return; }
+
+        try {
+            directoryLock.release();
+            directoryLock.channel().close();
+        } catch (IOException e) {
+            log.debug("Failed to release the checkpoint directory lock", e);
+        }
+        directoryLock = null;
+    }
+
+    private void append(byte type, String key, RecordWriter payload) {
+        if (channel == null) { return; }
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(type);
+            out.writeUTF(key);
+            payload.write(out);
+            out.flush();
+            byte[] body = bytes.toByteArray();
+
+            ByteBuffer buffer = ByteBuffer.allocate(8 + body.length);
+            buffer.putInt(body.length);
+            buffer.putInt(crc(body, 0, body.length));
+            buffer.put(body);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            appended += buffer.limit();
+
+            if (channel.position() >= SNAPSHOT_THRESHOLD) { snapshot(); }
+        } catch (IOException e) {
+            log.warn("Failed to append to the checkpoints of " + directory, e);
+        }
+    }
+
+    /**
+     * Write the whole state to a new snapshot, and truncate the log it covers. The rename of the
+     * snapshot is made durable before the log is truncated, and a crash between the two leaves
+     * a log which replays idempotently over the snapshot
+     *
+     * @throws IOException Thrown if an error occurs
+     */
+    private void snapshot() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(marks.size());
+        for (Map.Entry<String, long[]> entry : marks.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeLong(entry.getValue()[0]);
+            out.writeLong(entry.getValue()[1]);
+        }
+        out.writeInt(uidls.size());
+        for (Map.Entry<String, Set<String>> entry : uidls.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeInt(entry.getValue().size());
+            for (String uidl : entry.getValue()) {
+                out.writeUTF(uidl);
+            }
+        }
+        out.flush();
+        byte[] body = bytes.toByteArray();
+
+        Path snapshot = directory.resolve(SNAPSHOT_FILE);
+        Path tmp = directory.resolve(SNAPSHOT_FILE + ".tmp");
+        // Written through the channel rather than a mapping: a mapping is only released by the garbage
+        // collector, and a mapped file can't be replaced or deleted on Windows
+        try (FileChannel c = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(16 + body.length);
+            buffer.putInt(SNAPSHOT_MAGIC);
+            buffer.putInt(SNAPSHOT_VERSION);
+            buffer.putInt(body.length);
+            buffer.putInt(crc(body, 0, body.length));
+            buffer.put(body);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                c.write(buffer);
+            }
+            c.force(true);
+        }
+
+        try {
+            Files.move(tmp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, snapshot, StandardCopyOption.REPLACE_EXISTING);
+        }
+        syncDirectory();
+
+        channel.truncate(0L);
+        channel.position(0L);
+        channel.force(true);
+        log.tracef("Snapshot of the checkpoints of %s: %d bytes", directory, body.length);
+    }
+
+    /**
+     * Force the entries of the directory, so that a rename in it survives a crash
+     */
+    private void syncDirectory() {
+        try (FileChannel c = FileChannel.open(directory, StandardOpenOption.READ)) {
+            c.force(true);
+        } catch (IOException e) {
+            // Directories can't be opened on some platforms, e.g. Windows
+            log.tracef("Can't sync the directory %s: %s", directory, e);
+        }
+    }
+
+    private void loadSnapshot() throws IOException {
+        Path snapshot = directory.resolve(SNAPSHOT_FILE);
+        if (!Files.exists(snapshot)) { return; }
+
+        try (FileChannel c = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            if (c.size() < 16) {
+                log.warnf("Ignoring the truncated checkpoint snapshot %s", snapshot);
+                return;
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(c.size(), Integer.MAX_VALUE));
+            while (buffer.hasRemaining() && c.read(buffer) >= 0) {
+                // Read the whole snapshot
+            }
+            buffer.flip();
+            if (buffer.remaining() < 16) {
+                log.warnf("Ignoring the truncated checkpoint snapshot %s", snapshot);
+                return;
+            }
+
+            int magic = buffer.getInt();
+            int version = buffer.getInt();
+            int length = buffer.getInt();
+            int crc = buffer.getInt();
+            if (magic != SNAPSHOT_MAGIC || version != SNAPSHOT_VERSION || length < 0 || length > buffer.remaining()) {
+                log.warnf("Ignoring the invalid checkpoint snapshot %s", snapshot);
+                return;
+            }
+
+            byte[] body = new byte[length];
+            buffer.get(body);
+            if (crc(body, 0, length) != crc) {
+                log.warnf("Ignoring the corrupt checkpoint snapshot %s", snapshot);
+                return;
+            }
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+            int markCount = in.readInt();
+            for (int i = 0; i < markCount; i++) {
+                marks.put(in.readUTF(), new long[] {in.readLong(), in.readLong()});
+            }
+            int uidlCount = in.readInt();
+            for (int i = 0; i < uidlCount; i++) {
+                String key = in.readUTF();
+                int n = in.readInt();
+                Set<String> set = new HashSet<>(n * 2);
+                for (int j = 0; j < n; j++) {
+                    set.add(in.readUTF());
+                }
+                uidls.put(key, set);
+            }
+        }
+    }
+
+    /**
+     * Apply the records of the log, and truncate it after the last intact one
+     *
+     * @return The number of records
+     * @throws IOException Thrown if an error occurs
+     */
+    private int replay() throws IOException {
+        long size = channel.size();
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(size, Integer.MAX_VALUE));
+        while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) >= 0) {
+            // Read the whole log
+        }
+        buffer.flip();
+
+        int records = 0;
+        int valid = 0;
+        while (buffer.remaining() >= 8) {
+            int length = buffer.getInt();
+            int crc = buffer.getInt();
+            if (length <= 0 || length > MAX_RECORD || length > buffer.remaining()) { break; }
+
+            byte[] body = new byte[length];
+            buffer.get(body);
+            if (crc(body, 0, length) != crc || !apply(body)) { break; }
+
+            valid = buffer.position();
+            records++;
+        }
+
+        if (valid < size) {
+            log.warnf("Discarding %d bytes of incomplete checkpoint records from %s", size - valid,
+                    directory.resolve(LOG_FILE));
+            channel.truncate(valid);
+        }
+        channel.position(valid);
+        return records;
+    }
+
+    private boolean apply(byte[] body) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+            byte type = in.readByte();
+            String key = in.readUTF();
+            switch (type) {
+                case MARK:
+                    marks.put(key, new long[] {in.readLong(), in.readLong()});
+                    return true;
+                case UIDL_ADD:
+                    uidls.computeIfAbsent(key, k -> new HashSet<>()).add(in.readUTF());
+                    return true;
+                case UIDL_REMOVE:
+                    String uidl = in.readUTF();
+                    Set<String> set = uidls.get(key);
+                    if (set != null && set.remove(uidl) && set.isEmpty()) { uidls.remove(key); }
+                    return true;
+                default:
+                    return false;
+            }
+        } catch (IOException e) {
+            // A torn record
+            return false;
+        }
+    }
+
+    private static int crc(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Writes the payload of a record
+     */
+    private interface RecordWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+}
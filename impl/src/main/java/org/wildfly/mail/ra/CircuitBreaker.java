@@ -0,0 +1,186 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wildfly.mail.ra;
+
+import java.io.IOException;
+import javax.mail.MessagingException;
+
+import org.jboss.logging.Logger;
+
+/**
+ * The circuit breaker of an account on a mail server, shared by all the activations which log in
+ * with it. It is keyed by account rather than by server, so that the connection failures of one
+ * account, e.g. as its logins are throttled, don't stop the checks of the other accounts.
+ *
+ * After a number of consecutive connection failures the circuit opens, and the checks are
+ * skipped without taking a thread until the backoff elapses. A single check is then let through
+ * as a probe (half-open): its success closes the circuit, its failure opens it again for twice
+ * the backoff, up to a maximum. The failures are logged once per outage instead of once per check
+ */
+class CircuitBreaker {
+    private static Logger log = Logger.getLogger(CircuitBreaker.class);
+
+    private enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String account;
+
+    private final int threshold;
+
+    private final long initialBackoff;
+
+    private final long maxBackoff;
+
+    private State state = State.CLOSED;
+
+    private int failures;
+
+    private long backoff;
+
+    private long retryTime;
+
+    /**
+     * Constructor
+     *
+     * @param account        The account, as user@host:port
+     * @param threshold      The number of consecutive connection failures opening the circuit
+     * @param initialBackoff The time the circuit stays open after it opens in MS
+     * @param maxBackoff     The maximum time the circuit stays open in MS
+     */
+    CircuitBreaker(String account, int threshold, long initialBackoff, long maxBackoff) {
+        this.account = account;
+        this.threshold = threshold;
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = Math.max(initialBackoff, maxBackoff);
+        this.backoff = initialBackoff;
+    }
+
+    /**
+     * Get the key of the circuit breaker of a spec
+     *
+     * @param spec The mail activation spec
+     * @return The account, as user@host:port
+     */
+    static String getAccount(MailActivationSpec spec) {
+        String user = spec.getUserName();
+        return (user != null ? user + "@" : "") + spec.getMailServer() + ":" + spec.getPort();
+    }
+
+    /**
+     * Is a failure a failure to reach the server, rather than an error of the mailbox
+     *
+     * @param t The failure
+     * @return True if an I/O error caused it; otherwise false
+     */
+    static boolean isConnectFailure(Throwable t) {
+        for (int i = 0; t != null && i < 16; i++) {
+            if (t instanceof IOException) { return true; }
+
+            Throwable next = t instanceof MessagingException ? ((MessagingException) t).getNextException() : null;
+            t = next != null ? next : t.getCause();
+        }
+        return false;
+    }
+
+    /**
+     * Are the checks currently skipped
+     *
+     * @param now The current time
+     * @return True if the circuit is open, or a probe is in progress; otherwise false
+     */
+    synchronized boolean isOpen(long now) {
+        return state != State.CLOSED && now < retryTime;
+    }
+
+    /**
+     * Get the time until which the checks are skipped
+     *
+     * @return The value; 0 if the circuit is closed
+     */
+    synchronized long getRetryTime() {
+        return state == State.CLOSED ? 0L : retryTime;
+    }
+
+    /**
+     * Acquire the permission to connect to the server
+     *
+     * @param now The current time
+     * @return True if the circuit is closed, or the check is the probe; otherwise false
+     */
+    synchronized boolean tryAcquire(long now) {
+        if (state == State.CLOSED) { return true; }
+        if (now < retryTime) { return false; }
+
+        // The other checks wait for the outcome of the probe, or another probe is let through
+        // if it doesn't complete in time
+        state = State.HALF_OPEN;
+        retryTime = now + initialBackoff;
+        log.debugf("Probing %s", account);
+        return true;
+    }
+
+    /**
+     * Record a successful connection
+     */
+    synchronized void success() {
+        if (state != State.CLOSED) { log.infof("Mail server of %s is reachable again, resuming its checks", account); }
+
+        state = State.CLOSED;
+        failures = 0;
+        backoff = initialBackoff;
+        retryTime = 0L;
+    }
+
+    /**
+     * Record a connection failure
+     *
+     * @param now   The current time
+     * @param cause The failure
+     */
+    synchronized void failure(long now, Exception cause) {
+        failures++;
+
+        if (state == State.HALF_OPEN) {
+            backoff = Math.min(backoff * 2, maxBackoff);
+            open(now);
+            log.debugf("Probe of %s failed, skipping its checks for %d ms: %s", account, backoff, cause);
+        } else if (state == State.CLOSED && failures >= threshold) {
+            open(now);
+            log.warnf(cause, "%d consecutive connection failures for %s, skipping its checks for %d ms",
+                    failures, account, backoff);
+        } else if (state == State.CLOSED) {
+            log.warnf("Failed to connect to the mail server of %s (%d/%d): %s", account, failures, threshold, cause);
+        }
+    }
+
+    private void open(long now) {
+        state = State.OPEN;
+        retryTime = now + backoff;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized String toString() {
+        return "CircuitBreaker(account=" + account + ", state=" + state + ", failures=" + failures + ", backoff=" +
+                backoff + ")";
+    }
+}
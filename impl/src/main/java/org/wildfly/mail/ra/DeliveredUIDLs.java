@@ -0,0 +1,232 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wildfly.mail.ra;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.UUID;
+
+import org.jboss.logging.Logger;
+
+/**
+ * The UIDLs of the POP3 messages delivered by an activation which doesn't flush the maildrop,
+ * so that a check only downloads the messages it hasn't delivered yet. The UIDLs which are no
+ * longer on the server are pruned, which bounds the set by the size of the maildrop.
+ *
+ * The set is recovered from, and recorded to, the checkpoint store of the activation. Without
+ * a checkpoint store it is kept in a file of the state directory, one UIDL per line, rewritten
+ * atomically after a check which changed it
+ */
+public class DeliveredUIDLs {
+    private static Logger log = Logger.getLogger(DeliveredUIDLs.class);
+
+    private final CheckpointStore checkpoints;
+
+    private final Path file;
+
+    private final String key;
+
+    private final Set<String> uidls;
+
+    private boolean dirty;
+
+    /**
+     * Constructor
+     *
+     * @param checkpoints The checkpoint store; <code>null</code> to keep the set in the file
+     * @param file        The file the set is kept in without a checkpoint store; <code>null</code> to keep it
+     *                    in memory only
+     * @param key         The checkpoint key
+     */
+    DeliveredUIDLs(CheckpointStore checkpoints, Path file, String key) {
+        this.checkpoints = checkpoints;
+        this.file = checkpoints == null ? file : null;
+        this.key = key;
+        this.uidls = checkpoints != null ? checkpoints.getUIDLs(key) : load(this.file);
+    }
+
+    /**
+     * Get the file the set of a mailbox is kept in without a checkpoint store
+     *
+     * @param spec The mail activation spec
+     * @param key  The checkpoint key
+     * @return The value
+     */
+    static Path getFile(MailActivationSpec spec, String key) {
+        return CheckpointStore.getStateDirectory(spec.getStateDirectory())
+                .resolve("uidl-" + UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8)) + ".txt");
+    }
+
+    /**
+     * Get the checkpoint key
+     *
+     * @return The value
+     */
+    String getKey() {
+        return key;
+    }
+
+    /**
+     * Get the checkpoint store
+     *
+     * @return The value; <code>null</code> if the set is kept in its file
+     */
+    CheckpointStore getCheckpoints() {
+        return checkpoints;
+    }
+
+    /**
+     * Get the file
+     *
+     * @return The value; <code>null</code> if the set is kept in the checkpoint store, or in memory only
+     */
+    Path getFile() {
+        return file;
+    }
+
+    /**
+     * Has a message been delivered
+     *
+     * @param uidl The UIDL
+     * @return True if it has; otherwise false
+     */
+    public synchronized boolean contains(String uidl) {
+        return uidls.contains(uidl);
+    }
+
+    /**
+     * Record a delivered message
+     *
+     * @param uidl The UIDL
+     */
+    public synchronized void add(String uidl) {
+        if (!uidls.add(uidl)) { return; }
+
+        if (checkpoints != null) {
+            checkpoints.addUIDL(key, uidl);
+        } else {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Prune the UIDLs of the messages no longer on the server
+     *
+     * @param present The UIDLs of the messages on the server; a set, as each delivered UIDL is looked up
+     */
+    public synchronized void retain(Set<String> present) {
+        Iterator<String> it = uidls.iterator();
+        while (it.hasNext()) {
+            String uidl = it.next();
+            if (!present.contains(uidl)) {
+                it.remove();
+                if (checkpoints != null) {
+                    checkpoints.removeUIDL(key, uidl);
+                } else {
+                    dirty = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the number of delivered UIDLs
+     *
+     * @return The value
+     */
+    public synchronized int size() {
+        return uidls.size();
+    }
+
+    /**
+     * Copy the set, for the activation taking over the polling of a poll group
+     *
+     * @return The copy, recorded to the same checkpoint store or file
+     */
+    synchronized DeliveredUIDLs copy() {
+        DeliveredUIDLs copy = new DeliveredUIDLs(checkpoints, file, key);
+        if (checkpoints == null) {
+            copy.uidls.clear();
+            copy.uidls.addAll(uidls);
+            copy.dirty = dirty;
+        }
+        return copy;
+    }
+
+    /**
+     * Make the recorded changes durable
+     */
+    public void save() {
+        if (checkpoints != null) {
+            checkpoints.sync();
+            return;
+        }
+
+        synchronized (this) {
+            if (!dirty || file == null) { return; }
+
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try {
+                Files.createDirectories(file.getParent());
+                try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.US_ASCII)) {
+                    for (String uidl : uidls) {
+                        writer.write(uidl);
+                        writer.newLine();
+                    }
+                }
+
+                try {
+                    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+                }
+                dirty = false;
+            } catch (IOException e) {
+                log.warn("Failed to save the delivered UIDLs to " + file, e);
+            }
+        }
+    }
+
+    private static Set<String> load(Path file) {
+        Set<String> set = new HashSet<>();
+        if (file == null) { return set; }
+
+        try {
+            for (String line : Files.readAllLines(file, StandardCharsets.US_ASCII)) {
+                if (!line.isEmpty()) { set.add(line); }
+            }
+            log.debugf("Loaded %d delivered UIDLs from %s", set.size(), file);
+        } catch (NoSuchFileException e) {
+            log.tracef("No delivered UIDLs yet: %s", file);
+        } catch (IOException e) {
+            log.warn("Failed to load the delivered UIDLs from " + file, e);
+        }
+        return set;
+    }
+}
@@ -0,0 +1,483 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wildfly.mail.ra;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.mail.MessagingException;
+
+import org.jboss.logging.Logger;
+
+/**
+ * A non-blocking IMAP connection of the multiplexed IMAP engine. Commands may be issued
+ * from any thread and are pipelined: each one is written as soon as it is submitted, without
+ * waiting for the completion of the previous ones. The socket is only ever read and written
+ * by the event loop of the connection, so that an idle connection holds no thread.
+ *
+ * The untagged responses received while a command is pending are attributed to the oldest
+ * pending command, as the server processes the commands in order
+ */
+final class IMAPConnection {
+    private static Logger log = Logger.getLogger(IMAPConnection.class);
+
+    /**
+     * The size of the read buffer
+     */
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final IMAPEventLoop loop;
+
+    private final MailStorePool.Key key;
+
+    private final SocketChannel channel;
+
+    private SelectionKey selectionKey;
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    private final IMAPResponseParser parser = new IMAPResponseParser();
+
+    private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>();
+
+    private final ArrayDeque<Command> commands = new ArrayDeque<>();
+
+    private final CompletableFuture<IMAPResponse> greeting = new CompletableFuture<>();
+
+    private int nextTag;
+
+    private volatile boolean closed;
+
+    private final AtomicBoolean inUse = new AtomicBoolean();
+
+    private volatile long lastUsed;
+
+    private String selectedFolder;
+
+    private long uidValidity = -1L;
+
+    private long uidNext;
+
+    /**
+     * Constructor
+     *
+     * @param loop    The event loop
+     * @param key     The identity of the connection
+     * @param channel The channel
+     */
+    IMAPConnection(IMAPEventLoop loop, MailStorePool.Key key, SocketChannel channel) {
+        this.loop = loop;
+        this.key = key;
+        this.channel = channel;
+        this.lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Open a connection
+     *
+     * @param loop    The event loop
+     * @param key     The identity of the connection
+     * @param address The address of the server
+     * @return The connection, completed once the server greeting is received
+     */
+    static CompletableFuture<IMAPConnection> open(IMAPEventLoop loop, MailStorePool.Key key,
+                                                  InetSocketAddress address) {
+        CompletableFuture<IMAPConnection> result = new CompletableFuture<>();
+        try {
+            SocketChannel channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+
+            IMAPConnection connection = new IMAPConnection(loop, key, channel);
+            connection.greeting.whenComplete((r, t) -> {
+                if (t != null) {
+                    result.completeExceptionally(t);
+                } else {
+                    result.complete(connection);
+                }
+            });
+
+            loop.execute(() -> connection.connect(address));
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Get the identity of the connection
+     *
+     * @return The value
+     */
+    MailStorePool.Key getKey() {
+        return key;
+    }
+
+    /**
+     * Is the connection closed
+     *
+     * @return True if closed; otherwise false
+     */
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Get the folder selected by the last SELECT
+     *
+     * @return The value; <code>null</code> if none
+     */
+    String getSelectedFolder() {
+        return selectedFolder;
+    }
+
+    /**
+     * Get the UIDVALIDITY of the selected folder
+     *
+     * @return The value; -1 if unknown
+     */
+    long getUidValidity() {
+        return uidValidity;
+    }
+
+    /**
+     * Get the UIDNEXT of the selected folder, as of its selection
+     *
+     * @return The value; 0 if unknown
+     */
+    long getUidNext() {
+        return uidNext;
+    }
+
+    /**
+     * Record the selection of a folder
+     *
+     * @param folder    The folder
+     * @param responses The responses of the SELECT
+     */
+    void selected(String folder, List<IMAPResponse> responses) {
+        uidValidity = -1L;
+        uidNext = 0L;
+        for (IMAPResponse response : responses) {
+            try {
+                String value = response.getResponseCode("UIDVALIDITY");
+                if (value != null) { uidValidity = Long.parseLong(value); }
+                value = response.getResponseCode("UIDNEXT");
+                if (value != null) { uidNext = Long.parseLong(value); }
+            } catch (NumberFormatException e) {
+                log.debugf("Invalid SELECT response from %s: %s", key, response);
+            }
+        }
+        selectedFolder = folder;
+    }
+
+    /**
+     * Take the connection for the duration of a check
+     *
+     * @return False if it is already taken or is being closed; otherwise true
+     */
+    boolean acquire() {
+        return !closed && inUse.compareAndSet(false, true);
+    }
+
+    /**
+     * Give the connection back once a check is done with it
+     */
+    void release() {
+        lastUsed = System.currentTimeMillis();
+        inUse.set(false);
+    }
+
+    /**
+     * Issue commands. The commands are written together, and the responses of each one
+     * complete its future: the untagged responses followed by the tagged OK. A NO or BAD
+     * completes the future exceptionally
+     *
+     * @param commands The commands, without tag and CRLF
+     * @return The futures, one per command
+     */
+    List<CompletableFuture<List<IMAPResponse>>> pipeline(String... commands) {
+        List<CompletableFuture<List<IMAPResponse>>> futures = new ArrayList<>(commands.length);
+        Command[] pending = new Command[commands.length];
+        for (int i = 0; i < commands.length; i++) {
+            pending[i] = new Command(commands[i]);
+            futures.add(pending[i].future);
+        }
+
+        loop.execute(() -> submit(pending));
+        return futures;
+    }
+
+    /**
+     * Issue a command
+     *
+     * @param command The command, without tag and CRLF
+     * @return The future of the responses
+     */
+    CompletableFuture<List<IMAPResponse>> command(String command) {
+        return pipeline(command).get(0);
+    }
+
+    /**
+     * Log out and close the connection
+     */
+    void logout() {
+        if (closed) { return; }
+
+        command("LOGOUT").whenComplete((r, t) -> close(null));
+    }
+
+    /**
+     * Close the connection, failing the pending commands
+     *
+     * @param cause The cause; <code>null</code> if closed normally
+     */
+    void close(Throwable cause) {
+        if (loop.inEventLoop()) {
+            doClose(cause);
+        } else {
+            loop.execute(() -> doClose(cause));
+        }
+    }
+
+    // The methods below are only called by the event loop
+
+    private void connect(InetSocketAddress address) {
+        try {
+            selectionKey = loop.register(channel, this);
+            if (channel.connect(address)) {
+                selectionKey.interestOps(SelectionKey.OP_READ);
+            } else {
+                selectionKey.interestOps(SelectionKey.OP_CONNECT);
+            }
+        } catch (IOException | RuntimeException e) {
+            doClose(e);
+        }
+    }
+
+    /**
+     * The channel is connected
+     */
+    void onConnectable() {
+        try {
+            if (channel.finishConnect()) { selectionKey.interestOps(SelectionKey.OP_READ); }
+        } catch (IOException e) {
+            doClose(e);
+        }
+    }
+
+    /**
+     * The channel has data to read
+     */
+    void onReadable() {
+        try {
+            int n = channel.read(readBuffer);
+            if (n < 0) {
+                doClose(new IOException("Connection closed by " + key));
+                return;
+            }
+
+            readBuffer.flip();
+            parser.parse(readBuffer, this::onResponse);
+            readBuffer.clear();
+        } catch (IOException | RuntimeException e) {
+            doClose(e);
+        }
+    }
+
+    /**
+     * The channel can be written
+     */
+    void onWritable() {
+        try {
+            flush();
+        } catch (IOException e) {
+            doClose(e);
+        }
+    }
+
+    /**
+     * Fail the connection if its oldest pending command timed out, or log it out if it has
+     * been idle longer than the idle timeout
+     *
+     * @param now         The current time
+     * @param timeout     The command timeout in MS
+     * @param idleTimeout The idle timeout in MS
+     */
+    void checkTimeouts(long now, long timeout, long idleTimeout) {
+        Command oldest = commands.peekFirst();
+        if (oldest != null) {
+            if (now - oldest.sent > timeout) {
+                doClose(new SocketTimeoutException("IMAP command timed out: " + key));
+            }
+        } else if (!greeting.isDone()) {
+            if (now - lastUsed > timeout) { doClose(new SocketTimeoutException("IMAP connect timed out: " + key)); }
+        } else if (now - lastUsed > idleTimeout && inUse.compareAndSet(false, true)) {
+            log.tracef("Closing idle connection: %s", key);
+            logout();
+        }
+    }
+
+    private void submit(Command[] pending) {
+        if (closed) {
+            for (Command command : pending) {
+                command.future.completeExceptionally(new MessagingException("Connection closed: " + key));
+            }
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        for (Command command : pending) {
+            command.tag = "A" + (++nextTag);
+            command.sent = now;
+            commands.addLast(command);
+            writeQueue.addLast(ByteBuffer.wrap((command.tag + " " + command.text + "\r\n")
+                    .getBytes(StandardCharsets.UTF_8)));
+        }
+
+        try {
+            flush();
+        } catch (IOException e) {
+            doClose(e);
+        }
+    }
+
+    private void flush() throws IOException {
+        while (!writeQueue.isEmpty()) {
+            ByteBuffer buffer = writeQueue.peekFirst();
+            channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            writeQueue.pollFirst();
+        }
+        selectionKey.interestOps(SelectionKey.OP_READ);
+    }
+
+    private void onResponse(IMAPResponse response) {
+        if (!greeting.isDone()) {
+            if (response.isUntagged() && !"BYE".equals(response.getStatus())) {
+                greeting.complete(response);
+            } else {
+                doClose(new MessagingException("Connection refused by " + key + ": " + response));
+            }
+            return;
+        }
+
+        if (response.isContinuation()) {
+            // No command of the engine sends literals
+            doClose(new MessagingException("Unexpected continuation request: " + response));
+            return;
+        }
+
+        if (response.isUntagged()) {
+            Command current = commands.peekFirst();
+            if (current != null) {
+                current.responses.add(response);
+            } else {
+                log.tracef("Unsolicited response from %s: %s", key, response);
+            }
+            return;
+        }
+
+        Command command = null;
+        for (Command c : commands) {
+            if (c.tag.equals(response.getTag())) {
+                command = c;
+                break;
+            }
+        }
+        if (command == null) {
+            log.debugf("Response to an unknown command from %s: %s", key, response);
+            return;
+        }
+
+        commands.remove(command);
+        lastUsed = System.currentTimeMillis();
+        if (response.isOK()) {
+            command.responses.add(response);
+            command.future.complete(command.responses);
+        } else {
+            command.future.completeExceptionally(new MessagingException("IMAP command " + command.name() +
+                    " failed: " + response.getRest()));
+        }
+    }
+
+    private void doClose(Throwable cause) {
+        if (closed) { return; }
+        closed = true;
+
+        if (cause != null) { log.debugf("Closing connection %s: %s", key, cause); }
+
+        if (selectionKey != null) { selectionKey.cancel(); }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.debug("Error closing connection", e);
+        }
+        loop.unregister(this);
+
+        MessagingException failure = new MessagingException("Connection closed: " + key,
+                cause instanceof Exception ? (Exception) cause : null);
+        greeting.completeExceptionally(failure);
+        Command command;
+        while ((command = commands.pollFirst()) != null) {
+            command.future.completeExceptionally(failure);
+        }
+        writeQueue.clear();
+    }
+
+    /**
+     * A pending command
+     */
+    private static final class Command {
+        private final String text;
+
+        private final CompletableFuture<List<IMAPResponse>> future = new CompletableFuture<>();
+
+        private final List<IMAPResponse> responses = new ArrayList<>(2);
+
+        private String tag;
+
+        private long sent;
+
+        Command(String text) {
+            this.text = text;
+        }
+
+        String name() {
+            // Never log the arguments, a LOGIN carries the password
+            int space = text.indexOf(' ');
+            return space >= 0 ? text.substring(0, space) : text;
+        }
+    }
+}
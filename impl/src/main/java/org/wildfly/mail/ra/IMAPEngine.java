@@ -0,0 +1,149 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wildfly.mail.ra;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.resource.spi.work.WorkException;
+import javax.resource.spi.work.WorkManager;
+
+import org.jboss.logging.Logger;
+
+/**
+ * The multiplexed IMAP engine of the resource adapter: a fixed number of event loops shared
+ * by the connections of every multiplexed activation, and the connections kept logged in
+ * between checks. An idle connection costs its selection key and read buffer, not a thread,
+ * so the number of threads doesn't grow with the number of mailboxes watched
+ */
+final class IMAPEngine {
+    private static Logger log = Logger.getLogger(IMAPEngine.class);
+
+    private final IMAPEventLoop[] loops;
+
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    private final ConcurrentHashMap<MailStorePool.Key, ConcurrentLinkedDeque<IMAPConnection>> idleConnections =
+            new ConcurrentHashMap<>();
+
+    private final long timeout;
+
+    /**
+     * Constructor
+     *
+     * @param threads     The number of event loops
+     * @param timeout     The command timeout in MS
+     * @param idleTimeout The time in MS after which an idle connection is closed
+     * @throws IOException Thrown if a selector can't be opened
+     */
+    IMAPEngine(int threads, long timeout, long idleTimeout) throws IOException {
+        this.loops = new IMAPEventLoop[threads];
+        this.timeout = timeout;
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new IMAPEventLoop(timeout, idleTimeout);
+        }
+    }
+
+    /**
+     * Start the event loops
+     *
+     * @param workManager The work manager
+     * @throws WorkException Thrown if an event loop can't be scheduled
+     */
+    void start(WorkManager workManager) throws WorkException {
+        for (IMAPEventLoop loop : loops) {
+            workManager.scheduleWork(loop);
+        }
+    }
+
+    /**
+     * Get the command timeout
+     *
+     * @return The value in MS
+     */
+    long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Borrow a connection left logged in by a previous check
+     *
+     * @param key The identity of the connection
+     * @return The connection; <code>null</code> if none is available
+     */
+    IMAPConnection borrow(MailStorePool.Key key) {
+        ConcurrentLinkedDeque<IMAPConnection> connections = idleConnections.get(key);
+        if (connections == null) { return null; }
+
+        IMAPConnection connection;
+        while ((connection = connections.pollFirst()) != null) {
+            if (connection.acquire()) {
+                log.tracef("Reusing connection: %s", key);
+                return connection;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Open a new connection, on the next event loop
+     *
+     * @param key     The identity of the connection
+     * @param address The address of the server
+     * @return The connection, completed once the server greeting is received
+     */
+    CompletableFuture<IMAPConnection> connect(MailStorePool.Key key, InetSocketAddress address) {
+        IMAPEventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+        return IMAPConnection.open(loop, key, address).thenApply(connection -> {
+            connection.acquire();
+            return connection;
+        });
+    }
+
+    /**
+     * Give a connection back, logged in and with its folder selected, for the next check
+     *
+     * @param connection The connection
+     */
+    void release(IMAPConnection connection) {
+        if (connection.isClosed()) { return; }
+
+        ConcurrentLinkedDeque<IMAPConnection> connections =
+                idleConnections.computeIfAbsent(connection.getKey(), k -> new ConcurrentLinkedDeque<>());
+        connection.release();
+        connections.offerFirst(connection);
+
+        // The connections closed by their event loop are dropped here
+        connections.removeIf(IMAPConnection::isClosed);
+    }
+
+    /**
+     * Stop the event loops, closing every connection
+     */
+    void stop() {
+        for (IMAPEventLoop loop : loops) {
+            loop.release();
+        }
+        idleConnections.clear();
+    }
+}
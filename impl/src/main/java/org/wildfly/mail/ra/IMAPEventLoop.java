@@ -0,0 +1,207 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wildfly.mail.ra;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import javax.resource.spi.work.Work;
+
+import org.jboss.logging.Logger;
+
+/**
+ * An event loop of the multiplexed IMAP engine: a single thread, taken from the work manager
+ * for the lifetime of the resource adapter, which reads and writes all the connections
+ * registered with its selector
+ */
+final class IMAPEventLoop implements Work {
+    private static Logger log = Logger.getLogger(IMAPEventLoop.class);
+
+    /**
+     * The interval in MS at which the timeouts are checked
+     */
+    private static final long TIMEOUT_CHECK_INTERVAL = 1000L;
+
+    private final Selector selector;
+
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    private final Set<IMAPConnection> connections = new HashSet<>();
+
+    private final long timeout;
+
+    private final long idleTimeout;
+
+    private volatile Thread thread;
+
+    private volatile boolean released;
+
+    private volatile boolean terminated;
+
+    /**
+     * Constructor
+     *
+     * @param timeout     The command timeout in MS
+     * @param idleTimeout The time in MS after which an idle connection is closed
+     * @throws IOException Thrown if the selector can't be opened
+     */
+    IMAPEventLoop(long timeout, long idleTimeout) throws IOException {
+        this.selector = Selector.open();
+        this.timeout = timeout;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Run a task on the event loop
+     *
+     * @param task The task
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (terminated) {
+            // Only fails the task, as every connection is closed
+            runTasks();
+        } else {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Is the current thread the event loop
+     *
+     * @return True if it is; otherwise false
+     */
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Register a channel; called by the event loop
+     *
+     * @param channel    The channel
+     * @param connection The connection
+     * @return The selection key
+     * @throws IOException Thrown if the channel can't be registered
+     */
+    SelectionKey register(SocketChannel channel, IMAPConnection connection) throws IOException {
+        if (released) { throw new IOException("IMAP engine stopped"); }
+
+        connections.add(connection);
+        return channel.register(selector, 0, connection);
+    }
+
+    /**
+     * Unregister a closed connection; called by the event loop
+     *
+     * @param connection The connection
+     */
+    void unregister(IMAPConnection connection) {
+        connections.remove(connection);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void run() {
+        thread = Thread.currentThread();
+        long lastCheck = System.currentTimeMillis();
+        try {
+            while (!released) {
+                selector.select(TIMEOUT_CHECK_INTERVAL);
+                runTasks();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    process(key);
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastCheck >= TIMEOUT_CHECK_INTERVAL) {
+                    lastCheck = now;
+                    for (IMAPConnection connection : new ArrayList<>(connections)) {
+                        connection.checkTimeouts(now, timeout, idleTimeout);
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            log.error("IMAP event loop failed", e);
+        } finally {
+            shutdown();
+            thread = null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void release() {
+        released = true;
+        selector.wakeup();
+    }
+
+    private void process(SelectionKey key) {
+        IMAPConnection connection = (IMAPConnection) key.attachment();
+        if (!key.isValid()) { return; }
+
+        if (key.isConnectable()) { connection.onConnectable(); }
+        if (key.isValid() && key.isWritable()) { connection.onWritable(); }
+        if (key.isValid() && key.isReadable()) { connection.onReadable(); }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                log.warn("IMAP event loop task failed", e);
+            }
+        }
+    }
+
+    private void shutdown() {
+        released = true;
+
+        // Fail the commands submitted in the meantime
+        runTasks();
+        for (IMAPConnection connection : new ArrayList<>(connections)) {
+            connection.close(null);
+        }
+        runTasks();
+
+        try {
+            selector.close();
+        } catch (IOException e) {
+            log.debug("Error closing selector", e);
+        }
+
+        terminated = true;
+        runTasks();
+    }
+}
@@ -18,6 +18,13 @@
 
 package org.wildfly.mail.ra;
 
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import javax.mail.FetchProfile;
 import javax.mail.Flags;
 import javax.mail.Flags.Flag;
 import javax.mail.Folder;
@@ -26,7 +33,12 @@ import javax.mail.MessagingException;
 import javax.mail.NoSuchProviderException;
 import javax.mail.Session;
 import javax.mail.Store;
+import javax.mail.UIDFolder;
+import javax.mail.search.AndTerm;
 import javax.mail.search.FlagTerm;
+import javax.mail.search.SearchTerm;
+
+import org.jboss.logging.Logger;
 
 /**
  * An IMAP mail folder
@@ -36,6 +48,24 @@ import javax.mail.search.FlagTerm;
  * @author <a href="mailto:mluksa@redhat.com">Marko Luksa</a>
  */
 public class IMAPMailFolder extends MailFolder {
+    private static Logger log = Logger.getLogger(IMAPMailFolder.class);
+
+    private boolean incrementalFetch;
+
+    private ConcurrentMap<String, UIDWatermark> watermarks;
+
+    private Function<String, UIDWatermark> watermarkFactory;
+
+    private UIDWatermark watermark;
+
+    private UIDFolder uidFolder;
+
+    private long pendingUid;
+
+    private int fetchContentMaxSize;
+
+    private SearchTerm selectorTerm;
+
     /**
      * Constructor
      *
@@ -43,6 +73,33 @@ public class IMAPMailFolder extends MailFolder {
      */
     public IMAPMailFolder(MailActivationSpec spec) {
         super(spec);
+        this.incrementalFetch = spec.isIncrementalFetch();
+        // The body of a large message is only read on demand
+        int threshold = spec.getLargeMessageThreshold();
+        this.fetchContentMaxSize = threshold > 0 ? Math.min(spec.getFetchContentMaxSize(), threshold) :
+                spec.getFetchContentMaxSize();
+        this.selectorTerm = MessageSelector.parse(spec.getMessageSelector());
+    }
+
+    /**
+     * Set the UID high-water marks used by the incremental fetch
+     *
+     * @param watermarks The marks by folder full name
+     */
+    public void setWatermarks(ConcurrentMap<String, UIDWatermark> watermarks) {
+        setWatermarks(watermarks, k -> new UIDWatermark());
+    }
+
+    /**
+     * Set the UID high-water marks used by the incremental fetch
+     *
+     * @param watermarks The marks by folder full name
+     * @param factory    Creates the mark of a folder which has none yet
+     */
+    public void setWatermarks(ConcurrentMap<String, UIDWatermark> watermarks,
+                              Function<String, UIDWatermark> factory) {
+        this.watermarks = watermarks;
+        this.watermarkFactory = factory;
     }
 
     /**
@@ -53,18 +110,118 @@ public class IMAPMailFolder extends MailFolder {
      * @throws MessagingException Thrown if there is an error
      */
     protected Message[] getMessages(Folder folder) throws MessagingException {
-        Message[] result = folder.search(new FlagTerm(new Flags(Flag.SEEN), false));
+        commitPendingUid();
+
+        watermark = watermarks != null ? watermarks.computeIfAbsent(folder.getFullName(), watermarkFactory) :
+                null;
+        if (incrementalFetch && watermark != null && folder instanceof UIDFolder) {
+            uidFolder = (UIDFolder) folder;
+
+            long uidValidity = uidFolder.getUIDValidity();
+            if (watermark.isValid(uidValidity)) {
+                return track(getNewMessages(uidFolder, watermark.getLastUid()));
+            }
+
+            // First poll, or the UIDs have been invalidated: synchronize on the unseen messages
+            log.debugf("Synchronizing UID mark: uidValidity=%d, %s", uidValidity, watermark);
+            watermark.reset(uidValidity);
+            // UIDNEXT is an IMAP extension of the UIDFolder contract in this JavaMail version
+            if (folder instanceof IMAPFolder) { pendingUid = ((IMAPFolder) folder).getUIDNext() - 1; }
+        }
+
+        SearchTerm term = new FlagTerm(new Flags(Flag.SEEN), false);
+        if (selectorTerm != null) { term = new AndTerm(term, selectorTerm); }
+
+        Message[] result = folder.search(term);
+
+        if (result != null && result.length > 0) {
+            if (uidFolder != null) {
+                FetchProfile fp = new FetchProfile();
+                fp.add(UIDFolder.FetchProfileItem.UID);
+                folder.fetch(result, fp);
+            }
+            return track(result);
+        }
+
+        return track(new Message[0]);
+    }
 
-        if (result != null && result.length > 0) { return result; }
+    /**
+     * Track the messages of a check, so that the mark never passes one still in flight
+     *
+     * @param messages The messages
+     * @return The messages
+     * @throws MessagingException Thrown if there is an error
+     */
+    private Message[] track(Message[] messages) throws MessagingException {
+        if (uidFolder == null) { return messages; }
 
-        return new Message[0];
+        long[] uids = new long[messages.length];
+        for (int i = 0; i < messages.length; i++) {
+            uids[i] = uidFolder.getUID(messages[i]);
+        }
+        watermark.begin(uids);
+        return messages;
+    }
+
+    /**
+     * Get the messages above the last delivered UID
+     *
+     * @param uidFolder The folder
+     * @param lastUid   The last delivered UID
+     * @return The messages
+     * @throws MessagingException Thrown if there is an error
+     */
+    private Message[] getNewMessages(UIDFolder uidFolder, long lastUid) throws MessagingException {
+        Message[] result = uidFolder.getMessagesByUID(lastUid + 1, UIDFolder.LASTUID);
+        if (result == null || result.length == 0) { return new Message[0]; }
+
+        // "UID n:*" always matches the last message of the folder, even if its UID is below n
+        List<Message> messages = new ArrayList<>(result.length);
+        for (Message m : result) {
+            long uid = m != null ? uidFolder.getUID(m) : -1L;
+            if (uid > lastUid) {
+                messages.add(m);
+                pendingUid = Math.max(pendingUid, uid);
+            }
+        }
+
+        Message[] newMessages = messages.toArray(new Message[messages.size()]);
+        if (selectorTerm == null || newMessages.length == 0) { return newMessages; }
+
+        // The selector is searched on the server, restricted to the new messages; the mark
+        // moves past the messages which don't match once the matching ones are delivered
+        Message[] matching = ((Folder) uidFolder).search(selectorTerm, newMessages);
+        return matching != null ? matching : new Message[0];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void fetch(Folder folder, Message[] messages, FetchProfile fp) throws MessagingException {
+        super.fetch(folder, messages, fp);
+
+        if (fetchContentMaxSize > 0 && folder instanceof IMAPFolder) {
+            List<Message> small = new ArrayList<>(messages.length);
+            for (Message m : messages) {
+                int size = m.getSize();
+                if (size >= 0 && size <= fetchContentMaxSize) { small.add(m); }
+            }
+
+            if (!small.isEmpty()) {
+                FetchProfile contentProfile = new FetchProfile();
+                contentProfile.add(IMAPFolder.FetchProfileItem.MESSAGE);
+                folder.fetch(small.toArray(new Message[small.size()]), contentProfile);
+            }
+        }
     }
 
     /**
      * {@inheritDoc}
      */
     protected Store openStore(Session session) throws NoSuchProviderException {
-        return session.getStore("imap");
+        return getStore(session, "imap");
     }
 
     /**
@@ -72,6 +229,117 @@ public class IMAPMailFolder extends MailFolder {
      */
     protected void markMessageSeen(Message message) throws MessagingException {
         message.setFlag(Flag.SEEN, true);
+
+        if (uidFolder != null) { watermark.advance(uidFolder.getUID(message)); }
+    }
+
+    /**
+     * Mark a batch of messages as seen with a single STORE, the message set being sent
+     * as compact ranges
+     *
+     * @param folder   The folder
+     * @param messages The messages
+     * @throws MessagingException Thrown if there is an error
+     */
+    @Override
+    protected void markMessagesSeen(Folder folder, Message[] messages) throws MessagingException {
+        folder.setFlags(messages, new Flags(Flag.SEEN), true);
+
+        if (uidFolder != null) {
+            for (Message message : messages) {
+                watermark.advance(uidFolder.getUID(message));
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void close(boolean checkSuccessful) {
+        boolean consumed = !hasNext();
+        try {
+            // Flushes the pending flag updates, which advance the mark
+            super.close(checkSuccessful);
+
+            if (checkSuccessful && consumed && uidFolder != null && !hasFolderBacklog()) {
+                watermark.establish(pendingUid);
+            }
+        } finally {
+            uidFolder = null;
+            pendingUid = 0L;
+        }
+    }
+
+    /**
+     * Once every unseen message found by a synchronization has been delivered,
+     * the mark covers the whole folder as of that synchronization
+     */
+    private void commitPendingUid() {
+        if (uidFolder != null && !hasNext() && !hasFolderBacklog()) { watermark.establish(pendingUid); }
+        uidFolder = null;
+        pendingUid = 0L;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected boolean isFolderReusable() {
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isIdleSupported() {
+        Store store = getStore();
+        // A single folder can be idled on
+        if (!(store instanceof IMAPStore) || !(getFolder() instanceof IMAPFolder) || isMultipleFolders()) {
+            return false;
+        }
+
+        try {
+            return ((IMAPStore) store).hasCapability("IDLE");
+        } catch (MessagingException e) {
+            log.debug("Failed to check IDLE capability", e);
+            return false;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean idle() throws MessagingException {
+        Folder folder = getFolder();
+        if (!(folder instanceof IMAPFolder) || !folder.isOpen()) { return false; }
+
+        try {
+            ((IMAPFolder) folder).idle(true);
+        } catch (IllegalStateException e) {
+            // The folder was closed by abortIdle before IDLE was issued
+            return false;
+        }
+
+        return folder.isOpen();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void abortIdle() {
+        Folder folder = getFolder();
+        if (folder == null) { return; }
+
+        try {
+            // Any command on the folder terminates the IDLE; closing it also stops the idle loop
+            if (folder.isOpen()) { folder.close(false); }
+        } catch (Exception e) {
+            log.debug("Failed to abort IDLE", e);
+        }
     }
 
     /**
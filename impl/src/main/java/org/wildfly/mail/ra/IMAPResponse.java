@@ -0,0 +1,247 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wildfly.mail.ra;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import javax.mail.MessagingException;
+
+/**
+ * A response of an IMAP server read by the multiplexed IMAP engine. The literals of the
+ * response are kept apart from its text, which still holds their {n} markers
+ */
+final class IMAPResponse {
+    private final String text;
+
+    private final List<byte[]> literals;
+
+    private final String tag;
+
+    private final String rest;
+
+    /**
+     * Constructor
+     *
+     * @param text     The text of the response, without the final CRLF
+     * @param literals The literals, in order
+     */
+    IMAPResponse(String text, List<byte[]> literals) {
+        this.text = text;
+        this.literals = literals;
+
+        int space = text.indexOf(' ');
+        this.tag = space >= 0 ? text.substring(0, space) : text;
+        this.rest = space >= 0 ? text.substring(space + 1) : "";
+    }
+
+    /**
+     * Get the tag
+     *
+     * @return The value; "*" for an untagged response and "+" for a continuation request
+     */
+    String getTag() {
+        return tag;
+    }
+
+    /**
+     * Is the response untagged
+     *
+     * @return True if untagged; otherwise false
+     */
+    boolean isUntagged() {
+        return "*".equals(tag);
+    }
+
+    /**
+     * Is the response a continuation request
+     *
+     * @return True if a continuation request; otherwise false
+     */
+    boolean isContinuation() {
+        return "+".equals(tag);
+    }
+
+    /**
+     * Get the first word after the tag, e.g. OK, NO, BAD, BYE, SEARCH or the number of
+     * a message data response
+     *
+     * @return The value in upper case
+     */
+    String getStatus() {
+        int space = rest.indexOf(' ');
+        return (space >= 0 ? rest.substring(0, space) : rest).toUpperCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Is the response a status OK
+     *
+     * @return True if OK; otherwise false
+     */
+    boolean isOK() {
+        return "OK".equals(getStatus());
+    }
+
+    /**
+     * Get the text after the tag
+     *
+     * @return The value
+     */
+    String getRest() {
+        return rest;
+    }
+
+    /**
+     * Get the value of a response code, e.g. the 3857529045 of <code>* OK [UIDVALIDITY 3857529045]</code>
+     *
+     * @param code The response code
+     * @return The value; <code>null</code> if the response doesn't carry the code
+     */
+    String getResponseCode(String code) {
+        int start = rest.indexOf('[');
+        int end = rest.indexOf(']', start + 1);
+        if (start < 0 || end < 0) { return null; }
+
+        String responseCode = rest.substring(start + 1, end);
+        if (!responseCode.regionMatches(true, 0, code, 0, code.length())) { return null; }
+        if (responseCode.length() == code.length()) { return ""; }
+        if (responseCode.charAt(code.length()) != ' ') { return null; }
+
+        return responseCode.substring(code.length() + 1).trim();
+    }
+
+    /**
+     * Parse the text after the tag into tokens: atoms and quoted strings as String, NIL as
+     * <code>null</code>, literals as byte[] and parenthesized lists as List
+     *
+     * @return The tokens
+     * @throws MessagingException Thrown if the response is malformed
+     */
+    List<Object> parse() throws MessagingException {
+        Tokenizer tokenizer = new Tokenizer();
+        List<Object> tokens = tokenizer.list((char) 0);
+        return Collections.unmodifiableList(tokens);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String toString() {
+        return text;
+    }
+
+    /**
+     * Parse a number
+     *
+     * @param token The token
+     * @return The value
+     * @throws MessagingException Thrown if the token isn't a number
+     */
+    static long toLong(Object token) throws MessagingException {
+        try {
+            return Long.parseLong(String.valueOf(token));
+        } catch (NumberFormatException e) {
+            throw new MessagingException("Invalid IMAP number: " + token);
+        }
+    }
+
+    private final class Tokenizer {
+        private int pos;
+
+        private int literal;
+
+        List<Object> list(char close) throws MessagingException {
+            List<Object> tokens = new ArrayList<>();
+            while (true) {
+                while (pos < rest.length() && rest.charAt(pos) == ' ') {
+                    pos++;
+                }
+
+                if (pos >= rest.length()) {
+                    if (close != 0) { throw error("Unterminated list"); }
+                    return tokens;
+                }
+
+                char c = rest.charAt(pos);
+                if (c == close) {
+                    pos++;
+                    return tokens;
+                }
+
+                if (c == '(') {
+                    pos++;
+                    tokens.add(list(')'));
+                } else if (c == '[') {
+                    pos++;
+                    tokens.add(list(']'));
+                } else if (c == '"') {
+                    tokens.add(quoted());
+                } else if (c == '{') {
+                    tokens.add(literal());
+                } else {
+                    String atom = atom();
+                    tokens.add("NIL".equalsIgnoreCase(atom) ? null : atom);
+                }
+            }
+        }
+
+        private String quoted() throws MessagingException {
+            StringBuilder sb = new StringBuilder();
+            pos++;
+            while (pos < rest.length()) {
+                char c = rest.charAt(pos++);
+                if (c == '"') { return sb.toString(); }
+                if (c == '\\' && pos < rest.length()) { c = rest.charAt(pos++); }
+                sb.append(c);
+            }
+            throw error("Unterminated quoted string");
+        }
+
+        private byte[] literal() throws MessagingException {
+            int end = rest.indexOf('}', pos);
+            if (end < 0 || literal >= literals.size()) { throw error("Invalid literal"); }
+            pos = end + 1;
+            return literals.get(literal++);
+        }
+
+        private String atom() {
+            int start = pos;
+            int depth = 0;
+            while (pos < rest.length()) {
+                char c = rest.charAt(pos);
+                // A section is part of the atom, e.g. BODY[HEADER.FIELDS (FROM)]
+                if (c == '[') {
+                    depth++;
+                } else if (c == ']' && depth > 0) {
+                    depth--;
+                } else if (depth == 0 && (c == ' ' || c == '(' || c == ')' || c == ']')) {
+                    break;
+                }
+                pos++;
+            }
+            return rest.substring(start, pos);
+        }
+
+        private MessagingException error(String message) {
+            return new MessagingException(message + " at position " + pos + " of IMAP response: " + text);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wildfly.mail.ra;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * An incremental parser of IMAP responses. It is fed whatever a non-blocking read returned
+ * and emits each response once its last line is complete, so that no thread waits on a
+ * partially received response. Literals are copied once, into an array of their exact size
+ */
+final class IMAPResponseParser {
+    /**
+     * The maximum length of a line
+     */
+    private static final int MAX_LINE_LENGTH = 1024 * 1024;
+
+    private final StringBuilder line = new StringBuilder(128);
+
+    private final StringBuilder text = new StringBuilder(128);
+
+    private List<byte[]> literals = new ArrayList<>(1);
+
+    private byte[] literal;
+
+    private int literalPosition;
+
+    /**
+     * Constructor
+     */
+    IMAPResponseParser() {
+    }
+
+    /**
+     * Parse the bytes of a buffer
+     *
+     * @param buffer The buffer, ready to be read
+     * @param sink   The receiver of the complete responses
+     * @throws IOException Thrown if the input isn't a valid IMAP response
+     */
+    void parse(ByteBuffer buffer, Consumer<IMAPResponse> sink) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (literal != null) {
+                int n = Math.min(buffer.remaining(), literal.length - literalPosition);
+                buffer.get(literal, literalPosition, n);
+                literalPosition += n;
+
+                if (literalPosition == literal.length) {
+                    literals.add(literal);
+                    literal = null;
+                }
+                continue;
+            }
+
+            char c = (char) (buffer.get() & 0xFF);
+            if (c != '\n') {
+                if (line.length() >= MAX_LINE_LENGTH) { throw new IOException("IMAP response line too long"); }
+                line.append(c);
+                continue;
+            }
+
+            int length = line.length();
+            if (length > 0 && line.charAt(length - 1) == '\r') { line.setLength(--length); }
+            text.append(line);
+            line.setLength(0);
+
+            int size = literalSize(text);
+            if (size > 0) {
+                literal = new byte[size];
+                literalPosition = 0;
+            } else if (size == 0) {
+                literals.add(new byte[0]);
+            } else {
+                sink.accept(new IMAPResponse(text.toString(), literals));
+                text.setLength(0);
+                literals = new ArrayList<>(1);
+            }
+        }
+    }
+
+    /**
+     * Get the size of the literal announced at the end of a line, as {n}
+     *
+     * @param s The text
+     * @return The size; -1 if the line doesn't end with a literal
+     * @throws IOException Thrown if the size is invalid
+     */
+    private static int literalSize(CharSequence s) throws IOException {
+        int end = s.length() - 1;
+        if (end < 0 || s.charAt(end) != '}') { return -1; }
+
+        int start = end - 1;
+        while (start >= 0 && Character.isDigit(s.charAt(start))) {
+            start--;
+        }
+        if (start < 0 || s.charAt(start) != '{' || start == end - 1) { return -1; }
+
+        try {
+            return Integer.parseInt(s.subSequence(start + 1, end).toString());
+        } catch (NumberFormatException e) {
+            throw new IOException("IMAP literal too large: " + s.subSequence(start, end + 1));
+        }
+    }
+}
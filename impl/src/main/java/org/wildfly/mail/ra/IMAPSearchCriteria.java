@@ -0,0 +1,180 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wildfly.mail.ra;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import javax.mail.Message;
+import javax.mail.search.AndTerm;
+import javax.mail.search.BodyTerm;
+import javax.mail.search.ComparisonTerm;
+import javax.mail.search.DateTerm;
+import javax.mail.search.FromStringTerm;
+import javax.mail.search.HeaderTerm;
+import javax.mail.search.NotTerm;
+import javax.mail.search.OrTerm;
+import javax.mail.search.ReceivedDateTerm;
+import javax.mail.search.RecipientStringTerm;
+import javax.mail.search.SearchTerm;
+import javax.mail.search.SentDateTerm;
+import javax.mail.search.SizeTerm;
+import javax.mail.search.SubjectTerm;
+
+/**
+ * Writes the search terms produced by {@link MessageSelector} as IMAP SEARCH criteria,
+ * for the multiplexed IMAP engine which doesn't go through the JavaMail IMAP provider
+ */
+final class IMAPSearchCriteria {
+    private IMAPSearchCriteria() {
+    }
+
+    /**
+     * Write a search term as IMAP SEARCH criteria
+     *
+     * @param term The search term
+     * @return The criteria
+     * @throws IllegalArgumentException Thrown if the term can't be sent without a literal,
+     *                                  e.g. a non ASCII string
+     */
+    static String toCriteria(SearchTerm term) {
+        StringBuilder sb = new StringBuilder();
+        write(term, sb);
+        return sb.toString();
+    }
+
+    private static void write(SearchTerm term, StringBuilder sb) {
+        if (term instanceof AndTerm) {
+            sb.append('(');
+            SearchTerm[] terms = ((AndTerm) term).getTerms();
+            for (int i = 0; i < terms.length; i++) {
+                if (i > 0) { sb.append(' '); }
+                write(terms[i], sb);
+            }
+            sb.append(')');
+        } else if (term instanceof OrTerm) {
+            SearchTerm[] terms = ((OrTerm) term).getTerms();
+            // OR is binary in IMAP
+            for (int i = 0; i < terms.length - 1; i++) {
+                sb.append("OR ");
+                write(terms[i], sb);
+                sb.append(' ');
+            }
+            write(terms[terms.length - 1], sb);
+        } else if (term instanceof NotTerm) {
+            sb.append("NOT ");
+            write(((NotTerm) term).getTerm(), sb);
+        } else if (term instanceof FromStringTerm) {
+            sb.append("FROM ").append(quote(((FromStringTerm) term).getPattern()));
+        } else if (term instanceof RecipientStringTerm) {
+            RecipientStringTerm recipient = (RecipientStringTerm) term;
+            Message.RecipientType type = recipient.getRecipientType();
+            String key = type == Message.RecipientType.CC ? "CC" : type == Message.RecipientType.BCC ? "BCC" : "TO";
+            sb.append(key).append(' ').append(quote(recipient.getPattern()));
+        } else if (term instanceof SubjectTerm) {
+            sb.append("SUBJECT ").append(quote(((SubjectTerm) term).getPattern()));
+        } else if (term instanceof BodyTerm) {
+            sb.append("BODY ").append(quote(((BodyTerm) term).getPattern()));
+        } else if (term instanceof HeaderTerm) {
+            HeaderTerm header = (HeaderTerm) term;
+            sb.append("HEADER ").append(quote(header.getHeaderName())).append(' ').append(quote(header.getPattern()));
+        } else if (term instanceof SizeTerm) {
+            writeSize((SizeTerm) term, sb);
+        } else if (term instanceof SentDateTerm) {
+            writeDate("SENT", (DateTerm) term, sb);
+        } else if (term instanceof ReceivedDateTerm) {
+            writeDate("", (DateTerm) term, sb);
+        } else {
+            throw new IllegalArgumentException("Unsupported search term: " + term);
+        }
+    }
+
+    private static void writeSize(SizeTerm term, StringBuilder sb) {
+        long size = term.getNumber();
+        switch (term.getComparison()) {
+            case ComparisonTerm.LT:
+                sb.append("SMALLER ").append(size);
+                break;
+            case ComparisonTerm.LE:
+                sb.append("SMALLER ").append(size + 1);
+                break;
+            case ComparisonTerm.GT:
+                sb.append("LARGER ").append(size);
+                break;
+            case ComparisonTerm.GE:
+                sb.append("LARGER ").append(Math.max(size - 1, 0));
+                break;
+            case ComparisonTerm.EQ:
+                sb.append("(NOT LARGER ").append(size).append(" NOT SMALLER ").append(size).append(')');
+                break;
+            default:
+                sb.append("OR LARGER ").append(size).append(" SMALLER ").append(size);
+                break;
+        }
+    }
+
+    private static void writeDate(String prefix, DateTerm term, StringBuilder sb) {
+        String date = formatDate(term.getDate());
+        switch (term.getComparison()) {
+            case ComparisonTerm.LT:
+                sb.append(prefix).append("BEFORE ").append(date);
+                break;
+            case ComparisonTerm.LE:
+                sb.append("OR ").append(prefix).append("BEFORE ").append(date).append(' ')
+                        .append(prefix).append("ON ").append(date);
+                break;
+            case ComparisonTerm.GT:
+                sb.append('(').append(prefix).append("SINCE ").append(date).append(" NOT ")
+                        .append(prefix).append("ON ").append(date).append(')');
+                break;
+            case ComparisonTerm.GE:
+                sb.append(prefix).append("SINCE ").append(date);
+                break;
+            case ComparisonTerm.EQ:
+                sb.append(prefix).append("ON ").append(date);
+                break;
+            default:
+                sb.append("NOT ").append(prefix).append("ON ").append(date);
+                break;
+        }
+    }
+
+    private static String formatDate(Date date) {
+        return new SimpleDateFormat("d-MMM-yyyy", Locale.ENGLISH).format(date);
+    }
+
+    /**
+     * Quote a string
+     *
+     * @param s The string
+     * @return The quoted string
+     * @throws IllegalArgumentException Thrown if the string needs a literal
+     */
+    static String quote(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c > 0x7E || c < 0x20) { throw new IllegalArgumentException("Not a quotable IMAP string: " + s); }
+            if (c == '"' || c == '\\') { sb.append('\\'); }
+            sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -43,6 +43,6 @@ public class IMAPsMailFolder extends IMAPMailFolder {
      */
     @Override
     protected Store openStore(Session session) throws NoSuchProviderException {
-        return session.getStore("imaps");
+        return getStore(session, "imaps");
     }
 }
@@ -19,10 +19,26 @@
 package org.wildfly.mail.ra;
 
 import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.mail.Message;
+import javax.mail.MessagingException;
 import javax.resource.spi.endpoint.MessageEndpoint;
 import javax.resource.spi.endpoint.MessageEndpointFactory;
 import javax.resource.spi.work.Work;
+import javax.resource.spi.work.WorkException;
+import javax.resource.spi.work.WorkManager;
 
 import org.jboss.logging.Logger;
 
@@ -33,7 +49,7 @@ import org.jboss.logging.Logger;
  * @author <a href="mailto:jesper.pedersen@jboss.org">Jesper Pedersen</a>
  * @author <a href="mailto:mluksa@redhat.com">Marko Luksa</a>
  */
-public class MailActivation implements Comparable, Work {
+public class MailActivation implements Delayed, Work {
     /**
      * The logger
      */
@@ -44,15 +60,96 @@ public class MailActivation implements Comparable, Work {
      */
     public static final Method ON_MESSAGE;
 
+    /**
+     * The MailBatchListener.onMessages method
+     */
+    public static final Method ON_MESSAGES;
+
     /**
      * A flag indicated if the unit of work has been released
      */
-    private boolean released;
+    private volatile boolean released;
+
+    /**
+     * A flag indicating if the endpoint has been deactivated
+     */
+    private volatile boolean deactivated;
+
+    /**
+     * A flag indicating if the activation is waiting in the NewMsgsWorker queue
+     */
+    private final AtomicBoolean queued = new AtomicBoolean();
+
+    /**
+     * Guards the running check and the action to run after it
+     */
+    private final Object checkLock = new Object();
+
+    /**
+     * The number of running checks and pending take overs; guarded by checkLock
+     */
+    private int busy;
+
+    /**
+     * The action to run once the running check, or the pending take over, has completed;
+     * guarded by checkLock
+     */
+    private Runnable afterCheck;
+
+    /**
+     * The asynchronous check started by the last run, until the worker takes it
+     */
+    private volatile CompletableFuture<Void> pendingCheck;
+
+    /**
+     * The folder currently blocked in IMAP IDLE, if any
+     */
+    private volatile MailFolder idleFolder;
+
+    /**
+     * Notified on release, to end the linger of a partial batch
+     */
+    private final Object lingerLock = new Object();
+
+    /**
+     * Did the last check leave new messages in the folder
+     */
+    private volatile boolean backlog;
+
+    /**
+     * The current adaptive polling interval in MS; 0 until the first check
+     */
+    private volatile long adaptiveInterval;
+
+    /**
+     * The number of messages delivered by the current check
+     */
+    private int delivered;
+
+    /**
+     * The IMAP UID high-water marks for the incremental fetch, by folder full name
+     */
+    private final ConcurrentHashMap<String, UIDWatermark> watermarks = new ConcurrentHashMap<>();
+
+    /**
+     * The UIDLs of the delivered POP3 messages, when the maildrop isn't flushed
+     */
+    private volatile DeliveredUIDLs deliveredUIDLs;
+
+    /**
+     * The checkpoint store the marks and the UIDLs are recorded to; <code>null</code> if none
+     */
+    private volatile CheckpointStore checkpoints;
+
+    /**
+     * The checkpoint key of the mailbox, without the folder
+     */
+    private volatile String checkpointKey;
 
     /**
      * The time at which the next new messages check should be performed
      */
-    private long nextNewMsgCheckTime;
+    private volatile long nextNewMsgCheckTime;
 
     /**
      * The activation spec for the mail folder
@@ -64,9 +161,50 @@ public class MailActivation implements Comparable, Work {
      */
     protected MessageEndpointFactory endpointFactory;
 
+    /**
+     * The resource adapter
+     */
+    protected MailResourceAdapter ra;
+
+    /**
+     * Does the endpoint receive the messages in batches
+     */
+    private final boolean batchDelivery;
+
+    /**
+     * The mail folder reused by the checks; only used by run
+     */
+    private MailFolder cachedFolder;
+
+    /**
+     * The number of property changes of the spec when the mail folder was created
+     */
+    private int cachedModCount;
+
+    /**
+     * The multiplexed IMAP engine of the mail folder
+     */
+    private IMAPEngine cachedEngine;
+
+    /**
+     * The poll group; <code>null</code> if the activation polls on its own
+     */
+    private volatile PollGroup pollGroup;
+
+    /**
+     * The spool of the large messages; <code>null</code> if disabled
+     */
+    private final MessageSpool spool;
+
+    /**
+     * The metrics
+     */
+    private final MailActivationMetrics metrics;
+
     static {
         try {
             ON_MESSAGE = MailListener.class.getMethod("onMessage", Message.class);
+            ON_MESSAGES = MailBatchListener.class.getMethod("onMessages", Message[].class);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -79,8 +217,156 @@ public class MailActivation implements Comparable, Work {
      * @param spec            The mail activation spec
      */
     public MailActivation(MessageEndpointFactory endpointFactory, MailActivationSpec spec) {
+        this(null, endpointFactory, spec);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param ra              The resource adapter
+     * @param endpointFactory The message endpoint factory
+     * @param spec            The mail activation spec
+     */
+    public MailActivation(MailResourceAdapter ra, MessageEndpointFactory endpointFactory, MailActivationSpec spec) {
+        this.ra = ra;
         this.endpointFactory = endpointFactory;
         this.spec = spec;
+        this.batchDelivery = isBatchEndpoint(endpointFactory);
+        this.spool = spec != null && spec.getSpoolThreshold() > 0 ?
+                new MessageSpool(spec.getSpoolDirectory(), spec.getSpoolThreshold()) : null;
+        this.metrics = new MailActivationMetrics(spec, ra != null ? ra.getNewMsgsWorker() : null);
+    }
+
+    /**
+     * Does the endpoint implement MailBatchListener
+     *
+     * @param endpointFactory The message endpoint factory
+     * @return True if the messages are delivered in batches; otherwise false
+     */
+    private static boolean isBatchEndpoint(MessageEndpointFactory endpointFactory) {
+        if (endpointFactory == null) { return false; }
+
+        try {
+            Class<?> endpointClass = endpointFactory.getEndpointClass();
+            return endpointClass != null && MailBatchListener.class.isAssignableFrom(endpointClass);
+        } catch (AbstractMethodError | UnsupportedOperationException e) {
+            // The endpoint class is only known since JCA 1.7
+            return false;
+        }
+    }
+
+    /**
+     * Get the poll group
+     *
+     * @return The value; <code>null</code> if the activation polls on its own
+     */
+    PollGroup getPollGroup() {
+        return pollGroup;
+    }
+
+    /**
+     * Set the poll group
+     *
+     * @param pollGroup The value
+     */
+    void setPollGroup(PollGroup pollGroup) {
+        this.pollGroup = pollGroup;
+    }
+
+    /**
+     * Run an action once the running check of the activation has completed, or right away
+     * if none is running. An activation about to take over the polling of its poll group
+     * counts as running until it has
+     *
+     * @param action The action
+     */
+    void afterCheck(Runnable action) {
+        synchronized (checkLock) {
+            if (busy > 0) {
+                afterCheck = action;
+                return;
+            }
+        }
+        action.run();
+    }
+
+    /**
+     * Hold the actions to run after the checks of the activation until it has taken over
+     * the polling of its poll group
+     */
+    void holdForTakeOver() {
+        synchronized (checkLock) {
+            busy++;
+        }
+    }
+
+    /**
+     * End a check, or a take over, running the action waiting for it if it was the last one
+     */
+    private void endCheck() {
+        Runnable action;
+        synchronized (checkLock) {
+            if (--busy > 0) { return; }
+
+            action = afterCheck;
+            afterCheck = null;
+        }
+        if (action != null) { action.run(); }
+    }
+
+    /**
+     * Take over the polling of a poll group from its previous poller, and the UID marks
+     * and delivered UIDLs it reached. Called once the last check of the previous poller has
+     * completed, and after {@link #holdForTakeOver()}
+     *
+     * @param previous The previous poller
+     */
+    void takeOver(MailActivation previous) {
+        try {
+            checkpoints = previous.checkpoints;
+            checkpointKey = previous.checkpointKey;
+            for (Map.Entry<String, UIDWatermark> entry : previous.watermarks.entrySet()) {
+                UIDWatermark mark = entry.getValue();
+                UIDWatermark copy = newWatermark(entry.getKey());
+                if (checkpoints == null) {
+                    copy.reset(mark.getUidValidity());
+                    if (mark.isValid(mark.getUidValidity())) { copy.establish(mark.getLastUid()); }
+                }
+                watermarks.put(entry.getKey(), copy);
+            }
+            DeliveredUIDLs uidls = previous.deliveredUIDLs;
+            deliveredUIDLs = uidls != null ? uidls.copy() : null;
+        } finally {
+            endCheck();
+        }
+    }
+
+    /**
+     * Create the UID mark of a folder, recovered from the checkpoints if any
+     *
+     * @param folder The folder full name
+     * @return The mark
+     */
+    private UIDWatermark newWatermark(String folder) {
+        CheckpointStore store = checkpoints;
+        return store != null ? new UIDWatermark(store, checkpointKey + folder) : new UIDWatermark();
+    }
+
+    /**
+     * Make the delivery progress recorded so far durable
+     */
+    private void syncCheckpoints() {
+        CheckpointStore store = checkpoints;
+        if (store != null) { store.sync(); }
+    }
+
+    /**
+     * Get the metrics
+     *
+     * @return The value
+     */
+    public MailActivationMetrics getMetrics() {
+        return metrics;
     }
 
     /**
@@ -98,16 +384,155 @@ public class MailActivation implements Comparable, Work {
      * @param now The current time
      */
     public void updateNextNewMsgCheckTime(long now) {
-        nextNewMsgCheckTime = now + spec.getPollingInterval();
+        if (nextNewMsgCheckTime == 0L) {
+            // First check: spread the activations deployed together across the interval
+            nextNewMsgCheckTime = now + getSpreadOffset(getPollingInterval());
+        } else if (backlog) {
+            // A backlog is drained in max messages chunks, queued behind the checks already due
+            nextNewMsgCheckTime = now;
+        } else {
+            nextNewMsgCheckTime = now + getPollingInterval() + getJitter();
+        }
+
+        // The checks of an account whose server is unreachable wait for its circuit to close
+        CircuitBreaker breaker = getCircuitBreaker();
+        if (breaker != null) { nextNewMsgCheckTime = Math.max(nextNewMsgCheckTime, breaker.getRetryTime()); }
+    }
+
+    /**
+     * Get the circuit breaker of the account on the mail server
+     *
+     * @return The value; <code>null</code> if none
+     */
+    private CircuitBreaker getCircuitBreaker() {
+        return ra != null && spec != null ? ra.getCircuitBreaker(spec) : null;
+    }
+
+    /**
+     * Are the checks of the mail server currently skipped
+     *
+     * @param now The current time
+     * @return True if its circuit is open; otherwise false
+     */
+    boolean isCircuitOpen(long now) {
+        CircuitBreaker breaker = getCircuitBreaker();
+        return breaker != null && breaker.isOpen(now);
+    }
+
+    /**
+     * Get the deterministic offset of the first check within the polling interval,
+     * derived from the mailbox the activation watches
+     *
+     * @param interval The polling interval
+     * @return The value in MS
+     */
+    private long getSpreadOffset(long interval) {
+        if (spec == null || interval <= 0) { return 0L; }
+
+        String identity = spec.getMailServer() + "|" + spec.getPort() + "|" + spec.getUserName() + "|" +
+                spec.getMailFolder();
+        int hash = identity.hashCode();
+        // Spread the bits, so that similar identities land far apart
+        hash ^= (hash >>> 16);
+        hash *= 0x85ebca6b;
+        hash ^= (hash >>> 13);
+
+        return Math.floorMod((long) hash, interval);
+    }
+
+    /**
+     * Get a random delay up to the polling jitter of the spec
+     *
+     * @return The value in MS
+     */
+    private long getJitter() {
+        Long jitter = spec.getPollingJitter();
+        return jitter != null && jitter > 0 ? ThreadLocalRandom.current().nextLong(jitter + 1) : 0L;
+    }
+
+    /**
+     * Get the interval until the next check
+     *
+     * @return The value in MS
+     */
+    private long getPollingInterval() {
+        long interval = adaptiveInterval;
+        return spec.isAdaptivePolling() && interval > 0 ? interval : spec.getPollingInterval();
+    }
+
+    /**
+     * Adapt the polling interval to the outcome of a check: shrink it toward the min polling
+     * interval when messages were delivered, back off toward the max polling interval otherwise
+     *
+     * @param messages The number of messages delivered by the check
+     */
+    private void adaptPollingInterval(int messages) {
+        if (!spec.isAdaptivePolling()) { return; }
+
+        long min = spec.getMinPollingInterval();
+        long max = spec.getMaxPollingInterval();
+        double factor = spec.getPollingBackoffFactor();
+        long interval = adaptiveInterval > 0 ? adaptiveInterval : spec.getPollingInterval();
+
+        if (messages > 0) {
+            interval = (long) (interval / factor);
+        } else {
+            interval = (long) Math.min(interval * factor, (double) max);
+        }
+
+        adaptiveInterval = Math.max(min, Math.min(max, interval));
+        log.tracef("Adaptive polling interval: %d ms after %d messages", adaptiveInterval, messages);
     }
 
     /**
      * {@inheritDoc}
      */
-    public int compareTo(Object obj) {
-        MailActivation ma = (MailActivation) obj;
+    public long getDelay(TimeUnit unit) {
+        return unit.convert(nextNewMsgCheckTime - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
 
-        return (int) (nextNewMsgCheckTime - ma.getNextNewMsgCheckTime());
+    /**
+     * {@inheritDoc}
+     */
+    public int compareTo(Delayed obj) {
+        if (obj instanceof MailActivation) {
+            return Long.compare(nextNewMsgCheckTime, ((MailActivation) obj).getNextNewMsgCheckTime());
+        }
+
+        return Long.compare(getDelay(TimeUnit.MILLISECONDS), obj.getDelay(TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Mark the activation as waiting in the NewMsgsWorker queue
+     *
+     * @return False if it already is; otherwise true
+     */
+    boolean markQueued() {
+        return queued.compareAndSet(false, true);
+    }
+
+    /**
+     * Mark the activation as taken from the NewMsgsWorker queue
+     */
+    void unmarkQueued() {
+        queued.set(false);
+    }
+
+    /**
+     * Is the endpoint deactivated ?
+     *
+     * @return True if deactivated; otherwise false
+     */
+    public boolean isDeactivated() {
+        return deactivated;
+    }
+
+    /**
+     * Deactivate the endpoint: stop the current check, if any, and never schedule another one
+     */
+    public void deactivate() {
+        deactivated = true;
+        release();
     }
 
     /**
@@ -125,32 +550,479 @@ public class MailActivation implements Comparable, Work {
     public void release() {
         released = true;
 
+        MailFolder folder = idleFolder;
+        if (folder != null) { folder.abortIdle(); }
+
+        synchronized (lingerLock) {
+            lingerLock.notifyAll();
+        }
+
         log.tracef("released");
     }
 
     /**
-     * {@inheritDoc}
+     * Take the asynchronous check started by the last run, if any
+     *
+     * @return The check, completed once it is done; <code>null</code> if the run completed the check
+     */
+    CompletableFuture<Void> takePendingCheck() {
+        CompletableFuture<Void> check = pendingCheck;
+        pendingCheck = null;
+        return check;
+    }
+
+    /**
+     * Run a check. The check of a multiplexed IMAP folder completes asynchronously,
+     * see {@link #takePendingCheck()}
      */
     public void run() {
         released = false;
+        backlog = false;
 
+        synchronized (checkLock) {
+            // Scheduled before the endpoint was deactivated; deactivate sets the flag before releasing
+            if (deactivated) {
+                log.tracef("Deactivated, skipping the check: spec=%s", spec);
+                return;
+            }
+            busy++;
+        }
+
+        CompletableFuture<Void> check = null;
+        try {
+            check = check();
+        } finally {
+            if (check != null) {
+                pendingCheck = check.whenComplete((r, t) -> endCheck());
+            } else {
+                endCheck();
+            }
+        }
+    }
+
+    /**
+     * Check the folders of the spec for new messages, and deliver them
+     *
+     * @return The check if it completes asynchronously; otherwise <code>null</code>
+     */
+    private CompletableFuture<Void> check() {
         log.tracef("Begin new messages check");
 
+        CircuitBreaker breaker = getCircuitBreaker();
+        if (breaker != null && !breaker.tryAcquire(System.currentTimeMillis())) {
+            log.tracef("Mail server unreachable, skipping the check: spec=%s", spec);
+            return null;
+        }
+
+        MailFolder mailFolder = null;
+        boolean connected = false;
         try {
-            MailFolder mailFolder = MailFolder.getInstance(spec);
+            mailFolder = getMailFolder();
+            if (mailFolder instanceof MultiplexedIMAPMailFolder) {
+                return checkAsync((MultiplexedIMAPMailFolder) mailFolder, breaker);
+            }
+
             mailFolder.open();
+            connected = true;
+            if (breaker != null) { breaker.success(); }
+
+            deliverAll(mailFolder);
+        } catch (Exception e) {
+            checkFailed(mailFolder, connected, breaker, e);
+        }
+
+        syncCheckpoints();
+        log.tracef("End new messages check");
+        return null;
+    }
+
+    /**
+     * Check a multiplexed IMAP folder. The search and the fetch run as continuations on the event
+     * loop of the connection, so that no thread waits on the server; the messages found are then
+     * delivered from a thread of the check executor or of the work manager. A check which finds
+     * no message completes on the event loop
+     *
+     * @param mailFolder The mail folder
+     * @param breaker    The circuit breaker; <code>null</code> if none
+     * @return The check, completed once its messages have been delivered
+     */
+    private CompletableFuture<Void> checkAsync(MultiplexedIMAPMailFolder mailFolder, CircuitBreaker breaker) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        mailFolder.openAsync().whenComplete((r, t) -> {
+            if (t != null) {
+                checkFailed(mailFolder, false, breaker, MultiplexedIMAPMailFolder.toMessagingException(t));
+                completeAsync(done);
+                return;
+            }
+
+            if (breaker != null) { breaker.success(); }
+
+            CheckCompletion completion = new CheckCompletion(mailFolder, breaker, done);
+            if (!mailFolder.hasNext()) {
+                completion.run();
+                return;
+            }
+
+            try {
+                schedule(completion);
+            } catch (WorkException e) {
+                // The messages are found again by the next check
+                checkFailed(mailFolder, true, breaker, e);
+                completeAsync(done);
+            }
+        });
+        return done;
+    }
+
+    /**
+     * Complete an asynchronous check
+     *
+     * @param done The check
+     */
+    private void completeAsync(CompletableFuture<Void> done) {
+        try {
+            syncCheckpoints();
+            log.tracef("End new messages check");
+        } finally {
+            done.complete(null);
+        }
+    }
+
+    /**
+     * Schedule the delivery of the messages found by an asynchronous check
+     *
+     * @param work The work
+     * @throws WorkException Thrown if no thread is available
+     */
+    private void schedule(Work work) throws WorkException {
+        Executor executor = ra.getCheckExecutor();
+        if (executor != null) {
+            try {
+                executor.execute(work);
+                return;
+            } catch (RejectedExecutionException e) {
+                log.tracef("Scheduling the delivery on the work manager: %s", e);
+            }
+        }
+
+        ra.getWorkManager().scheduleWork(work);
+    }
+
+    /**
+     * Deliver the messages of an open folder, and of the other folders of the spec, and close it
+     *
+     * @param mailFolder The mail folder
+     * @throws Exception Thrown if an error occurs
+     */
+    void deliverAll(MailFolder mailFolder) throws Exception {
+        delivered = 0;
+
+        // The folders of the spec are checked in sequence, over the same connection
+        deliverMsgs(mailFolder);
+        while (!released && mailFolder.nextFolder()) {
+            deliverMsgs(mailFolder);
+        }
 
+        if ("idle".equals(spec.getDeliveryMode())) {
+            idle(mailFolder);
+        }
+
+        backlog = mailFolder.hasBacklog() && !released;
+        mailFolder.close();
+
+        adaptPollingInterval(delivered);
+        metrics.pollCompleted(true);
+    }
+
+    /**
+     * Handle the failure of a check
+     *
+     * @param mailFolder The mail folder; <code>null</code> if it couldn't be created
+     * @param connected  Was the folder open
+     * @param breaker    The circuit breaker; <code>null</code> if none
+     * @param e          The failure
+     */
+    private void checkFailed(MailFolder mailFolder, boolean connected, CircuitBreaker breaker, Exception e) {
+        if (breaker != null && !connected && CircuitBreaker.isConnectFailure(e)) {
+            // Logged by the circuit breaker, once per outage
+            breaker.failure(System.currentTimeMillis(), e);
+        } else {
+            // The server answered, e.g. with an authentication failure
+            if (breaker != null && !connected) { breaker.success(); }
+            log.error("Failed to execute folder check, spec=" + spec, e);
+        }
+        backlog = false;
+        adaptPollingInterval(0);
+        metrics.pollCompleted(false);
+
+        if (mailFolder != null) { abort(mailFolder); }
+    }
+
+    /**
+     * Get the mail folder of the spec. It is created by the first check, with its session and
+     * its parsed selector, and reused by the following checks until a property of the spec,
+     * or the engine serving it, changes
+     *
+     * @return The mail folder
+     */
+    private MailFolder getMailFolder() {
+        IMAPEngine engine = ra != null && spec.isMultiplexed() ? ra.getIMAPEngine() : null;
+        int modCount = spec.getModCount();
+
+        MailFolder mailFolder = cachedFolder;
+        if (mailFolder == null || modCount != cachedModCount || engine != cachedEngine) {
+            mailFolder = MailFolder.getInstance(spec, engine);
+            mailFolder.setMetrics(metrics);
+            cachedFolder = mailFolder;
+            cachedModCount = modCount;
+            cachedEngine = engine;
+
+            // Only the activations which keep a delivery progress open the checkpoint store
+            boolean progress = mailFolder instanceof POP3MailFolder ? !spec.isFlush() : spec.isIncrementalFetch();
+            CheckpointStore store = ra != null && progress ? ra.getCheckpointStore(spec) : null;
+            String key = CheckpointStore.getKey(spec, "");
+            if (store != checkpoints || !key.equals(checkpointKey)) {
+                // The marks and the UIDLs belong to another mailbox
+                checkpoints = store;
+                checkpointKey = key;
+                watermarks.clear();
+                deliveredUIDLs = null;
+            }
+
+            if (mailFolder instanceof POP3MailFolder && !spec.isFlush()) {
+                DeliveredUIDLs uidls = deliveredUIDLs;
+                if (uidls == null) {
+                    String uidlKey = key + spec.getMailFolder();
+                    // Without a checkpoint store, a restart mustn't deliver the whole maildrop again
+                    Path file = store == null && ra != null ? DeliveredUIDLs.getFile(spec, uidlKey) : null;
+                    if (file != null) { log.debugf("Keeping the delivered UIDLs of %s in %s", uidlKey, file); }
+
+                    uidls = new DeliveredUIDLs(store, file, uidlKey);
+                    deliveredUIDLs = uidls;
+                }
+                ((POP3MailFolder) mailFolder).setDeliveredUIDLs(uidls);
+            }
+        }
+
+        mailFolder.setStorePool(ra != null ? ra.getStorePool() : null);
+        if (mailFolder instanceof IMAPMailFolder) {
+            ((IMAPMailFolder) mailFolder).setWatermarks(watermarks, this::newWatermark);
+        }
+        if (mailFolder instanceof MultiplexedIMAPMailFolder) {
+            ((MultiplexedIMAPMailFolder) mailFolder).setWatermark(
+                    watermarks.computeIfAbsent(spec.getMailFolder(), this::newWatermark));
+        }
+        return mailFolder;
+    }
+
+    /**
+     * Close a folder after a failure, without returning its store to the pool
+     *
+     * @param mailFolder The mail folder
+     */
+    private void abort(MailFolder mailFolder) {
+        try {
+            mailFolder.close(false);
+        } catch (RuntimeException e) {
+            log.debug("Failed to close folder", e);
+        }
+    }
+
+    /**
+     * Deliver the pending messages of a folder, concurrently up to the delivery
+     * concurrency of the spec, and in batches if the endpoint is a MailBatchListener
+     *
+     * @param mailFolder The mail folder
+     * @throws MessagingException   Thrown if a delivered message couldn't be marked
+     * @throws InterruptedException Thrown if interrupted while waiting for a delivery slot
+     */
+    private void deliverMsgs(MailFolder mailFolder) throws MessagingException, InterruptedException {
+        int concurrency = spec.getDeliveryConcurrency();
+        Executor executor = ra != null && concurrency > 1 ? ra.getDeliveryExecutor() : null;
+        WorkManager workManager = ra != null && concurrency > 1 && executor == null ? ra.getWorkManager() : null;
+
+        if (!batchDelivery && workManager == null && executor == null) {
+            // Marked once delivered, so that a failure in between delivers it again rather than loses it
             while (mailFolder.hasNext()) {
-                Message msg = (Message) mailFolder.next();
-                deliverMsg(msg);
+                Message msg = mailFolder.nextMessage();
+                deliver(new Message[] {msg});
+                delivered++;
+                mailFolder.markDelivered(msg);
             }
+            return;
+        }
 
-            mailFolder.close();
-        } catch (Exception e) {
-            log.error("Failed to execute folder check, spec=" + spec);
+        // The folder is closed after the check, so a partial batch doesn't linger
+        Deliveries deliveries = new Deliveries(mailFolder, concurrency, executor, workManager);
+        try {
+            deliveries.addAll();
+            deliveries.flush();
+        } finally {
+            deliveries.await();
         }
+    }
 
-        log.tracef("End new messages check");
+    /**
+     * Hand a message, or a batch of messages, over to a delivery
+     *
+     * @param mailFolder  The mail folder
+     * @param batch       The messages
+     * @param permits     The delivery slots
+     * @param executor    The executor; <code>null</code> for the work manager
+     * @param workManager The work manager; <code>null</code> to deliver from the polling thread
+     * @throws InterruptedException Thrown if interrupted while waiting for a delivery slot
+     */
+    private void dispatch(MailFolder mailFolder, List<Message> batch, Semaphore permits, Executor executor,
+                          WorkManager workManager) throws InterruptedException {
+        Message[] msgs = batch.toArray(new Message[batch.size()]);
+        permits.acquire();
+        delivered += msgs.length;
+
+        DeliveryWork work = new DeliveryWork(mailFolder, msgs, permits);
+        // The work releases the permit once it has run; until it is handed over, it is released here
+        boolean handedOver = false;
+        try {
+            if (executor != null) {
+                try {
+                    executor.execute(work);
+                    handedOver = true;
+                    return;
+                } catch (RejectedExecutionException e) {
+                    log.tracef("Delivering inline: %s", e);
+                }
+            }
+
+            if (workManager != null) {
+                try {
+                    workManager.startWork(work, WorkManager.IMMEDIATE, null, null);
+                    handedOver = true;
+                    return;
+                } catch (WorkException e) {
+                    // No thread available right now, deliver from the polling thread
+                    log.tracef("Delivering inline: %s", e);
+                }
+            }
+
+            handedOver = true;
+            work.run();
+        } finally {
+            if (!handedOver) { permits.release(); }
+        }
+    }
+
+    /**
+     * Keep the folder open and deliver new messages as the server pushes them
+     * through IMAP IDLE, until the activation is released or the connection is lost.
+     * A partial batch waits up to the batch linger of the spec for the messages pushed next.
+     * Falls back to polling if the server doesn't support IDLE
+     *
+     * @param mailFolder The open mail folder
+     * @throws MessagingException   Thrown if an error occurs
+     * @throws InterruptedException Thrown if interrupted while waiting for deliveries
+     */
+    private void idle(MailFolder mailFolder) throws MessagingException, InterruptedException {
+        if (!mailFolder.isIdleSupported()) {
+            log.debugf("IDLE not supported, falling back to polling: spec=%s", spec);
+            return;
+        }
+
+        int concurrency = spec.getDeliveryConcurrency();
+        Executor executor = ra != null && concurrency > 1 ? ra.getDeliveryExecutor() : null;
+        WorkManager workManager = ra != null && concurrency > 1 && executor == null ? ra.getWorkManager() : null;
+        long linger = batchDelivery ? spec.getBatchLinger() : 0L;
+
+        Deliveries deliveries = new Deliveries(mailFolder, concurrency, executor, workManager);
+        idleFolder = mailFolder;
+        try {
+            // A release before the folder was published couldn't abort the IDLE
+            if (released) { return; }
+
+            while (!released) {
+                if (!mailFolder.hasBacklog()) {
+                    if (deliveries.isBatchPending()) {
+                        // The messages pushed in the meantime are found by the refresh, and join the batch
+                        linger(deliveries.getBatchStart() + linger - System.currentTimeMillis());
+                    } else if (!mailFolder.idle()) {
+                        break;
+                    }
+                    if (released) { break; }
+                }
+
+                // The messages in flight are marked before the search, so that it doesn't find them again
+                deliveries.await();
+                mailFolder.refresh();
+                deliveries.addAll();
+
+                if (System.currentTimeMillis() - deliveries.getBatchStart() >= linger) { deliveries.flush(); }
+            }
+
+            // The partial batch of a released activation is found again by the next check
+            if (!released) { deliveries.flush(); }
+        } finally {
+            idleFolder = null;
+            deliveries.await();
+        }
+    }
+
+    /**
+     * Wait for the linger of a partial batch to elapse, or for the activation to be released
+     *
+     * @param millis The time left in MS
+     * @throws InterruptedException Thrown if interrupted
+     */
+    private void linger(long millis) throws InterruptedException {
+        synchronized (lingerLock) {
+            if (!released && millis > 0) { lingerLock.wait(millis); }
+        }
+    }
+
+    /**
+     * Deliver messages to the endpoint, and to the endpoints of the other members of the poll
+     * group, if any. The messages are spooled once for all the endpoints
+     *
+     * @param messages The messages
+     */
+    private void deliver(Message[] messages) {
+        // Spooled before the endpoint is created, so that it isn't held during the transfer
+        Message[] msgs = messages;
+        if (spool != null) {
+            msgs = new Message[messages.length];
+            for (int i = 0; i < messages.length; i++) {
+                msgs[i] = spool.spool(messages[i]);
+            }
+        }
+
+        try {
+            PollGroup group = pollGroup;
+            if (group == null) {
+                deliverTo(msgs);
+            } else {
+                for (MailActivation member : group.getMembers()) {
+                    if (member == this || !member.isDeactivated()) { member.deliverTo(msgs); }
+                }
+            }
+        } finally {
+            if (spool != null) {
+                for (Message msg : msgs) {
+                    spool.release(msg);
+                }
+            }
+        }
+    }
+
+    /**
+     * Deliver messages to the endpoint, in a batch if it is a MailBatchListener
+     *
+     * @param msgs The messages
+     */
+    private void deliverTo(Message[] msgs) {
+        if (batchDelivery) {
+            deliverBatch(msgs);
+        } else {
+            for (Message msg : msgs) {
+                deliverMsg(msg);
+            }
+        }
     }
 
     /**
@@ -163,10 +1035,17 @@ public class MailActivation implements Comparable, Work {
         try {
             endpoint = endpointFactory.createEndpoint(null);
             if (endpoint != null && endpoint instanceof MailListener) {
-                log.tracef("deliverMsg: msg subject=", msg.getSubject());
+                if (log.isTraceEnabled()) { log.tracef("deliverMsg: msg subject=%s", msg.getSubject()); }
 
                 MailListener listener = (MailListener) endpoint;
-                listener.onMessage(msg);
+                long start = System.nanoTime();
+                boolean success = false;
+                try {
+                    listener.onMessage(msg);
+                    success = true;
+                } finally {
+                    metrics.delivered(System.nanoTime() - start, success);
+                }
             }
         } catch (Throwable e) {
             log.debug("onMessage delivery failure", e);
@@ -177,7 +1056,182 @@ public class MailActivation implements Comparable, Work {
         }
     }
 
+    /**
+     * Deliver a batch of messages in a single endpoint invocation
+     *
+     * @param msgs The messages
+     */
+    private void deliverBatch(Message[] msgs) {
+        MessageEndpoint endpoint = null;
+        try {
+            endpoint = endpointFactory.createEndpoint(null);
+            if (endpoint instanceof MailBatchListener) {
+                log.tracef("deliverBatch: %d messages", msgs.length);
+
+                MailBatchListener listener = (MailBatchListener) endpoint;
+                long start = System.nanoTime();
+                boolean success = false;
+                try {
+                    listener.onMessages(msgs);
+                    success = true;
+                } finally {
+                    metrics.delivered(System.nanoTime() - start, msgs.length, success);
+                }
+            }
+        } catch (Throwable e) {
+            log.debug("onMessages delivery failure", e);
+        } finally {
+            if (endpoint != null) {
+                endpoint.release();
+            }
+        }
+    }
+
     public void unrelease() {
         released = false;
     }
+
+    /**
+     * The delivery of a message, or of a batch of messages, concurrently with the other
+     * messages of a poll. The messages are marked once their delivery completes
+     */
+    private class DeliveryWork implements Work {
+        private final MailFolder mailFolder;
+        private final Message[] msgs;
+        private final Semaphore permits;
+
+        DeliveryWork(MailFolder mailFolder, Message[] msgs, Semaphore permits) {
+            this.mailFolder = mailFolder;
+            this.msgs = msgs;
+            this.permits = permits;
+        }
+
+        public void run() {
+            try {
+                deliver(msgs);
+
+                for (Message msg : msgs) {
+                    mailFolder.markDelivered(msg);
+                }
+                syncCheckpoints();
+            } catch (MessagingException e) {
+                log.warn("Failed to mark delivered message", e);
+            } finally {
+                permits.release();
+            }
+        }
+
+        public void release() {
+        }
+    }
+
+    /**
+     * The deliveries of the messages of an open folder: the messages are dispatched in batches
+     * of the batch size of the spec, concurrently up to its delivery concurrency
+     */
+    private class Deliveries {
+        private final MailFolder mailFolder;
+        private final int concurrency;
+        private final Executor executor;
+        private final WorkManager workManager;
+        private final int batchSize;
+        private final Semaphore permits;
+        private final List<Message> batch;
+        private long batchStart;
+
+        Deliveries(MailFolder mailFolder, int concurrency, Executor executor, WorkManager workManager) {
+            this.mailFolder = mailFolder;
+            this.concurrency = workManager == null && executor == null ? 1 : concurrency;
+            this.executor = executor;
+            this.workManager = workManager;
+            this.batchSize = batchDelivery ? spec.getBatchSize() : 1;
+            this.permits = new Semaphore(this.concurrency);
+            this.batch = new ArrayList<>(batchSize);
+        }
+
+        /**
+         * Add the new messages of the folder, and dispatch the full batches
+         *
+         * @throws InterruptedException Thrown if interrupted while waiting for a delivery slot
+         */
+        void addAll() throws InterruptedException {
+            while (mailFolder.hasNext()) {
+                Message msg = mailFolder.nextMessage();
+                // Found again by a refresh while the partial batch lingers
+                if (batch.contains(msg)) { continue; }
+
+                if (batch.isEmpty()) { batchStart = System.currentTimeMillis(); }
+                batch.add(msg);
+
+                if (batch.size() >= batchSize) { flush(); }
+            }
+        }
+
+        /**
+         * Is a partial batch waiting for more messages
+         *
+         * @return True if there is; otherwise false
+         */
+        boolean isBatchPending() {
+            return !batch.isEmpty();
+        }
+
+        /**
+         * Get the time the first message of the partial batch was added
+         *
+         * @return The value
+         */
+        long getBatchStart() {
+            return batchStart;
+        }
+
+        /**
+         * Dispatch the partial batch, if any
+         *
+         * @throws InterruptedException Thrown if interrupted while waiting for a delivery slot
+         */
+        void flush() throws InterruptedException {
+            if (batch.isEmpty()) { return; }
+
+            dispatch(mailFolder, batch, permits, executor, workManager);
+            batch.clear();
+        }
+
+        /**
+         * Wait for the in-flight deliveries to complete
+         */
+        void await() {
+            permits.acquireUninterruptibly(concurrency);
+            permits.release(concurrency);
+        }
+    }
+
+    /**
+     * The delivery of the messages found by an asynchronous check, and the end of the check
+     */
+    private class CheckCompletion implements Work {
+        private final MailFolder mailFolder;
+        private final CircuitBreaker breaker;
+        private final CompletableFuture<Void> done;
+
+        CheckCompletion(MailFolder mailFolder, CircuitBreaker breaker, CompletableFuture<Void> done) {
+            this.mailFolder = mailFolder;
+            this.breaker = breaker;
+            this.done = done;
+        }
+
+        public void run() {
+            try {
+                deliverAll(mailFolder);
+            } catch (Exception e) {
+                checkFailed(mailFolder, true, breaker, e);
+            } finally {
+                completeAsync(done);
+            }
+        }
+
+        public void release() {
+            MailActivation.this.release();
+        }
+    }
 }
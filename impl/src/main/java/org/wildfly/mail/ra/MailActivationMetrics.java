@@ -0,0 +1,319 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.mail.ra;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The metrics of a mail activation. Updates only touch striped adders, so that
+ * recording stays cheap on the polling and delivery threads
+ */
+public class MailActivationMetrics implements MailActivationMetricsMBean {
+    private final MailActivationSpec spec;
+
+    private final NewMsgsWorker worker;
+
+    private final LongAdder polls = new LongAdder();
+
+    private final LongAdder pollFailures = new LongAdder();
+
+    private final LongAdder connectFailures = new LongAdder();
+
+    private final LongAdder messagesDelivered = new LongAdder();
+
+    private final LongAdder deliveryFailures = new LongAdder();
+
+    private final Latency connectTime = new Latency();
+
+    private final Latency searchTime = new Latency();
+
+    private final Latency fetchTime = new Latency();
+
+    private final Latency onMessageTime = new Latency();
+
+    private volatile long lastPollTime;
+
+    private volatile long startTime;
+
+    /**
+     * Constructor
+     *
+     * @param spec   The mail activation spec
+     * @param worker The new messages worker; <code>null</code> if unknown
+     */
+    public MailActivationMetrics(MailActivationSpec spec, NewMsgsWorker worker) {
+        this.spec = spec;
+        this.worker = worker;
+        this.startTime = System.nanoTime();
+    }
+
+    /**
+     * Record a completed folder check
+     *
+     * @param success Did the check succeed
+     */
+    public void pollCompleted(boolean success) {
+        polls.increment();
+        if (!success) { pollFailures.increment(); }
+        lastPollTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Record a connection to the mail server
+     *
+     * @param nanos   The connect time in nanoseconds
+     * @param success Did the connection succeed
+     */
+    public void connected(long nanos, boolean success) {
+        if (success) {
+            connectTime.record(nanos);
+        } else {
+            connectFailures.increment();
+        }
+    }
+
+    /**
+     * Record a search of the new messages
+     *
+     * @param nanos The search time in nanoseconds
+     */
+    public void searched(long nanos) {
+        searchTime.record(nanos);
+    }
+
+    /**
+     * Record a prefetch of new messages
+     *
+     * @param nanos The fetch time in nanoseconds
+     */
+    public void fetched(long nanos) {
+        fetchTime.record(nanos);
+    }
+
+    /**
+     * Record the delivery of a message
+     *
+     * @param nanos   The onMessage time in nanoseconds
+     * @param success Did the delivery succeed
+     */
+    public void delivered(long nanos, boolean success) {
+        delivered(nanos, 1, success);
+    }
+
+    /**
+     * Record the delivery of a batch of messages
+     *
+     * @param nanos    The onMessages time in nanoseconds
+     * @param messages The number of messages
+     * @param success  Did the delivery succeed
+     */
+    public void delivered(long nanos, int messages, boolean success) {
+        onMessageTime.record(nanos);
+        if (success) {
+            messagesDelivered.add(messages);
+        } else {
+            deliveryFailures.add(messages);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getSpec() {
+        return String.valueOf(spec);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getPolls() {
+        return polls.sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getPollFailures() {
+        return pollFailures.sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getConnectFailures() {
+        return connectFailures.sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getMessagesDelivered() {
+        return messagesDelivered.sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getDeliveryFailures() {
+        return deliveryFailures.sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double getPollRate() {
+        return rate(polls.sum());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double getMessageRate() {
+        return rate(messagesDelivered.sum());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getLastPollTime() {
+        return lastPollTime;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double getConnectTimeAverage() {
+        return connectTime.getAverage();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double getConnectTimeMax() {
+        return connectTime.getMax();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double getSearchTimeAverage() {
+        return searchTime.getAverage();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double getSearchTimeMax() {
+        return searchTime.getMax();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double getFetchTimeAverage() {
+        return fetchTime.getAverage();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double getFetchTimeMax() {
+        return fetchTime.getMax();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double getOnMessageTimeAverage() {
+        return onMessageTime.getAverage();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double getOnMessageTimeMax() {
+        return onMessageTime.getMax();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getQueueDepth() {
+        return worker != null ? worker.getQueueDepth() : 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void reset() {
+        polls.reset();
+        pollFailures.reset();
+        connectFailures.reset();
+        messagesDelivered.reset();
+        deliveryFailures.reset();
+        connectTime.reset();
+        searchTime.reset();
+        fetchTime.reset();
+        onMessageTime.reset();
+        startTime = System.nanoTime();
+    }
+
+    private double rate(long count) {
+        long elapsed = System.nanoTime() - startTime;
+        return elapsed > 0 ? count * (double) TimeUnit.SECONDS.toNanos(1) / elapsed : 0.0;
+    }
+
+    /**
+     * Latency statistics of a stage
+     */
+    private static final class Latency {
+        private final LongAdder count = new LongAdder();
+
+        private final LongAdder total = new LongAdder();
+
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0L);
+
+        void record(long nanos) {
+            count.increment();
+            total.add(nanos);
+            max.accumulate(nanos);
+        }
+
+        double getAverage() {
+            long n = count.sum();
+            return n > 0 ? toMillis(total.sum() / (double) n) : 0.0;
+        }
+
+        double getMax() {
+            return toMillis(max.get());
+        }
+
+        void reset() {
+            count.reset();
+            total.reset();
+            max.reset();
+        }
+
+        private static double toMillis(double nanos) {
+            return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+        }
+    }
+}
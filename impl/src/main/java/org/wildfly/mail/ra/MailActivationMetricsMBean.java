@@ -0,0 +1,155 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.mail.ra;
+
+/**
+ * The management interface of the metrics of a mail activation
+ */
+public interface MailActivationMetricsMBean {
+    /**
+     * Get the mail activation spec
+     *
+     * @return The value
+     */
+    String getSpec();
+
+    /**
+     * Get the number of folder checks
+     *
+     * @return The value
+     */
+    long getPolls();
+
+    /**
+     * Get the number of folder checks which failed
+     *
+     * @return The value
+     */
+    long getPollFailures();
+
+    /**
+     * Get the number of failed connections to the mail server
+     *
+     * @return The value
+     */
+    long getConnectFailures();
+
+    /**
+     * Get the number of messages delivered
+     *
+     * @return The value
+     */
+    long getMessagesDelivered();
+
+    /**
+     * Get the number of messages whose delivery failed
+     *
+     * @return The value
+     */
+    long getDeliveryFailures();
+
+    /**
+     * Get the number of folder checks per second since the activation
+     *
+     * @return The value
+     */
+    double getPollRate();
+
+    /**
+     * Get the number of messages delivered per second since the activation
+     *
+     * @return The value
+     */
+    double getMessageRate();
+
+    /**
+     * Get the time the last folder check completed
+     *
+     * @return The value in MS since the epoch; 0 if none
+     */
+    long getLastPollTime();
+
+    /**
+     * Get the average time to connect to the mail server
+     *
+     * @return The value in MS
+     */
+    double getConnectTimeAverage();
+
+    /**
+     * Get the maximum time to connect to the mail server
+     *
+     * @return The value in MS
+     */
+    double getConnectTimeMax();
+
+    /**
+     * Get the average time to search the new messages
+     *
+     * @return The value in MS
+     */
+    double getSearchTimeAverage();
+
+    /**
+     * Get the maximum time to search the new messages
+     *
+     * @return The value in MS
+     */
+    double getSearchTimeMax();
+
+    /**
+     * Get the average time to prefetch a batch of new messages
+     *
+     * @return The value in MS
+     */
+    double getFetchTimeAverage();
+
+    /**
+     * Get the maximum time to prefetch a batch of new messages
+     *
+     * @return The value in MS
+     */
+    double getFetchTimeMax();
+
+    /**
+     * Get the average time of the endpoint onMessage
+     *
+     * @return The value in MS
+     */
+    double getOnMessageTimeAverage();
+
+    /**
+     * Get the maximum time of the endpoint onMessage
+     *
+     * @return The value in MS
+     */
+    double getOnMessageTimeMax();
+
+    /**
+     * Get the number of activations waiting for their next check
+     *
+     * @return The value
+     */
+    int getQueueDepth();
+
+    /**
+     * Reset the counters and latencies
+     */
+    void reset();
+}
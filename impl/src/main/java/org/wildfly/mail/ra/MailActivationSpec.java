@@ -35,7 +35,7 @@ import javax.resource.spi.ResourceAdapter;
  * @author <a href="mailto:jesper.pedersen@jboss.org">Jesper Pedersen</a>
  * @author <a href="mailto:mluksa@redhat.com">Marko Luksa</a>
  */
-@Activation(messageListeners = {MailListener.class})
+@Activation(messageListeners = {MailListener.class, MailBatchListener.class})
 public class MailActivationSpec implements ActivationSpec, Serializable {
     /**
      * @since 1.0
@@ -47,6 +47,11 @@ public class MailActivationSpec implements ActivationSpec, Serializable {
      */
     private transient ResourceAdapter ra;
 
+    /**
+     * The number of property changes, so that the state derived from the properties can be cached
+     */
+    private transient volatile int modCount;
+
     /**
      * The mail server hostname/address
      */
@@ -60,13 +65,14 @@ public class MailActivationSpec implements ActivationSpec, Serializable {
     private String storeProtocol = "imap";
 
     /**
-     * The mail folder name
+     * The mail folder name; a comma separated list of names and LIST patterns, e.g. INBOX,Teams/*,
+     * checks several folders in sequence over one connection
      */
     @ConfigProperty
     private String mailFolder;
 
     /**
-     * The message selector
+     * The message selector - for imap searched on the server, see {@link MessageSelector}
      */
     @ConfigProperty
     private String messageSelector;
@@ -90,10 +96,10 @@ public class MailActivationSpec implements ActivationSpec, Serializable {
     private Long pollingInterval = 60000L;
 
     /**
-     * The maximum number of messages
+     * The maximum number of messages delivered per check; 0 or less for no limit
      */
     @ConfigProperty
-    private Integer maxMessages = 1;
+    private Integer maxMessages = 0;
 
     /**
      * Enable JavaMail debugging
@@ -119,6 +125,153 @@ public class MailActivationSpec implements ActivationSpec, Serializable {
     @ConfigProperty
     private Integer port;
 
+    /**
+     * The delivery mode - poll or idle (IMAP IDLE push)
+     */
+    @ConfigProperty
+    private String deliveryMode = "poll";
+
+    /**
+     * Incremental fetch - for imap only fetch the messages above the last delivered UID
+     */
+    @ConfigProperty
+    private Boolean incrementalFetch = false;
+
+    /**
+     * Prefetch the envelopes of the new messages
+     */
+    @ConfigProperty
+    private Boolean fetchEnvelope = false;
+
+    /**
+     * Prefetch the flags of the new messages
+     */
+    @ConfigProperty
+    private Boolean fetchFlags = false;
+
+    /**
+     * Prefetch the UIDs of the new messages
+     */
+    @ConfigProperty
+    private Boolean fetchUid = false;
+
+    /**
+     * Comma separated list of headers to prefetch
+     */
+    @ConfigProperty
+    private String fetchHeaders;
+
+    /**
+     * For imap prefetch the whole content of the messages up to this size in bytes; 0 disables it
+     */
+    @ConfigProperty
+    private Integer fetchContentMaxSize = 0;
+
+    /**
+     * The maximum number of messages of a poll delivered concurrently
+     */
+    @ConfigProperty
+    private Integer deliveryConcurrency = 1;
+
+    /**
+     * The number of delivered messages whose flags are updated together; pending updates are
+     * also flushed when the folder is refreshed or closed
+     */
+    @ConfigProperty
+    private Integer flagBatchSize = 1;
+
+    /**
+     * Adapt the polling interval to the mailbox activity, between the min and max polling intervals
+     */
+    @ConfigProperty
+    private Boolean adaptivePolling = false;
+
+    /**
+     * The shortest adaptive polling interval in MS
+     */
+    @ConfigProperty
+    private Long minPollingInterval = 1000L;
+
+    /**
+     * The longest adaptive polling interval in MS
+     */
+    @ConfigProperty
+    private Long maxPollingInterval = 600000L;
+
+    /**
+     * The factor the adaptive polling interval is multiplied by after an empty poll,
+     * and divided by after a poll that returned messages
+     */
+    @ConfigProperty
+    private Double pollingBackoffFactor = 2.0;
+
+    /**
+     * The maximum random delay in MS added to each rescheduled check
+     */
+    @ConfigProperty
+    private Long pollingJitter = 0L;
+
+    /**
+     * The maximum number of messages passed to a MailBatchListener endpoint in one call
+     */
+    @ConfigProperty
+    private Integer batchSize = 10;
+
+    /**
+     * The maximum time in MS a partial batch waits for the messages pushed next in the idle delivery
+     * mode; 0 delivers it at once. A polled check delivers its partial batch once its messages are consumed
+     */
+    @ConfigProperty
+    private Long batchLinger = 0L;
+
+    /**
+     * Read IMAP message bodies in fetch size chunks as they are streamed, instead of in one FETCH
+     */
+    @ConfigProperty
+    private Boolean partialFetch = true;
+
+    /**
+     * The size in bytes of the chunks read by an IMAP partial fetch
+     */
+    @ConfigProperty
+    private Integer fetchSize = 16384;
+
+    /**
+     * The size in bytes above which a message body is only read on demand, as a stream: it is
+     * never prefetched, and POP3 spools the bodies to temporary files instead of the heap; 0 disables
+     */
+    @ConfigProperty
+    private Integer largeMessageThreshold = 0;
+
+    /**
+     * The size in bytes above which a message is spooled to a file and delivered as a MimeMessage
+     * backed by a memory-mapped view of it; 0 disables the spool
+     */
+    @ConfigProperty
+    private Integer spoolThreshold = 0;
+
+    /**
+     * The directory of the spooled messages; defaults to the temporary directory of the JVM
+     */
+    @ConfigProperty
+    private String spoolDirectory;
+
+    /**
+     * Read the folder through the multiplexed IMAP engine of the resource adapter,
+     * which watches many mailboxes from a few threads; plain imap without TLS in poll mode only
+     */
+    @ConfigProperty
+    private Boolean multiplexed = false;
+
+    /**
+     * The directory of the local checkpoints of the delivery progress;
+     * the mail-ra directory of the server data directory by default. The directory is locked
+     * by the first adapter using it, so each deployment of the adapter needs its own. Without
+     * checkpoints, the delivered POP3 UIDLs are kept in a file per mailbox of the directory
+     */
+    @ConfigProperty
+    private String stateDirectory;
+
     /**
      * Constructor
      */
@@ -141,6 +294,7 @@ public class MailActivationSpec implements ActivationSpec, Serializable {
      */
     public void setMailServer(String mailServer) {
         this.mailServer = mailServer;
+        modCount++;
     }
 
     /**
@@ -159,6 +313,7 @@ public class MailActivationSpec implements ActivationSpec, Serializable {
      */
     public void setStoreProtocol(String storeProtocol) {
         this.storeProtocol = storeProtocol;
+        modCount++;
     }
 
     /**
@@ -177,6 +332,7 @@ public class MailActivationSpec implements ActivationSpec, Serializable {
      */
     public void setMailFolder(String mailFolder) {
         this.mailFolder = mailFolder;
+        modCount++;
     }
 
     /**
@@ -195,6 +351,7 @@ public class MailActivationSpec implements ActivationSpec, Serializable {
      */
     public void setMessageSelector(String messageSelector) {
         this.messageSelector = messageSelector;
+        modCount++;
     }
 
     /**
@@ -213,6 +370,7 @@ public class MailActivationSpec implements ActivationSpec, Serializable {
      */
     public void setUserName(String userName) {
         this.userName = userName;
+        modCount++;
     }
 
     /**
@@ -231,6 +389,7 @@ public class MailActivationSpec implements ActivationSpec, Serializable {
      */
     public void setPassword(String password) {
         this.password = password;
+        modCount++;
     }
 
     /**
@@ -249,6 +408,7 @@ public class MailActivationSpec implements ActivationSpec, Serializable {
      */
     public void setPollingInterval(Long pollingInterval) {
         this.pollingInterval = pollingInterval;
+        modCount++;
     }
 
     /**
@@ -267,6 +427,7 @@ public class MailActivationSpec implements ActivationSpec, Serializable {
      */
     public void setMaxMessages(int maxMessages) {
         this.maxMessages = maxMessages;
+        modCount++;
     }
 
     /**
@@ -285,6 +446,7 @@ public class MailActivationSpec implements ActivationSpec, Serializable {
      */
     public void setDebug(boolean debug) {
         this.debug = debug;
+        modCount++;
     }
 
     /**
@@ -303,6 +465,7 @@ public class MailActivationSpec implements ActivationSpec, Serializable {
      */
     public void setPort(int port) {
         this.port = port;
+        modCount++;
     }
 
     /**
@@ -321,6 +484,7 @@ public class MailActivationSpec implements ActivationSpec, Serializable {
      */
     public void setStarttls(boolean starttls) {
         this.starttls = starttls;
+        modCount++;
     }
 
     /**
@@ -339,6 +503,453 @@ public class MailActivationSpec implements ActivationSpec, Serializable {
      */
     public void setFlush(boolean flush) {
         this.flush = flush;
+        modCount++;
+    }
+
+    /**
+     * Get the delivery mode
+     *
+     * @return The value
+     */
+    public String getDeliveryMode() {
+        return deliveryMode;
+    }
+
+    /**
+     * Set the delivery mode
+     *
+     * @param deliveryMode The value
+     */
+    public void setDeliveryMode(String deliveryMode) {
+        this.deliveryMode = deliveryMode;
+        modCount++;
+    }
+
+    /**
+     * Get the incremental fetch
+     *
+     * @return The value
+     */
+    public boolean isIncrementalFetch() {
+        return incrementalFetch;
+    }
+
+    /**
+     * Set the incremental fetch
+     *
+     * @param incrementalFetch The value
+     */
+    public void setIncrementalFetch(boolean incrementalFetch) {
+        this.incrementalFetch = incrementalFetch;
+        modCount++;
+    }
+
+    /**
+     * Get the fetch envelope
+     *
+     * @return The value
+     */
+    public boolean isFetchEnvelope() {
+        return fetchEnvelope;
+    }
+
+    /**
+     * Set the fetch envelope
+     *
+     * @param fetchEnvelope The value
+     */
+    public void setFetchEnvelope(boolean fetchEnvelope) {
+        this.fetchEnvelope = fetchEnvelope;
+        modCount++;
+    }
+
+    /**
+     * Get the fetch flags
+     *
+     * @return The value
+     */
+    public boolean isFetchFlags() {
+        return fetchFlags;
+    }
+
+    /**
+     * Set the fetch flags
+     *
+     * @param fetchFlags The value
+     */
+    public void setFetchFlags(boolean fetchFlags) {
+        this.fetchFlags = fetchFlags;
+        modCount++;
+    }
+
+    /**
+     * Get the fetch UID
+     *
+     * @return The value
+     */
+    public boolean isFetchUid() {
+        return fetchUid;
+    }
+
+    /**
+     * Set the fetch UID
+     *
+     * @param fetchUid The value
+     */
+    public void setFetchUid(boolean fetchUid) {
+        this.fetchUid = fetchUid;
+        modCount++;
+    }
+
+    /**
+     * Get the fetch headers
+     *
+     * @return The value
+     */
+    public String getFetchHeaders() {
+        return fetchHeaders;
+    }
+
+    /**
+     * Set the fetch headers
+     *
+     * @param fetchHeaders The value
+     */
+    public void setFetchHeaders(String fetchHeaders) {
+        this.fetchHeaders = fetchHeaders;
+        modCount++;
+    }
+
+    /**
+     * Get the fetch content max size
+     *
+     * @return The value
+     */
+    public int getFetchContentMaxSize() {
+        return fetchContentMaxSize;
+    }
+
+    /**
+     * Set the fetch content max size
+     *
+     * @param fetchContentMaxSize The value
+     */
+    public void setFetchContentMaxSize(int fetchContentMaxSize) {
+        this.fetchContentMaxSize = fetchContentMaxSize;
+        modCount++;
+    }
+
+    /**
+     * Get the delivery concurrency
+     *
+     * @return The value
+     */
+    public int getDeliveryConcurrency() {
+        return deliveryConcurrency;
+    }
+
+    /**
+     * Set the delivery concurrency
+     *
+     * @param deliveryConcurrency The value
+     */
+    public void setDeliveryConcurrency(int deliveryConcurrency) {
+        this.deliveryConcurrency = deliveryConcurrency;
+        modCount++;
+    }
+
+    /**
+     * Get the flag batch size
+     *
+     * @return The value
+     */
+    public int getFlagBatchSize() {
+        return flagBatchSize;
+    }
+
+    /**
+     * Set the flag batch size
+     *
+     * @param flagBatchSize The value
+     */
+    public void setFlagBatchSize(int flagBatchSize) {
+        this.flagBatchSize = flagBatchSize;
+        modCount++;
+    }
+
+    /**
+     * Get the adaptive polling
+     *
+     * @return The value
+     */
+    public boolean isAdaptivePolling() {
+        return adaptivePolling;
+    }
+
+    /**
+     * Set the adaptive polling
+     *
+     * @param adaptivePolling The value
+     */
+    public void setAdaptivePolling(boolean adaptivePolling) {
+        this.adaptivePolling = adaptivePolling;
+        modCount++;
+    }
+
+    /**
+     * Get the min polling interval
+     *
+     * @return The value
+     */
+    public Long getMinPollingInterval() {
+        return minPollingInterval;
+    }
+
+    /**
+     * Set the min polling interval
+     *
+     * @param minPollingInterval The value
+     */
+    public void setMinPollingInterval(Long minPollingInterval) {
+        this.minPollingInterval = minPollingInterval;
+        modCount++;
+    }
+
+    /**
+     * Get the max polling interval
+     *
+     * @return The value
+     */
+    public Long getMaxPollingInterval() {
+        return maxPollingInterval;
+    }
+
+    /**
+     * Set the max polling interval
+     *
+     * @param maxPollingInterval The value
+     */
+    public void setMaxPollingInterval(Long maxPollingInterval) {
+        this.maxPollingInterval = maxPollingInterval;
+        modCount++;
+    }
+
+    /**
+     * Get the polling backoff factor
+     *
+     * @return The value
+     */
+    public Double getPollingBackoffFactor() {
+        return pollingBackoffFactor;
+    }
+
+    /**
+     * Set the polling backoff factor
+     *
+     * @param pollingBackoffFactor The value
+     */
+    public void setPollingBackoffFactor(Double pollingBackoffFactor) {
+        this.pollingBackoffFactor = pollingBackoffFactor;
+        modCount++;
+    }
+
+    /**
+     * Get the polling jitter
+     *
+     * @return The value
+     */
+    public Long getPollingJitter() {
+        return pollingJitter;
+    }
+
+    /**
+     * Set the polling jitter
+     *
+     * @param pollingJitter The value
+     */
+    public void setPollingJitter(Long pollingJitter) {
+        this.pollingJitter = pollingJitter;
+        modCount++;
+    }
+
+    /**
+     * Get the batch size
+     *
+     * @return The value
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Set the batch size
+     *
+     * @param batchSize The value
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+        modCount++;
+    }
+
+    /**
+     * Get the batch linger
+     *
+     * @return The value
+     */
+    public Long getBatchLinger() {
+        return batchLinger;
+    }
+
+    /**
+     * Set the batch linger
+     *
+     * @param batchLinger The value
+     */
+    public void setBatchLinger(Long batchLinger) {
+        this.batchLinger = batchLinger;
+        modCount++;
+    }
+
+    /**
+     * Get the partial fetch
+     *
+     * @return The value
+     */
+    public boolean isPartialFetch() {
+        return partialFetch;
+    }
+
+    /**
+     * Set the partial fetch
+     *
+     * @param partialFetch The value
+     */
+    public void setPartialFetch(boolean partialFetch) {
+        this.partialFetch = partialFetch;
+        modCount++;
+    }
+
+    /**
+     * Get the fetch size
+     *
+     * @return The value
+     */
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    /**
+     * Set the fetch size
+     *
+     * @param fetchSize The value
+     */
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+        modCount++;
+    }
+
+    /**
+     * Get the large message threshold
+     *
+     * @return The value
+     */
+    public int getLargeMessageThreshold() {
+        return largeMessageThreshold;
+    }
+
+    /**
+     * Set the large message threshold
+     *
+     * @param largeMessageThreshold The value
+     */
+    public void setLargeMessageThreshold(int largeMessageThreshold) {
+        this.largeMessageThreshold = largeMessageThreshold;
+        modCount++;
+    }
+
+    /**
+     * Get the spool threshold
+     *
+     * @return The value
+     */
+    public int getSpoolThreshold() {
+        return spoolThreshold;
+    }
+
+    /**
+     * Set the spool threshold
+     *
+     * @param spoolThreshold The value
+     */
+    public void setSpoolThreshold(int spoolThreshold) {
+        this.spoolThreshold = spoolThreshold;
+        modCount++;
+    }
+
+    /**
+     * Get the spool directory
+     *
+     * @return The value
+     */
+    public String getSpoolDirectory() {
+        return spoolDirectory;
+    }
+
+    /**
+     * Set the spool directory
+     *
+     * @param spoolDirectory The value
+     */
+    public void setSpoolDirectory(String spoolDirectory) {
+        this.spoolDirectory = spoolDirectory;
+        modCount++;
+    }
+
+    /**
+     * Get the multiplexed mode
+     *
+     * @return The value
+     */
+    public boolean isMultiplexed() {
+        return multiplexed;
+    }
+
+    /**
+     * Set the multiplexed mode
+     *
+     * @param multiplexed The value
+     */
+    public void setMultiplexed(boolean multiplexed) {
+        this.multiplexed = multiplexed;
+        modCount++;
+    }
+
+    /**
+     * Get the number of property changes
+     *
+     * @return The value
+     */
+    int getModCount() {
+        return modCount;
+    }
+
+    /**
+     * Get the state directory
+     *
+     * @return The value
+     */
+    public String getStateDirectory() {
+        return stateDirectory;
+    }
+
+    /**
+     * Set the state directory
+     *
+     * @param stateDirectory The value
+     */
+    public void setStateDirectory(String stateDirectory) {
+        this.stateDirectory = stateDirectory;
+        modCount++;
     }
 
     /**
@@ -366,6 +977,42 @@ public class MailActivationSpec implements ActivationSpec, Serializable {
      * @throws javax.resource.spi.InvalidPropertyException Thrown if an error occurs
      */
     public void validate() throws InvalidPropertyException {
+        if (deliveryMode != null && !"poll".equals(deliveryMode) && !"idle".equals(deliveryMode)) {
+            throw new InvalidPropertyException("Invalid deliveryMode: " + deliveryMode);
+        }
+        if (deliveryConcurrency == null || deliveryConcurrency < 1) {
+            throw new InvalidPropertyException("Invalid deliveryConcurrency: " + deliveryConcurrency);
+        }
+        if (batchSize == null || batchSize < 1) {
+            throw new InvalidPropertyException("Invalid batchSize: " + batchSize);
+        }
+        if (batchLinger == null || batchLinger < 0) {
+            throw new InvalidPropertyException("Invalid batchLinger: " + batchLinger);
+        }
+        if (fetchSize == null || fetchSize < 1) {
+            throw new InvalidPropertyException("Invalid fetchSize: " + fetchSize);
+        }
+        if (largeMessageThreshold == null || largeMessageThreshold < 0) {
+            throw new InvalidPropertyException("Invalid largeMessageThreshold: " + largeMessageThreshold);
+        }
+        if (spoolThreshold == null || spoolThreshold < 0) {
+            throw new InvalidPropertyException("Invalid spoolThreshold: " + spoolThreshold);
+        }
+        if (Boolean.TRUE.equals(adaptivePolling)) {
+            if (minPollingInterval == null || maxPollingInterval == null || minPollingInterval <= 0 ||
+                    minPollingInterval > maxPollingInterval) {
+                throw new InvalidPropertyException("Invalid adaptive polling interval: min=" + minPollingInterval +
+                        ", max=" + maxPollingInterval);
+            }
+            if (pollingBackoffFactor == null || pollingBackoffFactor < 1.0) {
+                throw new InvalidPropertyException("Invalid pollingBackoffFactor: " + pollingBackoffFactor);
+            }
+        }
+        try {
+            MessageSelector.parse(messageSelector);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidPropertyException(e.getMessage());
+        }
     }
 
     /**
@@ -395,6 +1042,52 @@ public class MailActivationSpec implements ActivationSpec, Serializable {
                 starttls +
                 ", port=" +
                 port +
+                ", deliveryMode=" +
+                deliveryMode +
+                ", incrementalFetch=" +
+                incrementalFetch +
+                ", fetchEnvelope=" +
+                fetchEnvelope +
+                ", fetchFlags=" +
+                fetchFlags +
+                ", fetchUid=" +
+                fetchUid +
+                ", fetchHeaders=" +
+                fetchHeaders +
+                ", fetchContentMaxSize=" +
+                fetchContentMaxSize +
+                ", deliveryConcurrency=" +
+                deliveryConcurrency +
+                ", flagBatchSize=" +
+                flagBatchSize +
+                ", adaptivePolling=" +
+                adaptivePolling +
+                ", minPollingInterval=" +
+                minPollingInterval +
+                ", maxPollingInterval=" +
+                maxPollingInterval +
+                ", pollingBackoffFactor=" +
+                pollingBackoffFactor +
+                ", pollingJitter=" +
+                pollingJitter +
+                ", batchSize=" +
+                batchSize +
+                ", batchLinger=" +
+                batchLinger +
+                ", partialFetch=" +
+                partialFetch +
+                ", fetchSize=" +
+                fetchSize +
+                ", largeMessageThreshold=" +
+                largeMessageThreshold +
+                ", spoolThreshold=" +
+                spoolThreshold +
+                ", spoolDirectory=" +
+                spoolDirectory +
+                ", multiplexed=" +
+                multiplexed +
+                ", stateDirectory=" +
+                stateDirectory +
                 ")";
 
     }
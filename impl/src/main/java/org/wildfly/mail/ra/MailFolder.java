@@ -18,14 +18,25 @@
 
 package org.wildfly.mail.ra;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Properties;
+import javax.mail.FetchProfile;
 import javax.mail.Folder;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.NoSuchProviderException;
+import javax.mail.Provider;
 import javax.mail.Session;
 import javax.mail.Store;
+import javax.mail.UIDFolder;
+
+import org.jboss.logging.Logger;
 
 /**
  * An encapsulation of a mail store folder used by the MailActivation.run to
@@ -35,17 +46,32 @@ import javax.mail.Store;
  * @author <a href="mailto:jesper.pedersen@jboss.org">Jesper Pedersen</a>
  */
 public abstract class MailFolder implements Iterator {
+    private static Logger log = Logger.getLogger(MailFolder.class);
+
     private Session session;
+    private Provider provider;
     private Store store;
     private Folder folder;
     private String mailServer;
-    private String folderName;
+    private String[] folderPatterns;
+    private List<String> folderNames = Collections.emptyList();
+    private int folderIndex;
     private String userName;
     private String password;
     private Integer port;
     private boolean debug = false;
     private boolean starttls = false;
     private Properties sessionProps;
+    private MailStorePool storePool;
+    private MailStorePool.Key storeKey;
+    private MailStorePool.PooledStore pooledStore;
+    private FetchProfile fetchProfile;
+    private int maxMessages;
+    private boolean backlog;
+    private boolean previousBacklog;
+    private int flagBatchSize;
+    private final List<Message> pendingMarks = new ArrayList<>();
+    private MailActivationMetrics metrics;
 
     private Message[] msgs = {};
     private int messagePosition;
@@ -57,20 +83,151 @@ public abstract class MailFolder implements Iterator {
      */
     public MailFolder(MailActivationSpec spec) {
         mailServer = spec.getMailServer();
-        folderName = spec.getMailFolder();
+        folderPatterns = parseFolders(spec.getMailFolder());
         userName = spec.getUserName();
         password = spec.getPassword();
         debug = spec.isDebug();
         starttls = spec.isStarttls();
         port = spec.getPort();
+        maxMessages = spec.getMaxMessages();
+        flagBatchSize = spec.getFlagBatchSize();
+
+        sessionProps = getSessionProperties(spec);
+
+        // Stores are only shared by specs whose sessions are configured alike
+        storeKey = new MailStorePool.Key(spec.getStoreProtocol(), mailServer, spec.getPort(), userName, password,
+                starttls, sessionProps);
 
-        sessionProps = new Properties();
-        sessionProps.setProperty("mail.transport.protocol", "smtp");
-        sessionProps.setProperty("mail.smtp.host", mailServer);
-        sessionProps.setProperty("mail.debug", debug + "");
+        fetchProfile = createFetchProfile(spec);
+    }
+
+    /**
+     * Get the properties of the mail session of a spec
+     *
+     * @param spec The mail activation spec
+     * @return The value
+     */
+    static Properties getSessionProperties(MailActivationSpec spec) {
+        Properties props = new Properties();
+        props.setProperty("mail.transport.protocol", "smtp");
+        props.setProperty("mail.smtp.host", spec.getMailServer());
+        props.setProperty("mail.debug", spec.isDebug() + "");
 
         // JavaMail doesn't implement POP3 STARTTLS
-        sessionProps.setProperty("mail.imap.starttls.enable", starttls + "");
+        props.setProperty("mail.imap.starttls.enable", spec.isStarttls() + "");
+
+        // Bodies are streamed in chunks; large POP3 bodies go to temporary files instead of the heap
+        for (String protocol : new String[] {"imap", "imaps"}) {
+            props.setProperty("mail." + protocol + ".partialfetch", spec.isPartialFetch() + "");
+            props.setProperty("mail." + protocol + ".fetchsize", spec.getFetchSize() + "");
+        }
+        if (spec.getLargeMessageThreshold() > 0) {
+            props.setProperty("mail.pop3.filecache.enable", "true");
+            props.setProperty("mail.pop3s.filecache.enable", "true");
+        }
+        return props;
+    }
+
+    /**
+     * Split the mail folder of a spec into the names and LIST patterns of the folders to watch
+     *
+     * @param mailFolder The mail folder of the spec
+     * @return The names and patterns
+     */
+    private static String[] parseFolders(String mailFolder) {
+        if (mailFolder == null || mailFolder.indexOf(',') < 0) { return new String[] {mailFolder}; }
+
+        List<String> names = new ArrayList<>();
+        for (String name : mailFolder.split(",")) {
+            if (!name.trim().isEmpty()) { names.add(name.trim()); }
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    /**
+     * Is a folder name a LIST pattern
+     *
+     * @param name The name
+     * @return True if it holds a wildcard; otherwise false
+     */
+    private static boolean isPattern(String name) {
+        return name != null && (name.indexOf('*') >= 0 || name.indexOf('%') >= 0);
+    }
+
+    /**
+     * Does the mail folder of a spec designate several folders
+     *
+     * @param mailFolder The mail folder of the spec
+     * @return True if it is a list or a pattern; otherwise false
+     */
+    static boolean isMultipleFolders(String mailFolder) {
+        String[] patterns = parseFolders(mailFolder);
+        return patterns.length != 1 || isPattern(patterns[0]);
+    }
+
+    /**
+     * Create the profile of the items prefetched for the new messages
+     *
+     * @param spec The mail activation spec
+     * @return The fetch profile; <code>null</code> if nothing is prefetched
+     */
+    private static FetchProfile createFetchProfile(MailActivationSpec spec) {
+        FetchProfile fp = new FetchProfile();
+        boolean empty = true;
+
+        if (spec.isFetchEnvelope()) {
+            fp.add(FetchProfile.Item.ENVELOPE);
+            empty = false;
+        }
+        if (spec.isFetchFlags()) {
+            fp.add(FetchProfile.Item.FLAGS);
+            empty = false;
+        }
+        if (spec.isFetchUid()) {
+            fp.add(UIDFolder.FetchProfileItem.UID);
+            empty = false;
+        }
+        if (spec.getFetchContentMaxSize() > 0) {
+            fp.add(FetchProfile.Item.SIZE);
+            empty = false;
+        }
+        if (spec.getFetchHeaders() != null) {
+            for (String header : spec.getFetchHeaders().split(",")) {
+                if (!header.trim().isEmpty()) {
+                    fp.add(header.trim());
+                    empty = false;
+                }
+            }
+        }
+
+        return empty ? null : fp;
+    }
+
+    /**
+     * Set the pool the store is borrowed from and returned to
+     *
+     * @param storePool The store pool; <code>null</code> to connect on every open
+     */
+    public void setStorePool(MailStorePool storePool) {
+        this.storePool = storePool;
+    }
+
+    /**
+     * Get the pool the store is borrowed from and returned to
+     *
+     * @return The value; <code>null</code> if the store is connected on every open
+     */
+    MailStorePool getStorePool() {
+        return storePool;
+    }
+
+    /**
+     * Set the metrics the connect, search and fetch times are recorded to
+     *
+     * @param metrics The metrics; <code>null</code> if not recorded
+     */
+    public void setMetrics(MailActivationMetrics metrics) {
+        this.metrics = metrics;
     }
 
     /**
@@ -79,24 +236,287 @@ public abstract class MailFolder implements Iterator {
      * @throws Exception Thrown if a session can't be established
      */
     public void open() throws Exception {
-        // Get a session object
-        session = Session.getInstance(sessionProps);
-        session.setDebug(debug);
-        // Get a store object
-        store = openStore(session);
-        if (port == 0) {
-            store.connect(mailServer, userName, password);
+        pooledStore = storePool != null ? storePool.borrow(storeKey) : null;
+        previousBacklog = false;
+        folderIndex = 0;
+
+        if (pooledStore != null) {
+            store = pooledStore.getStore();
+            folder = pooledStore.getFolder();
+            pooledStore.setFolder(null);
         } else {
-            store.connect(mailServer, port, userName, password);
+            // The session is created once, and reused by the following checks
+            if (session == null) {
+                session = Session.getInstance(sessionProps);
+                session.setDebug(debug);
+            }
+            // Get a store object
+            store = openStore(session);
+
+            long start = System.nanoTime();
+            boolean connected = false;
+            try {
+                if (port == 0) {
+                    store.connect(mailServer, userName, password);
+                } else {
+                    store.connect(mailServer, port, userName, password);
+                }
+                connected = true;
+            } finally {
+                if (metrics != null) { metrics.connected(System.nanoTime() - start, connected); }
+            }
+
+            if (storePool != null) { pooledStore = new MailStorePool.PooledStore(storeKey, store); }
         }
-        folder = store.getFolder(folderName);
 
-        if (folder == null || (!this.folder.exists())) {
-            throw new MessagingException("Failed to find folder: " + folderName);
+        folderNames = resolveFolders(store);
+
+        if (folder != null &&
+                (!folder.isOpen() || folderNames.isEmpty() || !folder.getFullName().equals(folderNames.get(0)))) {
+            closeStore(false, null, folder);
+            folder = null;
+        }
+
+        if (folderNames.isEmpty()) {
+            log.debugf("No folder matches: %s", Arrays.toString(folderPatterns));
+            return;
+        }
+
+        if (folder == null) { folder = openFolder(folderNames.get(0)); }
+
+        msgs = limit(search(folder));
+        prefetch();
+    }
+
+    /**
+     * Resolve the folders to watch, listing the folders which match the patterns
+     *
+     * @param store The connected store
+     * @return The folder names, in the order of the spec
+     * @throws MessagingException Thrown if the folders can't be listed
+     */
+    private List<String> resolveFolders(Store store) throws MessagingException {
+        if (folderPatterns.length == 1 && !isPattern(folderPatterns[0])) {
+            return Collections.singletonList(folderPatterns[0]);
+        }
+
+        LinkedHashSet<String> names = new LinkedHashSet<>();
+        for (String pattern : folderPatterns) {
+            if (!isPattern(pattern)) {
+                names.add(pattern);
+                continue;
+            }
+
+            for (Folder f : store.getDefaultFolder().list(pattern)) {
+                if ((f.getType() & Folder.HOLDS_MESSAGES) != 0) { names.add(f.getFullName()); }
+            }
+        }
+        return new ArrayList<>(names);
+    }
+
+    /**
+     * Open a folder
+     *
+     * @param name The folder name
+     * @return The open folder
+     * @throws MessagingException Thrown if the folder doesn't exist or can't be opened
+     */
+    private Folder openFolder(String name) throws MessagingException {
+        Folder f = store.getFolder(name);
+
+        if (f == null || (!f.exists())) {
+            throw new MessagingException("Failed to find folder: " + name);
+        }
+
+        f.open(Folder.READ_WRITE);
+        return f;
+    }
+
+    /**
+     * Move on to the next folder of the spec, once the messages of the current one have been
+     * delivered: its flag updates are applied and it is closed, and the next one is opened
+     * and searched over the same store connection
+     *
+     * @return True if there is another folder; otherwise false
+     * @throws MessagingException Thrown if an error occurs
+     */
+    public boolean nextFolder() throws MessagingException {
+        if (folderIndex + 1 >= folderNames.size()) { return false; }
+
+        flushMarks();
+        previousBacklog |= backlog;
+        closeStore(true, null, folder);
+        folder = null;
+
+        folderIndex++;
+        folder = openFolder(folderNames.get(folderIndex));
+
+        msgs = limit(search(folder));
+        messagePosition = 0;
+        prefetch();
+        return true;
+    }
+
+    /**
+     * Does the check watch several folders
+     *
+     * @return True if it does; otherwise false
+     */
+    protected boolean isMultipleFolders() {
+        return folderNames.size() > 1;
+    }
+
+    /**
+     * Refresh the messages from the open folder
+     *
+     * @throws MessagingException Thrown if an error occurs
+     */
+    public void refresh() throws MessagingException {
+        flushMarks();
+        msgs = limit(search(folder));
+        messagePosition = 0;
+        prefetch();
+    }
+
+    /**
+     * Are there more new messages in the folder than were returned by the last open or refresh
+     *
+     * @return True if the folder should be checked again right away; otherwise false
+     */
+    public boolean hasBacklog() {
+        return backlog || previousBacklog;
+    }
+
+    /**
+     * Are there more new messages in the current folder than were returned by its search
+     *
+     * @return True if the folder should be checked again right away; otherwise false
+     */
+    protected boolean hasFolderBacklog() {
+        return backlog;
+    }
+
+    /**
+     * Set the new messages found by a subclass which doesn't search through a JavaMail folder
+     *
+     * @param messages The messages, already limited to the max messages of the spec
+     * @param backlog  Are there more new messages in the folder
+     */
+    protected void setMessages(Message[] messages, boolean backlog) {
+        this.msgs = messages;
+        this.messagePosition = 0;
+        this.backlog = backlog;
+    }
+
+    /**
+     * Get the max messages of the spec
+     *
+     * @return The value; 0 or less if unlimited
+     */
+    protected int getMaxMessages() {
+        return maxMessages;
+    }
+
+    /**
+     * Get the metrics
+     *
+     * @return The value; <code>null</code> if not recorded
+     */
+    protected MailActivationMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Limit a batch of new messages to the max messages of the spec
+     *
+     * @param messages The messages
+     * @return The messages to deliver
+     */
+    private Message[] limit(Message[] messages) {
+        backlog = false;
+        if (maxMessages <= 0 || messages.length <= maxMessages) { return messages; }
+
+        // The rest is picked up by the next check, once this batch is marked
+        backlog = isMarkingConsumed();
+
+        Message[] batch = new Message[maxMessages];
+        System.arraycopy(messages, 0, batch, 0, maxMessages);
+        return batch;
+    }
+
+    /**
+     * Does marking a message delivered remove it from the new messages of the next check
+     *
+     * @return True if it does; otherwise false
+     */
+    protected boolean isMarkingConsumed() {
+        return true;
+    }
+
+    /**
+     * Prefetch the configured items of the whole batch of new messages in a single request,
+     * instead of a lazy round trip per message and item during delivery
+     *
+     * @throws MessagingException Thrown if an error occurs
+     */
+    private void prefetch() throws MessagingException {
+        if (fetchProfile != null && msgs.length > 0) {
+            long start = System.nanoTime();
+            fetch(folder, msgs, fetchProfile);
+            if (metrics != null) { metrics.fetched(System.nanoTime() - start); }
         }
+    }
 
-        folder.open(Folder.READ_WRITE);
-        msgs = getMessages(folder);
+    /**
+     * Get the new messages from a folder
+     *
+     * @param folder The folder
+     * @return The messages
+     * @throws MessagingException Thrown if there is an error
+     */
+    private Message[] search(Folder folder) throws MessagingException {
+        long start = System.nanoTime();
+        Message[] result = getMessages(folder);
+        if (metrics != null) { metrics.searched(System.nanoTime() - start); }
+        return result;
+    }
+
+    /**
+     * Fetch items of a batch of messages
+     *
+     * @param folder   The folder
+     * @param messages The messages
+     * @param fp       The fetch profile
+     * @throws MessagingException Thrown if an error occurs
+     */
+    protected void fetch(Folder folder, Message[] messages, FetchProfile fp) throws MessagingException {
+        folder.fetch(messages, fp);
+    }
+
+    /**
+     * Does the open folder support waiting for new messages (IMAP IDLE)
+     *
+     * @return True if supported; otherwise false
+     */
+    public boolean isIdleSupported() {
+        return false;
+    }
+
+    /**
+     * Block until the server notifies a change in the open folder
+     *
+     * @return True if the folder should be refreshed; false if the folder can no longer idle
+     * @throws MessagingException Thrown if an error occurs
+     */
+    public boolean idle() throws MessagingException {
+        return false;
+    }
+
+    /**
+     * Abort a pending {@link #idle()} from another thread. The folder is closed
+     * and a subsequent {@link #idle()} returns false
+     */
+    public void abortIdle() {
     }
 
     /**
@@ -116,12 +536,15 @@ public abstract class MailFolder implements Iterator {
     }
 
     /**
-     * {@inheritDoc}
+     * Get the next message, marked as delivered before it is returned; see {@link #nextMessage()}
+     * to mark it once it has been delivered
+     *
+     * @return The message
      */
     public Object next() {
         try {
-            Message m = msgs[messagePosition++];
-            markMessageSeen(m);
+            Message m = nextMessage();
+            markDelivered(m);
             return m;
         } catch (MessagingException e) {
             close(false);
@@ -129,6 +552,59 @@ public abstract class MailFolder implements Iterator {
         }
     }
 
+    /**
+     * Get the next message without marking it; {@link #markDelivered(Message)} must be
+     * called once it has been delivered
+     *
+     * @return The message
+     */
+    public Message nextMessage() {
+        if (messagePosition >= msgs.length) { throw new NoSuchElementException(); }
+
+        return msgs[messagePosition++];
+    }
+
+    /**
+     * Mark a message as delivered (seen or deleted, depending on the protocol)
+     *
+     * @param message The message
+     * @throws MessagingException Thrown if an error occurs
+     */
+    public void markDelivered(Message message) throws MessagingException {
+        if (flagBatchSize <= 1) {
+            markMessageSeen(message);
+            return;
+        }
+
+        Message[] batch = null;
+        synchronized (pendingMarks) {
+            pendingMarks.add(message);
+            if (pendingMarks.size() >= flagBatchSize) {
+                batch = pendingMarks.toArray(new Message[pendingMarks.size()]);
+                pendingMarks.clear();
+            }
+        }
+
+        if (batch != null) { markMessagesSeen(folder, batch); }
+    }
+
+    /**
+     * Apply the pending flag updates
+     *
+     * @throws MessagingException Thrown if an error occurs
+     */
+    protected void flushMarks() throws MessagingException {
+        Message[] batch;
+        synchronized (pendingMarks) {
+            if (pendingMarks.isEmpty()) { return; }
+
+            batch = pendingMarks.toArray(new Message[pendingMarks.size()]);
+            pendingMarks.clear();
+        }
+
+        markMessagesSeen(folder, batch);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -142,11 +618,88 @@ public abstract class MailFolder implements Iterator {
      * @param checkSuccessful Check if it was a successful close
      */
     protected void close(boolean checkSuccessful) {
+        MailStorePool.PooledStore pooled = pooledStore;
+        pooledStore = null;
+
+        MessagingException flagsFailure = null;
+        try {
+            if (folder != null && folder.isOpen()) { flushMarks(); }
+        } catch (MessagingException e) {
+            flagsFailure = e;
+        }
+
+        boolean success = checkSuccessful && flagsFailure == null;
         try {
-            closeStore(checkSuccessful, store, folder);
+            if (pooled != null && success) {
+                if (folder != null && folder.isOpen() && (!isFolderReusable() || isMultipleFolders())) {
+                    // Only close the folder so that pending changes are committed
+                    closeStore(true, null, folder);
+                }
+
+                pooled.setFolder(folder != null && folder.isOpen() ? folder : null);
+                storePool.release(pooled);
+            } else {
+                closeStore(success, store, folder);
+            }
         } catch (MessagingException e) {
             throw new RuntimeException("Error closing mail store", e);
+        } finally {
+            store = null;
+            folder = null;
+            msgs = new Message[0];
+            messagePosition = 0;
+            if (!success) {
+                backlog = false;
+                previousBacklog = false;
+            }
+        }
+
+        // After a failure the flags are updated on a best effort basis
+        if (checkSuccessful && flagsFailure != null) {
+            throw new RuntimeException("Error updating message flags", flagsFailure);
+        }
+    }
+
+    /**
+     * Can the folder be left open in the store pool between polls
+     *
+     * @return True if the folder can be reused; otherwise false
+     */
+    protected boolean isFolderReusable() {
+        return false;
+    }
+
+    /**
+     * Get the store
+     *
+     * @return The value
+     */
+    protected Store getStore() {
+        return store;
+    }
+
+    /**
+     * Get the folder
+     *
+     * @return The value
+     */
+    protected Folder getFolder() {
+        return folder;
+    }
+
+    /**
+     * Get an instance of a mail folder
+     *
+     * @param mailActivationSpec The mail activation spec
+     * @param engine             The multiplexed IMAP engine; <code>null</code> if not used
+     * @return The mail folder; <code>null</code> if not IMAP / POP based
+     */
+    static MailFolder getInstance(MailActivationSpec mailActivationSpec, IMAPEngine engine) {
+        if (engine != null && MultiplexedIMAPMailFolder.isSupported(mailActivationSpec)) {
+            return new MultiplexedIMAPMailFolder(mailActivationSpec, engine);
         }
+
+        return getInstance(mailActivationSpec);
     }
 
     /**
@@ -178,6 +731,19 @@ public abstract class MailFolder implements Iterator {
      */
     protected abstract Store openStore(Session session) throws NoSuchProviderException;
 
+    /**
+     * Get a new store of the session, the provider of the protocol being looked up once
+     *
+     * @param session  The mail session
+     * @param protocol The store protocol
+     * @return The store
+     * @throws NoSuchProviderException Thrown if there is no provider
+     */
+    protected Store getStore(Session session, String protocol) throws NoSuchProviderException {
+        if (provider == null) { provider = session.getProvider(protocol); }
+        return session.getStore(provider);
+    }
+
     /**
      * Close a store
      *
@@ -204,4 +770,17 @@ public abstract class MailFolder implements Iterator {
      * @throws MessagingException Thrown if there is an error
      */
     protected abstract void markMessageSeen(Message message) throws MessagingException;
+
+    /**
+     * Mark a batch of messages as seen
+     *
+     * @param folder   The folder
+     * @param messages The messages
+     * @throws MessagingException Thrown if there is an error
+     */
+    protected void markMessagesSeen(Folder folder, Message[] messages) throws MessagingException {
+        for (Message message : messages) {
+            markMessageSeen(message);
+        }
+    }
 }
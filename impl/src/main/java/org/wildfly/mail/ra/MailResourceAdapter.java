@@ -28,11 +28,25 @@ import javax.resource.spi.BootstrapContext;
 import javax.resource.spi.Connector;
 import javax.resource.spi.ResourceAdapter;
 import javax.resource.spi.ResourceAdapterInternalException;
+import javax.resource.spi.UnavailableException;
 import javax.resource.spi.endpoint.MessageEndpointFactory;
 import javax.resource.spi.work.WorkException;
 import javax.resource.spi.work.WorkManager;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.transaction.xa.XAResource;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * The mail resource adapter
@@ -82,24 +96,141 @@ public class MailResourceAdapter implements ResourceAdapter {
      */
     private ConcurrentHashMap<MailActivationSpec, MailActivation> activations;
 
+    /**
+     * The poll groups by mailbox folder and selector
+     */
+    private ConcurrentHashMap<PollGroup.Key, PollGroup> pollGroups;
+
+    /**
+     * Merge the activations watching the same folder into poll groups
+     */
+    private Boolean pollGroupsEnabled;
+
+    /**
+     * The checkpoint stores by state directory
+     */
+    private ConcurrentHashMap<Path, CheckpointStore> checkpointStores;
+
+    /**
+     * The state directories whose checkpoint store couldn't be opened
+     */
+    private Set<Path> unavailableCheckpointStores;
+
+    /**
+     * Record the delivery progress of the activations in local checkpoints
+     */
+    private Boolean checkpointsEnabled;
+
+    /**
+     * The circuit breakers by account, as user@host:port
+     */
+    private ConcurrentHashMap<String, CircuitBreaker> circuitBreakers;
+
+    /**
+     * The number of consecutive connection failures opening the circuit of an account
+     */
+    private Integer circuitBreakerThreshold;
+
+    /**
+     * The time in MS the circuit of an account first stays open
+     */
+    private Long circuitBreakerBackoff;
+
+    /**
+     * The maximum time in MS the circuit of an account stays open
+     */
+    private Long circuitBreakerMaxBackoff;
+
     /**
      * The new message worker
      */
     private NewMsgsWorker newMsgsWorker;
 
     /**
-     * Queue size
+     * The names of the registered activation metrics by activation spec
+     */
+    private ConcurrentHashMap<MailActivationSpec, ObjectName> metricsNames;
+
+    /**
+     * Queue size; kept for compatibility, the queue is unbounded
      */
     private Integer queueSize;
 
+    /**
+     * The pool of connected stores
+     */
+    private MailStorePool storePool;
+
+    /**
+     * The maximum number of idle stores kept in the pool
+     */
+    private Integer storePoolMaxSize;
+
+    /**
+     * The time in MS after which an idle pooled store is closed
+     */
+    private Long storePoolIdleTimeout;
+
+    /**
+     * The timer evicting idle pooled stores
+     */
+    private Timer evictionTimer;
+
+    /**
+     * Run the checks of the activations on virtual threads, on Java 24+
+     */
+    private Boolean useVirtualThreads;
+
+    /**
+     * Also run the concurrent deliveries on virtual threads
+     */
+    private Boolean virtualThreadDeliveries;
+
+    /**
+     * The virtual thread executor; <code>null</code> if not used
+     */
+    private ExecutorService virtualThreads;
+
+    /**
+     * The number of event loops of the multiplexed IMAP engine
+     */
+    private Integer ioThreads;
+
+    /**
+     * The command timeout in MS of the multiplexed IMAP engine
+     */
+    private Long ioTimeout;
+
+    /**
+     * The multiplexed IMAP engine; <code>null</code> until a multiplexed activation needs it
+     */
+    private IMAPEngine imapEngine;
+
     /**
      * Constructor
      */
     public MailResourceAdapter() {
         this.ctx = null;
         this.activations = new ConcurrentHashMap<>();
+        this.metricsNames = new ConcurrentHashMap<>();
+        this.pollGroups = new ConcurrentHashMap<>();
+        this.pollGroupsEnabled = false;
+        this.checkpointStores = new ConcurrentHashMap<>();
+        this.unavailableCheckpointStores = ConcurrentHashMap.newKeySet();
+        this.checkpointsEnabled = true;
+        this.circuitBreakers = new ConcurrentHashMap<>();
+        this.circuitBreakerThreshold = 3;
+        this.circuitBreakerBackoff = 10000L;
+        this.circuitBreakerMaxBackoff = 300000L;
         this.newMsgsWorker = null;
         this.queueSize = 1024;
+        this.storePool = null;
+        this.storePoolMaxSize = 32;
+        this.storePoolIdleTimeout = 300000L;
+        this.useVirtualThreads = false;
+        this.virtualThreadDeliveries = false;
+        this.ioThreads = 2;
+        this.ioTimeout = 60000L;
     }
 
     /**
@@ -112,7 +243,7 @@ public class MailResourceAdapter implements ResourceAdapter {
     }
 
     /**
-     * Set the queue size
+     * Set the queue size. Ignored: the activations wait in an unbounded queue
      *
      * @param v The value
      */
@@ -120,6 +251,346 @@ public class MailResourceAdapter implements ResourceAdapter {
         if (v != null && v > 0) { queueSize = v; }
     }
 
+    /**
+     * Get the merging of the activations into poll groups
+     *
+     * @return The value
+     */
+    public Boolean getPollGroups() {
+        return pollGroupsEnabled;
+    }
+
+    /**
+     * Set the merging of the activations watching the same folder, with the same credentials,
+     * selector and delivery options, into a poll group which fetches each message once for all
+     * their endpoints. Disabled by default
+     *
+     * @param v The value
+     */
+    public void setPollGroups(Boolean v) {
+        if (v != null) { pollGroupsEnabled = v; }
+    }
+
+    /**
+     * Get the recording of the delivery progress in local checkpoints
+     *
+     * @return The value
+     */
+    public Boolean getCheckpoints() {
+        return checkpointsEnabled;
+    }
+
+    /**
+     * Set the recording of the delivery progress (the IMAP UID marks and the delivered POP3 UIDLs)
+     * in local checkpoints of the state directory, from which a restarted adapter resumes
+     *
+     * @param v The value
+     */
+    public void setCheckpoints(Boolean v) {
+        if (v != null) { checkpointsEnabled = v; }
+    }
+
+    /**
+     * Get the number of consecutive connection failures opening the circuit of an account
+     *
+     * @return The value
+     */
+    public Integer getCircuitBreakerThreshold() {
+        return circuitBreakerThreshold;
+    }
+
+    /**
+     * Set the number of consecutive connection failures opening the circuit of an account,
+     * which skips the checks of all the activations connecting to it
+     *
+     * @param v The value
+     */
+    public void setCircuitBreakerThreshold(Integer v) {
+        if (v != null && v > 0) { circuitBreakerThreshold = v; }
+    }
+
+    /**
+     * Get the time in MS the circuit of an account first stays open
+     *
+     * @return The value
+     */
+    public Long getCircuitBreakerBackoff() {
+        return circuitBreakerBackoff;
+    }
+
+    /**
+     * Set the time in MS the circuit of an account first stays open; it doubles after
+     * each failed probe
+     *
+     * @param v The value
+     */
+    public void setCircuitBreakerBackoff(Long v) {
+        if (v != null && v > 0) { circuitBreakerBackoff = v; }
+    }
+
+    /**
+     * Get the maximum time in MS the circuit of an account stays open
+     *
+     * @return The value
+     */
+    public Long getCircuitBreakerMaxBackoff() {
+        return circuitBreakerMaxBackoff;
+    }
+
+    /**
+     * Set the maximum time in MS the circuit of an account stays open
+     *
+     * @param v The value
+     */
+    public void setCircuitBreakerMaxBackoff(Long v) {
+        if (v != null && v > 0) { circuitBreakerMaxBackoff = v; }
+    }
+
+    /**
+     * Get the circuit breaker of the account of a spec
+     *
+     * @param spec The mail activation spec
+     * @return The value
+     */
+    CircuitBreaker getCircuitBreaker(MailActivationSpec spec) {
+        return circuitBreakers.computeIfAbsent(CircuitBreaker.getAccount(spec),
+                account -> new CircuitBreaker(account, circuitBreakerThreshold, circuitBreakerBackoff,
+                        circuitBreakerMaxBackoff));
+    }
+
+    /**
+     * Get the maximum number of idle stores kept in the pool
+     *
+     * @return The value
+     */
+    public Integer getStorePoolMaxSize() {
+        return storePoolMaxSize;
+    }
+
+    /**
+     * Set the maximum number of idle stores kept in the pool; 0 disables pooling. The stores in
+     * use by running checks aren't counted, so it doesn't bound the connections to a server
+     *
+     * @param v The value
+     */
+    public void setStorePoolMaxSize(Integer v) {
+        if (v != null && v >= 0) { storePoolMaxSize = v; }
+    }
+
+    /**
+     * Get the time in MS after which an idle pooled store is closed
+     *
+     * @return The value
+     */
+    public Long getStorePoolIdleTimeout() {
+        return storePoolIdleTimeout;
+    }
+
+    /**
+     * Set the time in MS after which an idle pooled store is closed
+     *
+     * @param v The value
+     */
+    public void setStorePoolIdleTimeout(Long v) {
+        if (v != null && v > 0) { storePoolIdleTimeout = v; }
+    }
+
+    /**
+     * Get the use of virtual threads
+     *
+     * @return The value
+     */
+    public Boolean getUseVirtualThreads() {
+        return useVirtualThreads;
+    }
+
+    /**
+     * Set the use of virtual threads for the checks of the activations, when the JVM is Java 24+;
+     * the work manager is used otherwise. JavaMail does its I/O in synchronized methods, which
+     * pin a virtual thread to its carrier thread before Java 24 (JEP 491), so every blocked
+     * check would hold a carrier thread and the checks would be limited to the number of CPUs
+     *
+     * @param v The value
+     */
+    public void setUseVirtualThreads(Boolean v) {
+        if (v != null) { useVirtualThreads = v; }
+    }
+
+    /**
+     * Get the use of virtual threads for deliveries
+     *
+     * @return The value
+     */
+    public Boolean getVirtualThreadDeliveries() {
+        return virtualThreadDeliveries;
+    }
+
+    /**
+     * Set the use of virtual threads for the concurrent deliveries, when virtual threads are used
+     *
+     * @param v The value
+     */
+    public void setVirtualThreadDeliveries(Boolean v) {
+        if (v != null) { virtualThreadDeliveries = v; }
+    }
+
+    /**
+     * Get the number of event loops of the multiplexed IMAP engine
+     *
+     * @return The value
+     */
+    public Integer getIoThreads() {
+        return ioThreads;
+    }
+
+    /**
+     * Set the number of event loops of the multiplexed IMAP engine
+     *
+     * @param v The value
+     */
+    public void setIoThreads(Integer v) {
+        if (v != null && v > 0) { ioThreads = v; }
+    }
+
+    /**
+     * Get the command timeout in MS of the multiplexed IMAP engine
+     *
+     * @return The value
+     */
+    public Long getIoTimeout() {
+        return ioTimeout;
+    }
+
+    /**
+     * Set the command timeout in MS of the multiplexed IMAP engine
+     *
+     * @param v The value
+     */
+    public void setIoTimeout(Long v) {
+        if (v != null && v > 0) { ioTimeout = v; }
+    }
+
+    /**
+     * Get the checkpoint store of the state directory of a spec, opened on first use. A store
+     * which can't be opened isn't retried until the adapter is restarted
+     *
+     * @param spec The mail activation spec
+     * @return The value; <code>null</code> if the checkpoints are disabled or can't be opened
+     */
+    CheckpointStore getCheckpointStore(MailActivationSpec spec) {
+        if (!checkpointsEnabled || ctx == null) { return null; }
+
+        Path directory = CheckpointStore.getStateDirectory(spec.getStateDirectory());
+        if (unavailableCheckpointStores.contains(directory)) { return null; }
+
+        return checkpointStores.computeIfAbsent(directory, dir -> {
+            try {
+                return CheckpointStore.open(dir);
+            } catch (IOException e) {
+                unavailableCheckpointStores.add(dir);
+                log.warn("Failed to open the checkpoints of " + dir + ", the IMAP UID marks are kept in memory " +
+                        "and the delivered POP3 UIDLs in files of the directory", e);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Get the multiplexed IMAP engine, started on first use
+     *
+     * @return The value; <code>null</code> if not started or the engine can't be started
+     */
+    synchronized IMAPEngine getIMAPEngine() {
+        if (imapEngine != null || ctx == null) { return imapEngine; }
+
+        try {
+            IMAPEngine engine = new IMAPEngine(ioThreads, ioTimeout, storePoolIdleTimeout);
+            engine.start(ctx.getWorkManager());
+            imapEngine = engine;
+        } catch (IOException | WorkException e) {
+            log.warn("Failed to start the multiplexed IMAP engine, using JavaMail", e);
+        }
+        return imapEngine;
+    }
+
+    /**
+     * Get the executor of the checks
+     *
+     * @return The value; <code>null</code> for the work manager
+     */
+    Executor getCheckExecutor() {
+        return virtualThreads;
+    }
+
+    /**
+     * Get the executor of the concurrent deliveries
+     *
+     * @return The value; <code>null</code> for the work manager
+     */
+    Executor getDeliveryExecutor() {
+        return virtualThreadDeliveries ? virtualThreads : null;
+    }
+
+    /**
+     * Create an executor starting a virtual thread per task
+     *
+     * @return The executor; <code>null</code> if the JVM doesn't support virtual threads,
+     *         or pins them in synchronized blocks
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        if (getJavaVersion() < 24) { return null; }
+
+        try {
+            // Java 21+, looked up reflectively as the adapter is built for Java 8
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.debugf("Virtual threads not available: %s", e);
+            return null;
+        }
+    }
+
+    /**
+     * Get the feature version of the JVM
+     *
+     * @return The value; 8 for Java 8 and older
+     */
+    private static int getJavaVersion() {
+        String version = System.getProperty("java.specification.version", "");
+        try {
+            return Integer.parseInt(version);
+        } catch (NumberFormatException e) {
+            // 1.8 and older
+            return 8;
+        }
+    }
+
+    /**
+     * Get the work manager
+     *
+     * @return The value; <code>null</code> if not started
+     */
+    WorkManager getWorkManager() {
+        return ctx != null ? ctx.getWorkManager() : null;
+    }
+
+    /**
+     * Get the new messages worker
+     *
+     * @return The value; <code>null</code> if not started
+     */
+    NewMsgsWorker getNewMsgsWorker() {
+        return newMsgsWorker;
+    }
+
+    /**
+     * Get the store pool
+     *
+     * @return The value; <code>null</code> if pooling is disabled
+     */
+    MailStorePool getStorePool() {
+        return storePool;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -129,13 +600,38 @@ public class MailResourceAdapter implements ResourceAdapter {
         this.ctx = ctx;
 
         WorkManager mgr = ctx.getWorkManager();
-        newMsgsWorker = new NewMsgsWorker(mgr, queueSize);
+        newMsgsWorker = new NewMsgsWorker(mgr);
+
+        if (useVirtualThreads) {
+            virtualThreads = newVirtualThreadExecutor();
+            if (virtualThreads != null) {
+                newMsgsWorker.setExecutor(virtualThreads);
+            } else {
+                log.warnf("Virtual threads need Java 24+, as JavaMail would pin them in synchronized I/O " +
+                        "on Java %s, using the work manager", System.getProperty("java.specification.version"));
+            }
+        }
 
         try {
             mgr.scheduleWork(newMsgsWorker);
         } catch (WorkException e) {
             throw new ResourceAdapterInternalException(e);
         }
+
+        if (storePoolMaxSize > 0) {
+            storePool = new MailStorePool(storePoolMaxSize, storePoolIdleTimeout);
+
+            try {
+                evictionTimer = ctx.createTimer();
+                evictionTimer.schedule(new TimerTask() {
+                    public void run() {
+                        storePool.evict();
+                    }
+                }, storePoolIdleTimeout, storePoolIdleTimeout);
+            } catch (UnavailableException e) {
+                throw new ResourceAdapterInternalException(e);
+            }
+        }
     }
 
     /**
@@ -145,6 +641,40 @@ public class MailResourceAdapter implements ResourceAdapter {
         log.debugf("stop");
 
         newMsgsWorker.release();
+
+        for (MailActivationSpec spec : metricsNames.keySet()) {
+            unregisterMetrics(spec);
+        }
+
+        if (evictionTimer != null) {
+            evictionTimer.cancel();
+            evictionTimer = null;
+        }
+
+        if (virtualThreads != null) {
+            // The checks in progress complete on their own
+            virtualThreads.shutdown();
+            virtualThreads = null;
+        }
+
+        if (storePool != null) {
+            storePool.close();
+            storePool = null;
+        }
+
+        synchronized (this) {
+            if (imapEngine != null) {
+                imapEngine.stop();
+                imapEngine = null;
+            }
+            ctx = null;
+        }
+
+        for (CheckpointStore checkpoints : checkpointStores.values()) {
+            checkpoints.close();
+        }
+        checkpointStores.clear();
+        unavailableCheckpointStores.clear();
     }
 
     /**
@@ -161,14 +691,27 @@ public class MailResourceAdapter implements ResourceAdapter {
         }
 
         MailActivationSpec mailSpec = (MailActivationSpec) spec;
-        MailActivation activation = new MailActivation(endpointFactory, mailSpec);
+        MailActivation activation = new MailActivation(this, endpointFactory, mailSpec);
+
+        boolean poller = true;
+        if (pollGroupsEnabled) {
+            synchronized (pollGroups) {
+                PollGroup group = pollGroups.computeIfAbsent(new PollGroup.Key(mailSpec), PollGroup::new);
+                activation.setPollGroup(group);
+                poller = group.join(activation);
+            }
+            if (!poller) { log.debugf("Joined poll group: spec=%s", mailSpec); }
+        }
 
         try {
-            newMsgsWorker.watch(activation);
+            if (poller) { newMsgsWorker.watch(activation); }
             activations.put(mailSpec, activation);
         } catch (InterruptedException e) {
+            leavePollGroup(activation);
             throw new ResourceException("Failed to schedule new msg check", e);
         }
+
+        registerMetrics(endpointFactory, mailSpec, activation);
     }
 
     /**
@@ -180,7 +723,118 @@ public class MailResourceAdapter implements ResourceAdapter {
         if (spec != null && spec instanceof MailActivationSpec) {
             MailActivation activation = activations.remove(spec);
 
-            if (activation != null) { activation.release(); }
+            if (activation != null) {
+                activation.deactivate();
+                leavePollGroup(activation);
+            }
+
+            unregisterMetrics(spec);
+        }
+    }
+
+    /**
+     * Remove an activation from its poll group, handing the polling over to another member
+     * if it was the poller. The polling, and the marks, are handed over once the running check
+     * of the activation has completed, so that the successor doesn't check the folder
+     * concurrently, and starts from the marks that check reached
+     *
+     * @param activation The activation
+     */
+    private void leavePollGroup(MailActivation activation) {
+        PollGroup group = activation.getPollGroup();
+        if (group == null) { return; }
+
+        MailActivation successor;
+        synchronized (pollGroups) {
+            successor = group.leave(activation);
+            if (group.isEmpty()) { pollGroups.remove(group.getKey(), group); }
+            // Should the successor leave in turn, its own successor waits for this take over
+            if (successor != null) { successor.holdForTakeOver(); }
+        }
+
+        if (successor != null) { activation.afterCheck(() -> handOver(group, activation, successor)); }
+    }
+
+    /**
+     * Hand the polling of a poll group over to a new poller
+     *
+     * @param group     The poll group
+     * @param previous  The previous poller
+     * @param successor The new poller
+     */
+    private void handOver(PollGroup group, MailActivation previous, MailActivation successor) {
+        successor.takeOver(previous);
+        try {
+            newMsgsWorker.watch(successor);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Failed to hand over the polling of " + group.getKey());
+        }
+    }
+
+    /**
+     * Register the metrics MBean of an activation, named after the activation, or the mailbox
+     * it watches if the container doesn't name activations. The name is stable across redeploys;
+     * activations sharing one are told apart by an index in their deployment order
+     *
+     * @param endpointFactory The message endpoint factory
+     * @param spec            The activation spec
+     * @param activation      The activation
+     */
+    private void registerMetrics(MessageEndpointFactory endpointFactory, MailActivationSpec spec,
+                                 MailActivation activation) {
+        String name = getActivationName(endpointFactory);
+        if (name == null) {
+            name = spec.getStoreProtocol() + "://" + spec.getUserName() + "@" + spec.getMailServer() + ":" +
+                    spec.getPort() + "/" + spec.getMailFolder();
+        }
+
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            String base = "org.wildfly.mail.ra:type=MailActivation,name=" + ObjectName.quote(name);
+            for (int index = 1; ; index++) {
+                ObjectName objectName = new ObjectName(index == 1 ? base : base + ",index=" + index);
+                try {
+                    server.registerMBean(activation.getMetrics(), objectName);
+                    metricsNames.put(spec, objectName);
+                    return;
+                } catch (InstanceAlreadyExistsException e) {
+                    log.tracef("Metrics name taken: %s", objectName);
+                }
+            }
+        } catch (JMException | RuntimeException e) {
+            log.warn("Failed to register metrics of activation " + name, e);
+        }
+    }
+
+    /**
+     * Get the name of an activation
+     *
+     * @param endpointFactory The message endpoint factory
+     * @return The value; <code>null</code> if unknown
+     */
+    private static String getActivationName(MessageEndpointFactory endpointFactory) {
+        try {
+            return endpointFactory.getActivationName();
+        } catch (AbstractMethodError | UnsupportedOperationException e) {
+            // The activation name is only known since JCA 1.7
+            return null;
+        }
+    }
+
+    /**
+     * Unregister the metrics MBean of an activation
+     *
+     * @param spec The activation spec
+     */
+    private void unregisterMetrics(ActivationSpec spec) {
+        ObjectName objectName = metricsNames.remove(spec);
+        if (objectName == null) { return; }
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException | RuntimeException e) {
+            log.debug("Failed to unregister metrics " + objectName, e);
         }
     }
 
@@ -0,0 +1,336 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.mail.ra;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.mail.Folder;
+import javax.mail.Store;
+
+import org.jboss.logging.Logger;
+
+/**
+ * A pool of authenticated mail stores shared by the activations of the resource adapter,
+ * so that a poll doesn't need a new connection and login each time.
+ *
+ * A store is borrowed by a single MailFolder for the duration of a poll and returned
+ * on a successful close; stores that failed are closed instead. Idle stores are health
+ * checked (JavaMail issues a NOOP on isConnected) when borrowed and evicted after the
+ * idle timeout.
+ *
+ * The max size only bounds the idle stores: a borrow never waits, and a poll which finds no
+ * idle store connects a new one, so there are as many connections to a server as polls
+ * running against it, plus the idle stores kept. Only IMAP stores are pooled
+ */
+public class MailStorePool {
+    private static Logger log = Logger.getLogger(MailStorePool.class);
+
+    private final ConcurrentHashMap<Key, ConcurrentLinkedDeque<PooledStore>> idleStores;
+
+    private final AtomicInteger idleCount;
+
+    private final int maxSize;
+
+    private final long idleTimeout;
+
+    /**
+     * Constructor
+     *
+     * @param maxSize     The maximum number of idle stores kept
+     * @param idleTimeout The time in MS after which an idle store is closed
+     */
+    public MailStorePool(int maxSize, long idleTimeout) {
+        this.idleStores = new ConcurrentHashMap<>();
+        this.idleCount = new AtomicInteger();
+        this.maxSize = maxSize;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Borrow a connected store
+     *
+     * @param key The store key
+     * @return The pooled store; <code>null</code> if none is available
+     */
+    public PooledStore borrow(Key key) {
+        ConcurrentLinkedDeque<PooledStore> stores = idleStores.get(key);
+        if (stores == null) { return null; }
+
+        PooledStore pooled;
+        while ((pooled = stores.pollFirst()) != null) {
+            idleCount.decrementAndGet();
+
+            if (pooled.isExpired(System.currentTimeMillis(), idleTimeout) || !pooled.getStore().isConnected()) {
+                log.tracef("Discarding pooled store: %s", key);
+                pooled.close();
+                continue;
+            }
+
+            log.tracef("Reusing pooled store: %s", key);
+            return pooled;
+        }
+
+        return null;
+    }
+
+    /**
+     * Return a store to the pool. The store is closed if the pool is full
+     *
+     * @param pooled The pooled store
+     */
+    public void release(PooledStore pooled) {
+        if (idleCount.incrementAndGet() > maxSize) {
+            idleCount.decrementAndGet();
+            pooled.close();
+            return;
+        }
+
+        pooled.touch();
+
+        ConcurrentLinkedDeque<PooledStore> stores = idleStores.get(pooled.getKey());
+        if (stores == null) {
+            ConcurrentLinkedDeque<PooledStore> newStores = new ConcurrentLinkedDeque<>();
+            stores = idleStores.putIfAbsent(pooled.getKey(), newStores);
+            if (stores == null) { stores = newStores; }
+        }
+
+        stores.offerFirst(pooled);
+    }
+
+    /**
+     * Close the stores which have been idle longer than the idle timeout
+     */
+    public void evict() {
+        long now = System.currentTimeMillis();
+
+        for (ConcurrentLinkedDeque<PooledStore> stores : idleStores.values()) {
+            // The least recently used stores are at the tail
+            Iterator<PooledStore> it = stores.descendingIterator();
+            while (it.hasNext()) {
+                PooledStore pooled = it.next();
+                if (pooled.isExpired(now, idleTimeout) && stores.removeFirstOccurrence(pooled)) {
+                    idleCount.decrementAndGet();
+                    log.tracef("Evicting idle store: %s", pooled.getKey());
+                    pooled.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Close all the idle stores
+     */
+    public void close() {
+        for (Map.Entry<Key, ConcurrentLinkedDeque<PooledStore>> entry : idleStores.entrySet()) {
+            PooledStore pooled;
+            while ((pooled = entry.getValue().pollFirst()) != null) {
+                idleCount.decrementAndGet();
+                pooled.close();
+            }
+        }
+    }
+
+    /**
+     * Get the number of idle stores
+     *
+     * @return The value
+     */
+    public int getIdleCount() {
+        return idleCount.get();
+    }
+
+    /**
+     * The identity of a store connection
+     */
+    public static final class Key {
+        private final String protocol;
+        private final String mailServer;
+        private final int port;
+        private final String userName;
+        private final String password;
+        private final boolean starttls;
+        private final Properties sessionProperties;
+
+        /**
+         * Constructor
+         *
+         * @param protocol   The store protocol
+         * @param mailServer The mail server
+         * @param port       The port
+         * @param userName   The user name
+         * @param password   The password
+         * @param starttls   Is starttls enabled
+         */
+        public Key(String protocol, String mailServer, int port, String userName, String password,
+                   boolean starttls) {
+            this(protocol, mailServer, port, userName, password, starttls, new Properties());
+        }
+
+        /**
+         * Constructor
+         *
+         * @param protocol          The store protocol
+         * @param mailServer        The mail server
+         * @param port              The port
+         * @param userName          The user name
+         * @param password          The password
+         * @param starttls          Is starttls enabled
+         * @param sessionProperties The properties of the mail session the store is created from
+         */
+        public Key(String protocol, String mailServer, int port, String userName, String password,
+                   boolean starttls, Properties sessionProperties) {
+            this.protocol = protocol;
+            this.mailServer = mailServer;
+            this.port = port;
+            this.userName = userName;
+            this.password = password;
+            this.starttls = starttls;
+            this.sessionProperties = new Properties();
+            this.sessionProperties.putAll(sessionProperties);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public int hashCode() {
+            int result = protocol != null ? protocol.hashCode() : 0;
+            result = 31 * result + (mailServer != null ? mailServer.hashCode() : 0);
+            result = 31 * result + port;
+            result = 31 * result + (userName != null ? userName.hashCode() : 0);
+            result = 31 * result + sessionProperties.hashCode();
+            return result;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public boolean equals(Object other) {
+            if (this == other) { return true; }
+            if (!(other instanceof Key)) { return false; }
+
+            // The password is part of the identity so that a store is never handed to a spec with other credentials,
+            // and the session properties so that it is never handed to a spec with other session settings
+            Key key = (Key) other;
+            return port == key.port &&
+                    starttls == key.starttls &&
+                    equals(protocol, key.protocol) &&
+                    equals(mailServer, key.mailServer) &&
+                    equals(userName, key.userName) &&
+                    equals(password, key.password) &&
+                    sessionProperties.equals(key.sessionProperties);
+        }
+
+        private static boolean equals(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public String toString() {
+            return protocol + "://" + userName + "@" + mailServer + ":" + port;
+        }
+    }
+
+    /**
+     * A connected store, and optionally the folder left open on it
+     */
+    public static final class PooledStore {
+        private final Key key;
+        private final Store store;
+        private Folder folder;
+        private long lastUsed;
+
+        /**
+         * Constructor
+         *
+         * @param key   The key
+         * @param store The connected store
+         */
+        public PooledStore(Key key, Store store) {
+            this.key = key;
+            this.store = store;
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        /**
+         * Get the key
+         *
+         * @return The value
+         */
+        public Key getKey() {
+            return key;
+        }
+
+        /**
+         * Get the store
+         *
+         * @return The value
+         */
+        public Store getStore() {
+            return store;
+        }
+
+        /**
+         * Get the folder left open on the store
+         *
+         * @return The value; <code>null</code> if none
+         */
+        public Folder getFolder() {
+            return folder;
+        }
+
+        /**
+         * Set the folder left open on the store
+         *
+         * @param folder The value
+         */
+        public void setFolder(Folder folder) {
+            this.folder = folder;
+        }
+
+        void touch() {
+            lastUsed = System.currentTimeMillis();
+        }
+
+        boolean isExpired(long now, long timeout) {
+            return now - lastUsed > timeout;
+        }
+
+        void close() {
+            try {
+                if (folder != null && folder.isOpen()) {
+                    folder.close(false);
+                }
+            } catch (Exception e) {
+                log.debug("Error closing pooled folder", e);
+            }
+
+            try {
+                store.close();
+            } catch (Exception e) {
+                log.debug("Error closing pooled store", e);
+            }
+        }
+    }
+}
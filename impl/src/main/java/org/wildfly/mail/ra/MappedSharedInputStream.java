@@ -0,0 +1,117 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.mail.ra;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import javax.mail.internet.SharedInputStream;
+
+/**
+ * A SharedInputStream over a memory-mapped buffer; the streams created for the parts
+ * of a message share the mapping instead of copying its bytes to the heap
+ */
+public class MappedSharedInputStream extends InputStream implements SharedInputStream {
+    private final ByteBuffer buffer;
+
+    /**
+     * Constructor
+     *
+     * @param buffer The buffer; the stream covers its position up to its limit
+     */
+    public MappedSharedInputStream(ByteBuffer buffer) {
+        this.buffer = buffer.slice();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int read() {
+        return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int read(byte[] b, int off, int len) {
+        if (len == 0) { return 0; }
+        if (!buffer.hasRemaining()) { return -1; }
+
+        int n = Math.min(len, buffer.remaining());
+        buffer.get(b, off, n);
+        return n;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long skip(long n) {
+        if (n <= 0) { return 0; }
+
+        int skipped = (int) Math.min(n, buffer.remaining());
+        buffer.position(buffer.position() + skipped);
+        return skipped;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int available() {
+        return buffer.remaining();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean markSupported() {
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void mark(int readlimit) {
+        buffer.mark();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void reset() {
+        buffer.reset();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getPosition() {
+        return buffer.position();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public InputStream newStream(long start, long end) {
+        if (start < 0) { throw new IllegalArgumentException("start < 0"); }
+
+        ByteBuffer view = buffer.duplicate();
+        view.limit(end == -1 ? buffer.limit() : (int) end);
+        view.position((int) start);
+        return new MappedSharedInputStream(view);
+    }
+}
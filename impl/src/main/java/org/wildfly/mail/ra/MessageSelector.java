@@ -0,0 +1,285 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.mail.ra;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import javax.mail.Message;
+import javax.mail.search.AndTerm;
+import javax.mail.search.BodyTerm;
+import javax.mail.search.ComparisonTerm;
+import javax.mail.search.FromStringTerm;
+import javax.mail.search.HeaderTerm;
+import javax.mail.search.NotTerm;
+import javax.mail.search.OrTerm;
+import javax.mail.search.ReceivedDateTerm;
+import javax.mail.search.RecipientStringTerm;
+import javax.mail.search.SearchTerm;
+import javax.mail.search.SentDateTerm;
+import javax.mail.search.SizeTerm;
+import javax.mail.search.SubjectTerm;
+
+/**
+ * Compiles a message selector into a JavaMail SearchTerm, which the IMAP store
+ * sends to the server as SEARCH criteria.
+ *
+ * <pre>
+ * selector  := or
+ * or        := and ( OR and )*
+ * and       := not ( AND not )*
+ * not       := NOT not | '(' or ')' | predicate
+ * predicate := ( from | to | cc | subject | body ) '=' string
+ *            | header '(' string ')' '=' string
+ *            | size op number
+ *            | ( sent | received ) op date
+ * op        := '&lt;' | '&lt;=' | '=' | '&lt;&gt;' | '&gt;=' | '&gt;'
+ * </pre>
+ *
+ * Strings are single quoted, with '' as an escaped quote, and match as case insensitive
+ * substrings as IMAP SEARCH does. Dates are yyyy-MM-dd. Size comparisons other than
+ * '&lt;' and '&gt;' are rewritten with NOT, AND and OR, as IMAP SEARCH only has LARGER
+ * and SMALLER. Keywords are case insensitive,
+ * e.g. <code>from = 'billing@' AND NOT subject = 'test' AND size &lt; 1048576</code>
+ */
+public final class MessageSelector {
+    private final String selector;
+
+    private int pos;
+
+    private MessageSelector(String selector) {
+        this.selector = selector;
+    }
+
+    /**
+     * Compile a message selector
+     *
+     * @param selector The selector
+     * @return The search term; <code>null</code> if the selector is empty
+     * @throws IllegalArgumentException Thrown if the selector is invalid
+     */
+    public static SearchTerm parse(String selector) {
+        if (selector == null || selector.trim().isEmpty()) { return null; }
+
+        MessageSelector parser = new MessageSelector(selector);
+        SearchTerm term = parser.parseOr();
+
+        parser.skipWhitespace();
+        if (parser.pos < selector.length()) { throw parser.error("Unexpected input"); }
+
+        return term;
+    }
+
+    private SearchTerm parseOr() {
+        SearchTerm term = parseAnd();
+        while (acceptKeyword("OR")) {
+            term = new OrTerm(term, parseAnd());
+        }
+        return term;
+    }
+
+    private SearchTerm parseAnd() {
+        SearchTerm term = parseNot();
+        while (acceptKeyword("AND")) {
+            term = new AndTerm(term, parseNot());
+        }
+        return term;
+    }
+
+    private SearchTerm parseNot() {
+        if (acceptKeyword("NOT")) { return new NotTerm(parseNot()); }
+
+        if (accept("(")) {
+            SearchTerm term = parseOr();
+            expect(")");
+            return term;
+        }
+
+        return parsePredicate();
+    }
+
+    private SearchTerm parsePredicate() {
+        String field = identifier().toLowerCase(Locale.ENGLISH);
+
+        switch (field) {
+            case "from":
+                expect("=");
+                return new FromStringTerm(string());
+            case "to":
+                expect("=");
+                return new RecipientStringTerm(Message.RecipientType.TO, string());
+            case "cc":
+                expect("=");
+                return new RecipientStringTerm(Message.RecipientType.CC, string());
+            case "subject":
+                expect("=");
+                return new SubjectTerm(string());
+            case "body":
+                expect("=");
+                return new BodyTerm(string());
+            case "header":
+                expect("(");
+                String name = string();
+                expect(")");
+                expect("=");
+                return new HeaderTerm(name, string());
+            case "size":
+                int comparison = comparison();
+                return size(comparison, number());
+            case "sent":
+                comparison = comparison();
+                return new SentDateTerm(comparison, date());
+            case "received":
+                comparison = comparison();
+                return new ReceivedDateTerm(comparison, date());
+            default:
+                throw error("Unknown field '" + field + "'");
+        }
+    }
+
+    /**
+     * IMAP SEARCH only has LARGER and SMALLER, and JavaMail matches any other size comparison
+     * on the client, fetching the whole folder: the others are rewritten with NOT, AND and OR
+     *
+     * @param comparison The comparison
+     * @param size       The size
+     * @return The search term
+     */
+    private static SearchTerm size(int comparison, int size) {
+        switch (comparison) {
+            case ComparisonTerm.LT:
+            case ComparisonTerm.GT:
+                return new SizeTerm(comparison, size);
+            case ComparisonTerm.LE:
+                return new NotTerm(new SizeTerm(ComparisonTerm.GT, size));
+            case ComparisonTerm.GE:
+                return new NotTerm(new SizeTerm(ComparisonTerm.LT, size));
+            case ComparisonTerm.EQ:
+                return new AndTerm(new NotTerm(new SizeTerm(ComparisonTerm.GT, size)),
+                        new NotTerm(new SizeTerm(ComparisonTerm.LT, size)));
+            default:
+                return new OrTerm(new SizeTerm(ComparisonTerm.GT, size), new SizeTerm(ComparisonTerm.LT, size));
+        }
+    }
+
+    private int comparison() {
+        skipWhitespace();
+        if (accept("<=")) { return ComparisonTerm.LE; }
+        if (accept("<>")) { return ComparisonTerm.NE; }
+        if (accept(">=")) { return ComparisonTerm.GE; }
+        if (accept("<")) { return ComparisonTerm.LT; }
+        if (accept(">")) { return ComparisonTerm.GT; }
+        if (accept("=")) { return ComparisonTerm.EQ; }
+        throw error("Expected a comparison operator");
+    }
+
+    private String identifier() {
+        skipWhitespace();
+        int start = pos;
+        while (pos < selector.length() && Character.isLetter(selector.charAt(pos))) {
+            pos++;
+        }
+        if (start == pos) { throw error("Expected a field"); }
+        return selector.substring(start, pos);
+    }
+
+    private String string() {
+        skipWhitespace();
+        if (pos >= selector.length() || selector.charAt(pos) != '\'') { throw error("Expected a quoted string"); }
+
+        StringBuilder sb = new StringBuilder();
+        pos++;
+        while (pos < selector.length()) {
+            char c = selector.charAt(pos++);
+            if (c == '\'') {
+                if (pos < selector.length() && selector.charAt(pos) == '\'') {
+                    sb.append(c);
+                    pos++;
+                } else {
+                    return sb.toString();
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+        throw error("Unterminated string");
+    }
+
+    private int number() {
+        skipWhitespace();
+        int start = pos;
+        while (pos < selector.length() && Character.isDigit(selector.charAt(pos))) {
+            pos++;
+        }
+        try {
+            return Integer.parseInt(selector.substring(start, pos));
+        } catch (NumberFormatException e) {
+            pos = start;
+            throw error("Expected a number");
+        }
+    }
+
+    private Date date() {
+        int start = pos;
+        String value = string();
+        try {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd", Locale.ENGLISH);
+            format.setLenient(false);
+            return format.parse(value);
+        } catch (ParseException e) {
+            pos = start;
+            throw error("Expected a yyyy-MM-dd date");
+        }
+    }
+
+    private boolean acceptKeyword(String keyword) {
+        skipWhitespace();
+        int end = pos + keyword.length();
+        if (selector.regionMatches(true, pos, keyword, 0, keyword.length()) &&
+                (end == selector.length() || !Character.isLetter(selector.charAt(end)))) {
+            pos = end;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean accept(String token) {
+        skipWhitespace();
+        if (selector.startsWith(token, pos)) {
+            pos += token.length();
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(String token) {
+        if (!accept(token)) { throw error("Expected '" + token + "'"); }
+    }
+
+    private void skipWhitespace() {
+        while (pos < selector.length() && Character.isWhitespace(selector.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at position " + pos + " of message selector: " + selector);
+    }
+}
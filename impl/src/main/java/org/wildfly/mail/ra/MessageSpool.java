@@ -0,0 +1,167 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.mail.ra;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import javax.mail.Flags;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Spools the messages above a size threshold to files, and delivers them as MimeMessages
+ * backed by a memory-mapped view of the file, so that their content stays off the heap.
+ *
+ * The raw message is read from the store once; the spool file is deleted when the
+ * delivery completes. A mapping lives until its buffer is garbage collected, which
+ * doesn't prevent the deletion on Unix
+ */
+public class MessageSpool {
+    private static Logger log = Logger.getLogger(MessageSpool.class);
+
+    private final Path directory;
+
+    private final int threshold;
+
+    /**
+     * Constructor
+     *
+     * @param directory The spool directory; <code>null</code> for the temporary directory
+     * @param threshold The size in bytes above which a message is spooled
+     */
+    public MessageSpool(String directory, int threshold) {
+        this.directory = Paths.get(directory != null ? directory : System.getProperty("java.io.tmpdir"));
+        this.threshold = threshold;
+    }
+
+    /**
+     * Spool a message if it is above the threshold
+     *
+     * @param msg The message
+     * @return The spooled message; the message itself if it isn't spooled
+     */
+    public Message spool(Message msg) {
+        Path file = null;
+        try {
+            if (msg.getSize() <= threshold) { return msg; }
+
+            Files.createDirectories(directory);
+            file = Files.createTempFile(directory, "mail-", ".eml");
+
+            try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(file))) {
+                msg.writeTo(os);
+            }
+
+            MappedByteBuffer buffer;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                if (channel.size() > Integer.MAX_VALUE) {
+                    log.debugf("Message too large to map, delivering it unspooled: %s", file);
+                    delete(file);
+                    return msg;
+                }
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+
+            log.tracef("Spooled message %d: %s", msg.getMessageNumber(), file);
+            MappedSharedInputStream content = new MappedSharedInputStream(buffer);
+            return msg.getFolder() != null ? new SpooledMessage(msg, msg.getFolder(), content, file) :
+                    new SpooledMessage(msg, content, file);
+        } catch (IOException | MessagingException e) {
+            log.warn("Failed to spool message, delivering it unspooled", e);
+            if (file != null) { delete(file); }
+            return msg;
+        }
+    }
+
+    /**
+     * Release a delivered message, deleting its spool file
+     *
+     * @param msg The message returned by spool
+     */
+    public void release(Message msg) {
+        if (msg instanceof SpooledMessage) { delete(((SpooledMessage) msg).file); }
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.debugf(e, "Failed to delete spool file: %s", file);
+            file.toFile().deleteOnExit();
+        }
+    }
+
+    /**
+     * A message parsed from its spool file. It belongs to the folder of the original message,
+     * if any, e.g. not for the multiplexed IMAP engine; the flags and the received date are
+     * those of the original message
+     */
+    private static final class SpooledMessage extends MimeMessage {
+        private final Message original;
+        private final Path file;
+
+        SpooledMessage(Message original, Folder folder, MappedSharedInputStream content, Path file)
+            throws MessagingException {
+            super(folder, content, original.getMessageNumber());
+            this.original = original;
+            this.file = file;
+        }
+
+        SpooledMessage(Message original, MappedSharedInputStream content, Path file) throws MessagingException {
+            super((Session) null, content);
+            setMessageNumber(original.getMessageNumber());
+            this.original = original;
+            this.file = file;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public Flags getFlags() throws MessagingException {
+            return original.getFlags();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void setFlags(Flags flag, boolean set) throws MessagingException {
+            original.setFlags(flag, set);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public Date getReceivedDate() throws MessagingException {
+            return original.getReceivedDate();
+        }
+    }
+}
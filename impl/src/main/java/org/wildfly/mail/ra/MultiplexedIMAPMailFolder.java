@@ -0,0 +1,928 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wildfly.mail.ra;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.mail.Flags;
+import javax.mail.Flags.Flag;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.NoSuchProviderException;
+import javax.mail.Session;
+import javax.mail.Store;
+import javax.mail.search.SearchTerm;
+
+import org.jboss.logging.Logger;
+
+/**
+ * An IMAP mail folder read through the multiplexed IMAP engine of the resource adapter
+ * instead of a JavaMail store. The connection stays logged in with the folder selected
+ * between checks, without holding a thread. A check pipelines its commands, and issues each
+ * round trip from the completion of the previous one, on the event loop of the connection,
+ * so that no thread waits on the server: one round trip finds the new messages, another one
+ * fetches their headers and sizes, and a third one the bodies of the messages up to the
+ * fetch content max size. The other bodies are read on demand, in fetch size chunks if
+ * partial fetches are enabled.
+ *
+ * Only plain IMAP is supported, with ASCII credentials, a single folder with an ASCII
+ * name, an ASCII selector, and only in the poll delivery mode; the other specs use
+ * {@link IMAPMailFolder}. As the engine sends its LOGIN in clear text, a spec for which
+ * TLS is requested, by the spec or by the mail.imap.starttls and mail.imap.ssl system
+ * properties, is never served by it.
+ *
+ * The flags of the delivered messages are stored without waiting for the server: the UID
+ * STOREs are chained, and the chain is awaited once, when the folder is closed.
+ */
+class MultiplexedIMAPMailFolder extends MailFolder {
+    private static Logger log = Logger.getLogger(MultiplexedIMAPMailFolder.class);
+
+    /**
+     * The default IMAP port
+     */
+    private static final int DEFAULT_PORT = 143;
+
+    /**
+     * The items fetched for a new message
+     */
+    private static final String FETCH_ITEMS = "(UID FLAGS INTERNALDATE RFC822.SIZE BODY.PEEK[HEADER])";
+
+    /**
+     * The items fetched for a prefetched body
+     */
+    private static final String BODY_ITEMS = "(UID BODY.PEEK[TEXT])";
+
+    /**
+     * The properties requesting TLS for IMAP
+     */
+    private static final String[] TLS_PROPERTIES = {
+        "mail.imap.starttls.enable", "mail.imap.starttls.required", "mail.imap.ssl.enable"
+    };
+
+    private final IMAPEngine engine;
+
+    private final MailStorePool.Key key;
+
+    private final String mailServer;
+
+    private final int port;
+
+    private final String folderName;
+
+    private final String login;
+
+    private final String criteria;
+
+    private final boolean incrementalFetch;
+
+    private final int fetchContentMaxSize;
+
+    private final int fetchSize;
+
+    private final Session session;
+
+    private UIDWatermark watermark;
+
+    private volatile IMAPConnection connection;
+
+    private boolean tracking;
+
+    private long pendingUid;
+
+    /**
+     * The UID STOREs issued since the folder was opened, completed once they all have; guarded by this
+     */
+    private CompletableFuture<Void> stores = CompletableFuture.completedFuture(null);
+
+    /**
+     * Constructor
+     *
+     * @param spec   The mail activation spec
+     * @param engine The multiplexed IMAP engine
+     */
+    MultiplexedIMAPMailFolder(MailActivationSpec spec, IMAPEngine engine) {
+        super(spec);
+        this.engine = engine;
+        this.mailServer = spec.getMailServer();
+        this.port = spec.getPort() > 0 ? spec.getPort() : DEFAULT_PORT;
+        this.folderName = spec.getMailFolder();
+        this.key = new MailStorePool.Key("imap", mailServer, port, spec.getUserName(), spec.getPassword(), false);
+        this.login = "LOGIN " + IMAPSearchCriteria.quote(spec.getUserName()) + " " +
+                IMAPSearchCriteria.quote(spec.getPassword());
+        this.criteria = toCriteria(spec);
+        this.incrementalFetch = spec.isIncrementalFetch();
+        // The body of a large message is only read on demand
+        int threshold = spec.getLargeMessageThreshold();
+        this.fetchContentMaxSize = threshold > 0 ? Math.min(spec.getFetchContentMaxSize(), threshold) :
+                spec.getFetchContentMaxSize();
+        this.fetchSize = spec.isPartialFetch() ? spec.getFetchSize() : 0;
+        this.session = Session.getInstance(new Properties());
+    }
+
+    /**
+     * Can a spec be served by the multiplexed IMAP engine
+     *
+     * @param spec The mail activation spec
+     * @return True if it can; otherwise false
+     */
+    static boolean isSupported(MailActivationSpec spec) {
+        if (!spec.isMultiplexed() || !"imap".equals(spec.getStoreProtocol()) || isTlsRequested(spec) ||
+                "idle".equals(spec.getDeliveryMode())) {
+            return false;
+        }
+        if (MailFolder.isMultipleFolders(spec.getMailFolder())) { return false; }
+
+        try {
+            IMAPSearchCriteria.quote(spec.getUserName());
+            IMAPSearchCriteria.quote(spec.getPassword());
+            IMAPSearchCriteria.quote(spec.getMailFolder());
+            toCriteria(spec);
+            return true;
+        } catch (IllegalArgumentException | NullPointerException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Is TLS requested for the connections of a spec
+     *
+     * @param spec The mail activation spec
+     * @return True if it is; otherwise false
+     */
+    static boolean isTlsRequested(MailActivationSpec spec) {
+        if (spec.isStarttls()) { return true; }
+
+        for (String name : TLS_PROPERTIES) {
+            if (Boolean.parseBoolean(System.getProperty(name))) {
+                log.debugf("%s is set, reading %s through JavaMail", name, spec.getMailFolder());
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String toCriteria(MailActivationSpec spec) {
+        SearchTerm term = MessageSelector.parse(spec.getMessageSelector());
+        return term != null ? IMAPSearchCriteria.toCriteria(term) : null;
+    }
+
+    /**
+     * Set the UID high-water mark used by the incremental fetch
+     *
+     * @param watermark The value
+     */
+    public void setWatermark(UIDWatermark watermark) {
+        this.watermark = watermark;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void open() throws Exception {
+        join(openAsync());
+    }
+
+    /**
+     * Open the folder, and find and fetch the new messages, without holding the calling thread
+     *
+     * @return The check, completed once the new messages have been fetched
+     */
+    CompletableFuture<Void> openAsync() {
+        IMAPConnection borrowed = engine.borrow(key);
+        if (borrowed != null) {
+            connection = borrowed;
+            return check(true);
+        }
+
+        return connect().thenCompose(c -> {
+            connection = c;
+            return check(false);
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void refresh() throws MessagingException {
+        flushMarks();
+        // The search mustn't find the messages whose STORE is still in flight
+        IMAPConnection c = connection;
+        if (c != null) { awaitStores(c); }
+        join(check(true));
+    }
+
+    /**
+     * Connect to the server
+     *
+     * @return The connection, completed once the server greeting is received
+     */
+    private CompletableFuture<IMAPConnection> connect() {
+        MailActivationMetrics metrics = getMetrics();
+        long start = System.nanoTime();
+
+        InetSocketAddress address = new InetSocketAddress(mailServer, port);
+        CompletableFuture<IMAPConnection> result = address.isUnresolved() ?
+                failed(new MessagingException("Unknown mail server: " + mailServer)) : engine.connect(key, address);
+        return result.whenComplete((c, t) -> {
+            if (metrics != null) { metrics.connected(System.nanoTime() - start, t == null); }
+        });
+    }
+
+    /**
+     * Find and fetch the new messages
+     *
+     * @param loggedIn Is the connection logged in
+     * @return The check, completed once the new messages have been fetched
+     */
+    private CompletableFuture<Void> check(boolean loggedIn) {
+        commitPendingUid();
+        boolean tracked = incrementalFetch && watermark != null;
+        IMAPConnection c = connection;
+
+        // A new synchronization of the mark needs the UIDNEXT of a fresh SELECT
+        boolean select = !folderName.equals(c.getSelectedFolder()) ||
+                (tracked && !watermark.isValid(c.getUidValidity()));
+        // The UIDVALIDITY of a new selection is assumed unchanged, and checked once selected
+        long uidValidity = select && tracked ? watermark.getUidValidity() : c.getUidValidity();
+        boolean incremental = tracked && watermark.isValid(uidValidity);
+
+        List<String> commands = new ArrayList<>(4);
+        if (!loggedIn) { commands.add(login); }
+        if (select) { commands.add("SELECT " + IMAPSearchCriteria.quote(folderName)); }
+        int searches = commands.size();
+        commands.addAll(searchCommands(incremental));
+
+        long start = System.nanoTime();
+        return all(c.pipeline(commands.toArray(new String[commands.size()]))).thenCompose(results -> {
+            if (select) { c.selected(folderName, results.get(searches - 1)); }
+
+            if (incremental && c.getUidValidity() != uidValidity) {
+                // The UIDs have been invalidated since the last check: synchronize on the unseen messages
+                return c.command(searchCommands(false).get(0))
+                        .thenApply(unseen -> found(tracked, false, unseen, null, start));
+            }
+
+            List<IMAPResponse> matching = incremental && criteria != null ? results.get(searches + 1) : null;
+            return CompletableFuture.completedFuture(found(tracked, incremental, results.get(searches), matching,
+                    start));
+        }).thenCompose(uids -> {
+            int maxMessages = getMaxMessages();
+            boolean backlog = maxMessages > 0 && uids.length > maxMessages;
+            return fetch(backlog ? Arrays.copyOf(uids, maxMessages) : uids)
+                    .thenAccept(messages -> setMessages(messages, backlog));
+        });
+    }
+
+    /**
+     * Get the UIDs of the messages found by the searches of a check, and start tracking them
+     *
+     * @param tracked     Is the UID mark tracked
+     * @param incremental Did the search start above the UID mark
+     * @param responses   The responses of the search of the new, or unseen, messages
+     * @param matching    The responses of the search of the new messages matching the selector;
+     *                    <code>null</code> if there is none
+     * @param start       The time the check started at
+     * @return The UIDs, in ascending order
+     */
+    private long[] found(boolean tracked, boolean incremental, List<IMAPResponse> responses,
+                         List<IMAPResponse> matching, long start) {
+        long[] uids;
+        if (incremental) {
+            long lastUid = watermark.getLastUid();
+            long[] newUids = searchResults(responses, lastUid);
+            for (long uid : newUids) {
+                pendingUid = Math.max(pendingUid, uid);
+            }
+            // The mark moves past the new messages which don't match once the matching ones are delivered
+            uids = matching != null ? searchResults(matching, lastUid) : newUids;
+        } else {
+            uids = searchResults(responses, 0L);
+            if (tracked) {
+                log.debugf("Synchronizing UID mark: uidValidity=%d, %s", connection.getUidValidity(), watermark);
+                watermark.reset(connection.getUidValidity());
+                pendingUid = connection.getUidNext() - 1;
+            }
+        }
+        tracking = tracked;
+
+        MailActivationMetrics metrics = getMetrics();
+        if (metrics != null) { metrics.searched(System.nanoTime() - start); }
+
+        // The mark never passes a message of the check still in flight
+        if (tracked) { watermark.begin(uids); }
+        return uids;
+    }
+
+    /**
+     * Get the searches of a check
+     *
+     * @param incremental Search above the UID mark
+     * @return The commands
+     */
+    private List<String> searchCommands(boolean incremental) {
+        List<String> commands = new ArrayList<>(2);
+        if (incremental) {
+            String range = "UID SEARCH UID " + (watermark.getLastUid() + 1) + ":*";
+            commands.add(range);
+            if (criteria != null) { commands.add(range + " " + criteria); }
+        } else {
+            commands.add("UID SEARCH UNSEEN" + (criteria != null ? " " + criteria : ""));
+        }
+        return commands;
+    }
+
+    /**
+     * Get the UIDs found by a search, in ascending order
+     *
+     * @param responses The responses of the search
+     * @param lastUid   The UIDs up to this one are left out, as "UID n:*" always
+     *                  matches the last message of the folder
+     * @return The UIDs
+     * @throws CompletionException Thrown if a response is invalid
+     */
+    static long[] searchResults(List<IMAPResponse> responses, long lastUid) {
+        long[] uids = new long[16];
+        int count = 0;
+        try {
+            for (IMAPResponse response : responses) {
+                if (!response.isUntagged() || !"SEARCH".equals(response.getStatus())) { continue; }
+
+                List<Object> tokens = response.parse();
+                for (int i = 1; i < tokens.size(); i++) {
+                    long uid = IMAPResponse.toLong(tokens.get(i));
+                    if (uid <= lastUid) { continue; }
+                    if (count == uids.length) { uids = Arrays.copyOf(uids, count * 2); }
+                    uids[count++] = uid;
+                }
+            }
+        } catch (MessagingException e) {
+            throw new CompletionException(e);
+        }
+
+        uids = Arrays.copyOf(uids, count);
+        Arrays.sort(uids);
+        return uids;
+    }
+
+    /**
+     * Fetch the headers of messages, and the bodies of the small ones
+     *
+     * @param uids The UIDs, in ascending order
+     * @return The messages, in the order of the UIDs
+     */
+    private CompletableFuture<Message[]> fetch(long[] uids) {
+        if (uids.length == 0) { return CompletableFuture.completedFuture(new Message[0]); }
+
+        IMAPConnection c = connection;
+        long start = System.nanoTime();
+        return c.command("UID FETCH " + toSequenceSet(uids) + " " + FETCH_ITEMS).thenCompose(responses -> {
+            Map<Long, MultiplexedIMAPMessage> messages = new HashMap<>(uids.length * 2);
+            long[] small = new long[uids.length];
+            int count = 0;
+            try {
+                for (IMAPResponse response : responses) {
+                    MultiplexedIMAPMessage message = toMessage(response);
+                    if (message == null) { continue; }
+
+                    messages.put(message.getUID(), message);
+                    int size = message.getSize();
+                    if (fetchContentMaxSize > 0 && size >= 0 && size <= fetchContentMaxSize) {
+                        small[count++] = message.getUID();
+                    }
+                }
+            } catch (MessagingException e) {
+                throw new CompletionException(e);
+            }
+
+            CompletableFuture<Void> bodies = CompletableFuture.completedFuture(null);
+            if (count > 0) {
+                small = Arrays.copyOf(small, count);
+                Arrays.sort(small);
+                bodies = c.command("UID FETCH " + toSequenceSet(small) + " " + BODY_ITEMS)
+                        .thenAccept(r -> setBodies(r, messages));
+            }
+
+            return bodies.thenApply(v -> {
+                MailActivationMetrics metrics = getMetrics();
+                if (metrics != null) { metrics.fetched(System.nanoTime() - start); }
+
+                // The messages expunged in the meantime are missing
+                List<Message> result = new ArrayList<>(uids.length);
+                for (long uid : uids) {
+                    Message message = messages.get(uid);
+                    if (message != null) { result.add(message); }
+                }
+                return result.toArray(new Message[result.size()]);
+            });
+        });
+    }
+
+    /**
+     * Get the items of a FETCH response
+     *
+     * @param response The response
+     * @return The message sequence number and the items; <code>null</code> if not a FETCH response
+     * @throws MessagingException Thrown if the response is invalid
+     */
+    static List<?> fetchItems(IMAPResponse response) throws MessagingException {
+        if (!response.isUntagged()) { return null; }
+
+        List<Object> tokens = response.parse();
+        if (tokens.size() < 3 || !"FETCH".equalsIgnoreCase(String.valueOf(tokens.get(1))) ||
+                !(tokens.get(2) instanceof List)) {
+            return null;
+        }
+        return tokens;
+    }
+
+    /**
+     * Create a message from a FETCH response of its header
+     *
+     * @param response The response
+     * @return The message; <code>null</code> if the response doesn't carry the header
+     * @throws MessagingException Thrown if the response is invalid
+     */
+    private MultiplexedIMAPMessage toMessage(IMAPResponse response) throws MessagingException {
+        List<?> tokens = fetchItems(response);
+        if (tokens == null) { return null; }
+
+        List<?> items = (List<?>) tokens.get(2);
+        long uid = -1L;
+        Flags flags = new Flags();
+        Date receivedDate = null;
+        int size = -1;
+        byte[] header = null;
+
+        for (int i = 0; i + 1 < items.size(); i += 2) {
+            String item = String.valueOf(items.get(i)).toUpperCase(Locale.ENGLISH);
+            Object value = items.get(i + 1);
+
+            if ("UID".equals(item)) {
+                uid = IMAPResponse.toLong(value);
+            } else if ("FLAGS".equals(item) && value instanceof List) {
+                flags = toFlags((List<?>) value);
+            } else if ("INTERNALDATE".equals(item) && value != null) {
+                receivedDate = toDate(value.toString());
+            } else if ("RFC822.SIZE".equals(item)) {
+                size = (int) IMAPResponse.toLong(value);
+            } else if (item.startsWith("BODY[")) {
+                header = toBytes(value);
+            }
+        }
+
+        if (uid < 0 || header == null) { return null; }
+
+        return new MultiplexedIMAPMessage(session, this, (int) IMAPResponse.toLong(tokens.get(0)), uid, header,
+                flags, receivedDate, size);
+    }
+
+    /**
+     * Set the prefetched bodies of messages
+     *
+     * @param responses The responses of the FETCH of the bodies
+     * @param messages  The messages by UID
+     */
+    private static void setBodies(List<IMAPResponse> responses, Map<Long, MultiplexedIMAPMessage> messages) {
+        try {
+            for (IMAPResponse response : responses) {
+                List<?> tokens = fetchItems(response);
+                if (tokens == null) { continue; }
+
+                long uid = getUID((List<?>) tokens.get(2));
+                byte[] body = getBody((List<?>) tokens.get(2));
+                MultiplexedIMAPMessage message = messages.get(uid);
+                if (message != null && body != null) { message.setBody(body); }
+            }
+        } catch (MessagingException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * Open the body of a message which wasn't prefetched. It is read in fetch size chunks
+     * as it is consumed if partial fetches are enabled; otherwise whole
+     *
+     * @param uid The UID
+     * @return The body
+     * @throws MessagingException Thrown if the folder is closed, or the body can't be read
+     */
+    InputStream openBody(long uid) throws MessagingException {
+        if (fetchSize <= 0) { return new ByteArrayInputStream(fetchBody(uid, -1L)); }
+
+        return new BodyStream(uid);
+    }
+
+    /**
+     * Fetch the body of a message, or a chunk of it
+     *
+     * @param uid    The UID
+     * @param offset The offset of the chunk of fetch size bytes; -1 for the whole body
+     * @return The bytes; fewer than requested at the end of the body
+     * @throws MessagingException Thrown if the folder is closed, or the body can't be read
+     */
+    private byte[] fetchBody(long uid, long offset) throws MessagingException {
+        IMAPConnection c = connection;
+        if (c == null) { throw new MessagingException("Folder closed: " + folderName); }
+
+        String section = offset < 0 ? "BODY.PEEK[TEXT]" : "BODY.PEEK[TEXT]<" + offset + "." + fetchSize + ">";
+        for (IMAPResponse response : await(c.command("UID FETCH " + uid + " (UID " + section + ")"), c)) {
+            List<?> tokens = fetchItems(response);
+            if (tokens == null || getUID((List<?>) tokens.get(2)) != uid) { continue; }
+
+            byte[] body = getBody((List<?>) tokens.get(2));
+            if (body != null) { return body; }
+        }
+        throw new MessagingException("Message expunged: UID " + uid + " of " + folderName);
+    }
+
+    private static long getUID(List<?> items) throws MessagingException {
+        for (int i = 0; i + 1 < items.size(); i += 2) {
+            if ("UID".equalsIgnoreCase(String.valueOf(items.get(i)))) { return IMAPResponse.toLong(items.get(i + 1)); }
+        }
+        return -1L;
+    }
+
+    private static byte[] getBody(List<?> items) {
+        for (int i = 0; i + 1 < items.size(); i += 2) {
+            if (String.valueOf(items.get(i)).toUpperCase(Locale.ENGLISH).startsWith("BODY[")) {
+                return toBytes(items.get(i + 1));
+            }
+        }
+        return null;
+    }
+
+    private static byte[] toBytes(Object value) {
+        if (value instanceof byte[]) { return (byte[]) value; }
+
+        return value != null ? value.toString().getBytes(StandardCharsets.ISO_8859_1) : new byte[0];
+    }
+
+    private static Flags toFlags(List<?> values) {
+        Flags flags = new Flags();
+        for (Object value : values) {
+            String flag = String.valueOf(value);
+            if ("\\Seen".equalsIgnoreCase(flag)) {
+                flags.add(Flag.SEEN);
+            } else if ("\\Answered".equalsIgnoreCase(flag)) {
+                flags.add(Flag.ANSWERED);
+            } else if ("\\Deleted".equalsIgnoreCase(flag)) {
+                flags.add(Flag.DELETED);
+            } else if ("\\Draft".equalsIgnoreCase(flag)) {
+                flags.add(Flag.DRAFT);
+            } else if ("\\Flagged".equalsIgnoreCase(flag)) {
+                flags.add(Flag.FLAGGED);
+            } else if ("\\Recent".equalsIgnoreCase(flag)) {
+                flags.add(Flag.RECENT);
+            } else if (!flag.startsWith("\\")) {
+                flags.add(flag);
+            }
+        }
+        return flags;
+    }
+
+    private static Date toDate(String value) {
+        try {
+            return new SimpleDateFormat("d-MMM-yyyy HH:mm:ss Z", Locale.ENGLISH).parse(value.trim());
+        } catch (ParseException e) {
+            log.debugf("Invalid INTERNALDATE: %s", value);
+            return null;
+        }
+    }
+
+    /**
+     * Write UIDs as an IMAP sequence set of ranges, e.g. 1:5,7,9:12
+     *
+     * @param uids The UIDs, in ascending order
+     * @return The sequence set
+     */
+    static String toSequenceSet(long[] uids) {
+        StringBuilder sb = new StringBuilder();
+        int i = 0;
+        while (i < uids.length) {
+            int j = i;
+            while (j + 1 < uids.length && uids[j + 1] <= uids[j] + 1) {
+                j++;
+            }
+
+            if (sb.length() > 0) { sb.append(','); }
+            sb.append(uids[i]);
+            if (uids[j] != uids[i]) { sb.append(':').append(uids[j]); }
+            i = j + 1;
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Wait for a check. Each of its commands is bounded by the command timeout of the engine
+     *
+     * @param future The future
+     * @param <T>    The type of the result
+     * @return The result
+     * @throws MessagingException Thrown if the check failed
+     */
+    private static <T> T join(CompletableFuture<T> future) throws MessagingException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw toMessagingException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted", e);
+        }
+    }
+
+    /**
+     * Get the failure of a check as a MessagingException
+     *
+     * @param t The failure, possibly wrapped by a continuation
+     * @return The value
+     */
+    static MessagingException toMessagingException(Throwable t) {
+        Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+        if (cause instanceof MessagingException) { return (MessagingException) cause; }
+
+        return new MessagingException(String.valueOf(cause), cause instanceof Exception ? (Exception) cause : null);
+    }
+
+    /**
+     * Complete when all the futures have, with their results in order; failed by the first
+     * one which failed, in order
+     *
+     * @param futures The futures
+     * @param <T>     The type of the results
+     * @return The results
+     */
+    static <T> CompletableFuture<List<T>> all(List<CompletableFuture<T>> futures) {
+        CompletableFuture<List<T>> result = CompletableFuture.completedFuture(new ArrayList<>(futures.size()));
+        for (CompletableFuture<T> future : futures) {
+            result = result.thenCombine(future, (results, r) -> {
+                results.add(r);
+                return results;
+            });
+        }
+        return result;
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable t) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(t);
+        return future;
+    }
+
+    /**
+     * Wait for the completion of a command
+     *
+     * @param future     The future
+     * @param connection The connection to close on a timeout; <code>null</code> if none
+     * @param <T>        The type of the result
+     * @return The result
+     * @throws MessagingException Thrown if the command failed or timed out
+     */
+    private <T> T await(CompletableFuture<T> future, IMAPConnection connection) throws MessagingException {
+        try {
+            return future.get(engine.getTimeout(), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw toMessagingException(e.getCause());
+        } catch (TimeoutException e) {
+            if (connection != null) { connection.close(e); }
+            throw new MessagingException("IMAP command timed out: " + key, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted", e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    protected void markMessageSeen(Message message) throws MessagingException {
+        markMessagesSeen(null, new Message[] {message});
+    }
+
+    /**
+     * Mark a batch of messages as seen with a single UID STORE. The STORE is chained to the
+     * previous ones rather than awaited; the messages are marked once the server completes it
+     *
+     * @param folder   Not used
+     * @param messages The messages
+     * @throws MessagingException Thrown if there is an error
+     */
+    @Override
+    protected void markMessagesSeen(Folder folder, Message[] messages) throws MessagingException {
+        IMAPConnection c = connection;
+        if (c == null) { throw new MessagingException("Folder closed: " + folderName); }
+
+        long[] uids = new long[messages.length];
+        for (int i = 0; i < messages.length; i++) {
+            uids[i] = ((MultiplexedIMAPMessage) messages[i]).getUID();
+        }
+        Arrays.sort(uids);
+
+        // The messages are marked on the event loop, once the server completes the STORE
+        UIDWatermark mark = tracking ? watermark : null;
+        CompletableFuture<Void> store = c.command("UID STORE " + toSequenceSet(uids) + " +FLAGS.SILENT (\\Seen)")
+                .thenRun(() -> {
+                    for (Message message : messages) {
+                        try {
+                            message.setFlag(Flag.SEEN, true);
+                        } catch (MessagingException e) {
+                            throw new CompletionException(e);
+                        }
+                        if (mark != null) { mark.advance(((MultiplexedIMAPMessage) message).getUID()); }
+                    }
+                });
+
+        synchronized (this) {
+            stores = stores.thenCombine(store, (r, s) -> null);
+        }
+    }
+
+    /**
+     * Wait for the UID STOREs issued since the folder was opened
+     *
+     * @param c The connection
+     * @throws MessagingException Thrown if a STORE failed or timed out
+     */
+    private void awaitStores(IMAPConnection c) throws MessagingException {
+        CompletableFuture<Void> pending;
+        synchronized (this) {
+            pending = stores;
+            stores = CompletableFuture.completedFuture(null);
+        }
+
+        await(pending, c);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void close(boolean checkSuccessful) {
+        boolean consumed = !hasNext();
+        IMAPConnection c = connection;
+
+        MessagingException flagsFailure = null;
+        try {
+            if (c != null && !c.isClosed()) { flushMarks(); }
+            if (c != null) { awaitStores(c); }
+        } catch (MessagingException e) {
+            flagsFailure = e;
+        }
+
+        boolean success = checkSuccessful && flagsFailure == null;
+        try {
+            if (success && consumed && tracking && !hasFolderBacklog()) { watermark.establish(pendingUid); }
+
+            connection = null;
+            if (c != null) {
+                if (success) {
+                    engine.release(c);
+                } else {
+                    // The state of a connection which failed is unknown
+                    c.logout();
+                }
+            }
+
+            super.close(success);
+        } finally {
+            tracking = false;
+            pendingUid = 0L;
+        }
+
+        // After a failure the flags are updated on a best effort basis
+        if (checkSuccessful && flagsFailure != null) {
+            throw new RuntimeException("Error updating message flags", flagsFailure);
+        }
+    }
+
+    /**
+     * Once every unseen message found by a synchronization has been delivered,
+     * the mark covers the whole folder as of that synchronization
+     */
+    private void commitPendingUid() {
+        if (tracking && !hasNext() && !hasFolderBacklog()) { watermark.establish(pendingUid); }
+        tracking = false;
+        pendingUid = 0L;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    protected Store openStore(Session session) throws NoSuchProviderException {
+        throw new NoSuchProviderException("The multiplexed IMAP folder has no store");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    protected void closeStore(boolean success, Store store, Folder folder) throws MessagingException {
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    protected Message[] getMessages(Folder folder) throws MessagingException {
+        return new Message[0];
+    }
+
+    /**
+     * The body of a message, read in fetch size chunks as it is consumed
+     */
+    private final class BodyStream extends InputStream {
+        private final long uid;
+
+        private byte[] chunk = new byte[0];
+
+        private int position;
+
+        private long offset;
+
+        private boolean last;
+
+        BodyStream(long uid) {
+            this.uid = uid;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public int read() throws IOException {
+            if (!fill()) { return -1; }
+
+            return chunk[position++] & 0xFF;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) { return 0; }
+            if (!fill()) { return -1; }
+
+            int n = Math.min(len, chunk.length - position);
+            System.arraycopy(chunk, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public int available() {
+            return chunk.length - position;
+        }
+
+        private boolean fill() throws IOException {
+            if (position < chunk.length) { return true; }
+            if (last) { return false; }
+
+            try {
+                chunk = fetchBody(uid, offset);
+            } catch (MessagingException e) {
+                throw new IOException("Failed to read the body of UID " + uid, e);
+            }
+            position = 0;
+            offset += chunk.length;
+            last = chunk.length < fetchSize;
+            return chunk.length > 0;
+        }
+    }
+}
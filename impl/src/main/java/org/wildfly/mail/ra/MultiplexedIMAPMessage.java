@@ -0,0 +1,125 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wildfly.mail.ra;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Date;
+import javax.mail.Flags;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * A message read by the multiplexed IMAP engine. Its headers are fetched with the search
+ * results; its body is either prefetched, when it is small enough, or read on demand from
+ * the folder, while the folder is open
+ */
+final class MultiplexedIMAPMessage extends MimeMessage {
+    private final MultiplexedIMAPMailFolder source;
+
+    private final long uid;
+
+    private final Date receivedDate;
+
+    private final int size;
+
+    /**
+     * Constructor
+     *
+     * @param session      The mail session
+     * @param source       The folder the body is read from
+     * @param msgnum       The message sequence number
+     * @param uid          The UID
+     * @param header       The RFC 822 header, with the blank line ending it
+     * @param flags        The flags
+     * @param receivedDate The INTERNALDATE
+     * @param size         The RFC822.SIZE
+     * @throws MessagingException Thrown if the header can't be parsed
+     */
+    MultiplexedIMAPMessage(Session session, MultiplexedIMAPMailFolder source, int msgnum, long uid, byte[] header,
+                           Flags flags, Date receivedDate, int size) throws MessagingException {
+        super(session);
+        setMessageNumber(msgnum);
+        this.headers = new InternetHeaders(new ByteArrayInputStream(header));
+        this.flags = flags;
+        // As read from the server, like a message parsed from a stream
+        this.modified = false;
+        this.saved = true;
+        this.source = source;
+        this.uid = uid;
+        this.receivedDate = receivedDate;
+        this.size = size;
+    }
+
+    /**
+     * Get the UID
+     *
+     * @return The value
+     */
+    long getUID() {
+        return uid;
+    }
+
+    /**
+     * Set the prefetched body
+     *
+     * @param body The RFC 822 text
+     */
+    void setBody(byte[] body) {
+        this.content = body;
+    }
+
+    /**
+     * Has the body been prefetched
+     *
+     * @return True if it has; otherwise false
+     */
+    boolean hasBody() {
+        return content != null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected InputStream getContentStream() throws MessagingException {
+        if (content == null && contentStream == null) { return source.openBody(uid); }
+
+        return super.getContentStream();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Date getReceivedDate() throws MessagingException {
+        return receivedDate;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getSize() throws MessagingException {
+        return size;
+    }
+}
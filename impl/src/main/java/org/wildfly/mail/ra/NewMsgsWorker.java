@@ -25,10 +25,17 @@ import javax.resource.spi.work.WorkEvent;
 import javax.resource.spi.work.WorkException;
 import javax.resource.spi.work.WorkListener;
 import javax.resource.spi.work.WorkManager;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
- * Handles new messages
+ * Handles new messages.
+ *
+ * Activations wait in a {@link DelayQueue} ordered by their next check time; inserting an
+ * activation due earlier than the current head wakes the worker up, and both insertion
+ * and removal are O(log n).
  *
  * @author <a href="mailto:scott.stark@jboss.org">Scott Stark</a>
  * @author <a href="mailto:jesper.pedersen@jboss.org">Jesper Pedersen</a>
@@ -37,41 +44,73 @@ import java.util.concurrent.PriorityBlockingQueue;
 public class NewMsgsWorker implements Work, WorkListener {
     private static Logger log = Logger.getLogger(NewMsgsWorker.class);
 
-    private boolean released;
+    private volatile boolean released;
+
+    /**
+     * The thread running the worker, interrupted on release; guarded by the worker
+     */
+    private Thread runner;
 
     private WorkManager mgr;
 
-    private PriorityBlockingQueue<MailActivation> pollQueue;
+    private DelayQueue<MailActivation> pollQueue;
+
+    private volatile Executor executor;
 
     /**
      * Constructor
      *
-     * @param mgr       The work manager
-     * @param queueSize The queue size
+     * @param mgr The work manager
      */
-    public NewMsgsWorker(WorkManager mgr, Integer queueSize) {
+    public NewMsgsWorker(WorkManager mgr) {
         this.mgr = mgr;
-        this.pollQueue = new PriorityBlockingQueue<>(queueSize);
+        this.pollQueue = new DelayQueue<>();
     }
 
     /**
-     * Watch an activation
+     * Set the executor running the checks instead of the work manager
+     *
+     * @param executor The value; <code>null</code> for the work manager
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Watch an activation. An activation that is already waiting in the queue,
+     * or has been deactivated, is left alone
      *
      * @param activation The activation
      * @throws InterruptedException Thrown if the queue is interrupted
      */
     public void watch(MailActivation activation) throws InterruptedException {
+        if (activation.isDeactivated() || !activation.markQueued()) { return; }
+
         activation.updateNextNewMsgCheckTime(System.currentTimeMillis());
 
         pollQueue.put(activation);
     }
 
+    /**
+     * Get the number of activations waiting for their next check
+     *
+     * @return The value
+     */
+    public int getQueueDepth() {
+        return pollQueue.size();
+    }
+
     /**
      * Release
      */
     public void release() {
         released = true;
 
+        // Wakes the worker up from the queue; only while it runs, as the thread is pooled
+        synchronized (this) {
+            if (runner != null) { runner.interrupt(); }
+        }
+
         log.tracef("released");
     }
 
@@ -81,35 +120,74 @@ public class NewMsgsWorker implements Work, WorkListener {
     public void run() {
         log.tracef("Begin run");
 
-        while (!released) {
-            try {
+        synchronized (this) {
+            runner = Thread.currentThread();
+        }
+
+        try {
+            while (!released) {
+                // Blocks until the earliest activation is due
                 MailActivation ma = pollQueue.take();
+                ma.unmarkQueued();
 
-                // Wait until its time to check for new msgs
-                long now = System.currentTimeMillis();
-                long nextTime = ma.getNextNewMsgCheckTime();
-                long sleepMS = nextTime - now;
+                if (released) { break; }
 
-                if (sleepMS > 0) { Thread.sleep(sleepMS); }
+                if (ma.isDeactivated()) { continue; }
 
-                if (released) { break; }
+                if (ma.isCircuitOpen(System.currentTimeMillis())) {
+                    // Requeued until the circuit of its account closes, without taking a thread
+                    reschedule(ma);
+                    continue;
+                }
 
-                // This has to go after the sleep otherwise we can get into an inconsistent state
-                if (ma.isReleased()) { continue; }
+                if (executor != null && execute(ma)) { continue; }
 
                 // Now schedule excecution of the new msg check
-                mgr.scheduleWork(ma, WorkManager.INDEFINITE, null, this);
-            } catch (InterruptedException e) {
+                try {
+                    mgr.scheduleWork(ma, WorkManager.INDEFINITE, null, this);
+                } catch (WorkException e) {
+                    log.warn("Failed to schedule new msg check", e);
+                    watch(ma);
+                }
+            }
+        } catch (InterruptedException e) {
+            if (!released) {
                 log.debug("Interrupted waiting for new msg check. NewMsgsWorker will stop checking for new messages.");
                 Thread.currentThread().interrupt();
-            } catch (WorkException e) {
-                log.warn("Failed to schedule new msg check", e);
+            }
+        } finally {
+            synchronized (this) {
+                runner = null;
+                // Don't hand the pooled thread back with the interrupt of the release
+                if (released) { Thread.interrupted(); }
             }
         }
 
         log.tracef("End run");
     }
 
+    /**
+     * Run the check of an activation on the executor
+     *
+     * @param activation The activation
+     * @return False if the executor rejected the check; otherwise true
+     */
+    private boolean execute(final MailActivation activation) {
+        try {
+            executor.execute(() -> {
+                try {
+                    activation.run();
+                } finally {
+                    checked(activation);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            log.debug("Executor rejected new msg check, falling back to the work manager", e);
+            return false;
+        }
+    }
+
     /**
      * Work accepted
      *
@@ -126,6 +204,8 @@ public class NewMsgsWorker implements Work, WorkListener {
      */
     public void workRejected(WorkEvent e) {
         log.tracef("workRejected: e=%s", e);
+
+        reschedule((MailActivation) e.getWork());
     }
 
     /**
@@ -145,12 +225,40 @@ public class NewMsgsWorker implements Work, WorkListener {
     public void workCompleted(WorkEvent e) {
         log.tracef("workCompleted: e=%s", e);
 
-        MailActivation activation = (MailActivation) e.getWork();
-        try {
+        checked((MailActivation) e.getWork());
+    }
+
+    /**
+     * Schedule the next check of an activation once its check is done: when the run returns,
+     * or once the asynchronous check it started completes
+     *
+     * @param activation The activation
+     */
+    private void checked(MailActivation activation) {
+        CompletableFuture<Void> check = activation.takePendingCheck();
+        if (check == null) {
+            activation.unrelease();
+            reschedule(activation);
+            return;
+        }
+
+        check.whenComplete((r, t) -> {
             activation.unrelease();
+            reschedule(activation);
+        });
+    }
+
+    /**
+     * Schedule the next check of an activation
+     *
+     * @param activation The activation
+     */
+    private void reschedule(MailActivation activation) {
+        try {
             watch(activation);
         } catch (InterruptedException ex) {
             log.warn("Failed to reschedule new msg check", ex);
+            Thread.currentThread().interrupt();
         }
     }
 }
@@ -18,6 +18,11 @@
 
 package org.wildfly.mail.ra;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import javax.mail.FetchProfile;
 import javax.mail.Flags.Flag;
 import javax.mail.Folder;
 import javax.mail.Message;
@@ -25,6 +30,9 @@ import javax.mail.MessagingException;
 import javax.mail.NoSuchProviderException;
 import javax.mail.Session;
 import javax.mail.Store;
+import javax.mail.UIDFolder;
+
+import com.sun.mail.pop3.POP3Folder;
 
 /**
  * Represents a POP3 mail folder
@@ -35,6 +43,8 @@ import javax.mail.Store;
 public class POP3MailFolder extends MailFolder {
     private boolean flush;
 
+    private DeliveredUIDLs deliveredUIDLs;
+
     /**
      * Constructor
      *
@@ -53,7 +63,64 @@ public class POP3MailFolder extends MailFolder {
      * @throws javax.mail.MessagingException Thrown if there is an error
      */
     protected Message[] getMessages(Folder folder) throws MessagingException {
-        return folder.getMessages();
+        Message[] messages = folder.getMessages();
+        if (flush || deliveredUIDLs == null || !(folder instanceof POP3Folder) || messages.length == 0) {
+            return messages;
+        }
+
+        // A single UIDL command for the whole maildrop; the messages themselves aren't downloaded
+        FetchProfile fp = new FetchProfile();
+        fp.add(UIDFolder.FetchProfileItem.UID);
+        folder.fetch(messages, fp);
+
+        POP3Folder pop3Folder = (POP3Folder) folder;
+        Set<String> present = new HashSet<>(messages.length * 2);
+        List<Message> result = new ArrayList<>();
+        for (Message message : messages) {
+            String uidl = pop3Folder.getUID(message);
+            if (uidl == null) {
+                // The server doesn't support UIDL
+                result.add(message);
+            } else {
+                present.add(uidl);
+                if (!deliveredUIDLs.contains(uidl)) { result.add(message); }
+            }
+        }
+
+        if (!present.isEmpty()) { deliveredUIDLs.retain(present); }
+        return result.toArray(new Message[result.size()]);
+    }
+
+    /**
+     * Set the UIDLs of the delivered messages, which are skipped by the checks when the
+     * maildrop isn't flushed
+     *
+     * @param deliveredUIDLs The value; <code>null</code> to deliver all the messages of each check
+     */
+    public void setDeliveredUIDLs(DeliveredUIDLs deliveredUIDLs) {
+        this.deliveredUIDLs = deliveredUIDLs;
+    }
+
+    /**
+     * POP3 stores aren't pooled: POP3Store.isConnected logs in again when no folder is open,
+     * so a pooled store saves no login
+     *
+     * @param storePool The store pool; ignored
+     */
+    @Override
+    public void setStorePool(MailStorePool storePool) {
+        super.setStorePool(null);
+    }
+
+    /**
+     * Messages are only removed from the new messages when the maildrop is flushed, or the
+     * UIDLs of the delivered messages are tracked
+     *
+     * @return The value
+     */
+    @Override
+    protected boolean isMarkingConsumed() {
+        return flush || deliveredUIDLs != null;
     }
 
     /**
@@ -64,7 +131,7 @@ public class POP3MailFolder extends MailFolder {
      * @throws javax.mail.NoSuchProviderException Thrown if there is no provider
      */
     protected Store openStore(Session session) throws NoSuchProviderException {
-        return session.getStore("pop3");
+        return getStore(session, "pop3");
     }
 
     /**
@@ -75,6 +142,25 @@ public class POP3MailFolder extends MailFolder {
      */
     protected void markMessageSeen(Message message) throws MessagingException {
         message.setFlag(Flag.DELETED, true);
+
+        if (!flush && deliveredUIDLs != null && message.getFolder() instanceof POP3Folder) {
+            String uidl = ((POP3Folder) message.getFolder()).getUID(message);
+            if (uidl != null) { deliveredUIDLs.add(uidl); }
+        }
+    }
+
+    /**
+     * Closes a mail session, and saves the UIDLs delivered by the check
+     *
+     * @param checkSuccessful Check if it was a successful close
+     */
+    @Override
+    protected void close(boolean checkSuccessful) {
+        try {
+            super.close(checkSuccessful);
+        } finally {
+            if (deliveredUIDLs != null) { deliveredUIDLs.save(); }
+        }
     }
 
     /**
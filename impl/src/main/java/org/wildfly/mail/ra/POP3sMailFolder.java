@@ -46,6 +46,6 @@ public class POP3sMailFolder extends POP3MailFolder {
      * @throws javax.mail.NoSuchProviderException Thrown if there is no provider
      */
     protected Store openStore(Session session) throws NoSuchProviderException {
-        return session.getStore("pop3s");
+        return getStore(session, "pop3s");
     }
 }
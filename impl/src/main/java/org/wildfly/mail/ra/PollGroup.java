@@ -0,0 +1,169 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wildfly.mail.ra;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The activations watching the same mailbox folder with the same selector. Only one of them,
+ * the poller, checks the folder; each new message is fetched once and delivered to the
+ * endpoints of every member before it is marked, instead of each activation logging in,
+ * searching and racing the others on the SEEN flag.
+ *
+ * The members share every polling and delivery option, as the options of the poller apply
+ * to the whole group. The membership is guarded by the resource adapter
+ */
+final class PollGroup {
+    private final Key key;
+
+    private final List<MailActivation> members = new CopyOnWriteArrayList<>();
+
+    private MailActivation poller;
+
+    /**
+     * Constructor
+     *
+     * @param key The key
+     */
+    PollGroup(Key key) {
+        this.key = key;
+    }
+
+    /**
+     * Get the key
+     *
+     * @return The value
+     */
+    Key getKey() {
+        return key;
+    }
+
+    /**
+     * Get the members
+     *
+     * @return The value
+     */
+    List<MailActivation> getMembers() {
+        return members;
+    }
+
+    /**
+     * Is the group empty
+     *
+     * @return True if it has no member; otherwise false
+     */
+    boolean isEmpty() {
+        return members.isEmpty();
+    }
+
+    /**
+     * Add a member
+     *
+     * @param activation The activation
+     * @return True if the activation is the poller of the group; otherwise false
+     */
+    boolean join(MailActivation activation) {
+        members.add(activation);
+        if (poller != null) { return false; }
+
+        poller = activation;
+        return true;
+    }
+
+    /**
+     * Remove a member
+     *
+     * @param activation The activation
+     * @return The new poller if the activation was the poller; otherwise <code>null</code>
+     */
+    MailActivation leave(MailActivation activation) {
+        members.remove(activation);
+        if (poller != activation) { return null; }
+
+        poller = members.isEmpty() ? null : members.get(0);
+        return poller;
+    }
+
+    /**
+     * The identity of a poll group: the mailbox, with its credentials, the folder and the selector,
+     * and the options of the spec which affect the polling or the delivery
+     */
+    static final class Key {
+        private final MailStorePool.Key storeKey;
+        private final String mailFolder;
+        private final String messageSelector;
+        private final List<Object> options;
+
+        /**
+         * Constructor
+         *
+         * @param spec The mail activation spec
+         */
+        Key(MailActivationSpec spec) {
+            this.storeKey = new MailStorePool.Key(spec.getStoreProtocol(), spec.getMailServer(), spec.getPort(),
+                    spec.getUserName(), spec.getPassword(), spec.isStarttls(), MailFolder.getSessionProperties(spec));
+            this.mailFolder = spec.getMailFolder();
+            this.messageSelector = spec.getMessageSelector();
+            this.options = Arrays.<Object>asList(spec.isFlush(), spec.getDeliveryMode(), spec.getPollingInterval(),
+                    spec.getMaxMessages(), spec.isIncrementalFetch(), spec.isFetchEnvelope(), spec.isFetchFlags(),
+                    spec.isFetchUid(), spec.getFetchHeaders(), spec.getFetchContentMaxSize(),
+                    spec.getDeliveryConcurrency(), spec.getFlagBatchSize(), spec.isAdaptivePolling(),
+                    spec.getMinPollingInterval(), spec.getMaxPollingInterval(), spec.getPollingBackoffFactor(),
+                    spec.getPollingJitter(), spec.getBatchSize(), spec.getBatchLinger(),
+                    spec.getLargeMessageThreshold(), spec.getSpoolThreshold(), spec.getSpoolDirectory(),
+                    spec.isMultiplexed(), spec.getStateDirectory());
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public int hashCode() {
+            int result = storeKey.hashCode();
+            result = 31 * result + (mailFolder != null ? mailFolder.hashCode() : 0);
+            result = 31 * result + (messageSelector != null ? messageSelector.hashCode() : 0);
+            result = 31 * result + options.hashCode();
+            return result;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public boolean equals(Object other) {
+            if (this == other) { return true; }
+            if (!(other instanceof Key)) { return false; }
+
+            Key key = (Key) other;
+            return storeKey.equals(key.storeKey) &&
+                    (mailFolder == null ? key.mailFolder == null : mailFolder.equals(key.mailFolder)) &&
+                    (messageSelector == null ? key.messageSelector == null :
+                            messageSelector.equals(key.messageSelector)) &&
+                    options.equals(key.options);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public String toString() {
+            return storeKey + "/" + mailFolder + (messageSelector != null ? "?" + messageSelector : "");
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.mail.ra;
+
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * The IMAP UID high-water mark of an activation: the UIDVALIDITY of the folder
+ * and the highest UID delivered from it.
+ *
+ * A mark is only used once it is established, i.e. once every unseen message found by the
+ * synchronization of a new UIDVALIDITY has been delivered; until then the checks keep
+ * synchronizing on the unseen messages.
+ *
+ * The messages of a check complete in any order, e.g. with concurrent deliveries or flag batches,
+ * so the mark only moves over the contiguous prefix of the completed UIDs: it never passes a
+ * message of the check which is still in flight, or whose delivery failed
+ */
+public class UIDWatermark {
+    private long uidValidity = -1L;
+
+    private long lastUid;
+
+    private boolean established;
+
+    private final TreeSet<Long> inFlight = new TreeSet<>();
+
+    private final TreeSet<Long> completed = new TreeSet<>();
+
+    private final CheckpointStore checkpoints;
+
+    private final String key;
+
+    /**
+     * Constructor
+     */
+    public UIDWatermark() {
+        this(null, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param checkpoints The checkpoint store the mark is recovered from and recorded to;
+     *                    <code>null</code> to keep it in memory only
+     * @param key         The checkpoint key
+     */
+    UIDWatermark(CheckpointStore checkpoints, String key) {
+        this.checkpoints = checkpoints;
+        this.key = key;
+
+        long[] mark = checkpoints != null ? checkpoints.getMark(key) : null;
+        if (mark != null) {
+            this.uidValidity = mark[0];
+            this.lastUid = mark[1];
+            // Only established marks are recorded past their reset
+            this.established = lastUid > 0;
+        }
+    }
+
+    /**
+     * Get the UIDVALIDITY the mark belongs to
+     *
+     * @return The value; -1 if not established
+     */
+    public synchronized long getUidValidity() {
+        return uidValidity;
+    }
+
+    /**
+     * Get the last delivered UID
+     *
+     * @return The value
+     */
+    public synchronized long getLastUid() {
+        return lastUid;
+    }
+
+    /**
+     * Is the mark established for the given UIDVALIDITY
+     *
+     * @param uidValidity The UIDVALIDITY of the open folder
+     * @return True if the mark can be used; otherwise false
+     */
+    public synchronized boolean isValid(long uidValidity) {
+        return established && this.uidValidity == uidValidity && lastUid > 0;
+    }
+
+    /**
+     * Reset the mark for a new UIDVALIDITY
+     *
+     * @param uidValidity The value
+     */
+    public synchronized void reset(long uidValidity) {
+        this.uidValidity = uidValidity;
+        this.lastUid = 0L;
+        this.established = false;
+        inFlight.clear();
+        completed.clear();
+        if (checkpoints != null) { checkpoints.putMark(key, uidValidity, lastUid); }
+    }
+
+    /**
+     * Start tracking the messages of a check
+     *
+     * @param uids The UIDs of the messages handed out for delivery
+     */
+    public synchronized void begin(long[] uids) {
+        inFlight.clear();
+        completed.clear();
+        for (long uid : uids) {
+            if (uid > lastUid) { inFlight.add(uid); }
+        }
+    }
+
+    /**
+     * Advance the mark over a delivered message, as far as no message of the check before it
+     * is still in flight
+     *
+     * @param uid The delivered UID
+     */
+    public synchronized void advance(long uid) {
+        if (!inFlight.remove(uid) && uid <= lastUid) { return; }
+
+        completed.add(uid);
+        SortedSet<Long> done = inFlight.isEmpty() ? completed : completed.headSet(inFlight.first());
+        if (done.isEmpty()) { return; }
+
+        long last = done.last();
+        done.clear();
+        if (last > lastUid) {
+            lastUid = last;
+            record();
+        }
+    }
+
+    /**
+     * Establish the mark once the synchronization it was reset for is complete, or move it up
+     * once a check is complete. Messages of the check which weren't delivered hold the mark
+     * below them; a synchronization with such messages isn't complete
+     *
+     * @param uid The UID the check covers the folder up to
+     */
+    public synchronized void establish(long uid) {
+        if (!inFlight.isEmpty()) {
+            if (!established) { return; }
+            uid = Math.min(uid, inFlight.first() - 1);
+        }
+
+        if (uid > lastUid) { lastUid = uid; }
+        established = true;
+        record();
+    }
+
+    private void record() {
+        if (established && checkpoints != null) { checkpoints.putMark(key, uidValidity, lastUid); }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized String toString() {
+        return "UIDWatermark(uidValidity=" + uidValidity + ", lastUid=" + lastUid + ", established=" + established +
+                ", inFlight=" + inFlight.size() + ")";
+    }
+}
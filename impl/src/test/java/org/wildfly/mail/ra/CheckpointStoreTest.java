@@ -0,0 +1,241 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wildfly.mail.ra;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * CheckpointStore tests
+ */
+public class CheckpointStoreTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testRecoveryFromLog() throws Exception {
+        Path dir = tmp.newFolder().toPath();
+        CheckpointStore store = CheckpointStore.open(dir);
+        store.putMark("imap", 7L, 10L);
+        store.putMark("imap", 7L, 12L);
+        store.addUIDL("pop3", "a");
+        store.addUIDL("pop3", "b");
+        store.removeUIDL("pop3", "a");
+        store.sync();
+
+        CheckpointStore recovered = CheckpointStore.open(crash(dir));
+        try {
+            assertArrayEquals(new long[] {7L, 12L}, recovered.getMark("imap"));
+            assertEquals(new HashSet<>(Arrays.asList("b")), recovered.getUIDLs("pop3"));
+            assertNull(recovered.getMark("other"));
+            assertTrue(recovered.getUIDLs("other").isEmpty());
+        } finally {
+            recovered.close();
+            store.close();
+        }
+    }
+
+    @Test
+    public void testTornRecordDiscarded() throws Exception {
+        Path dir = tmp.newFolder().toPath();
+        CheckpointStore store = CheckpointStore.open(dir);
+        store.putMark("imap", 7L, 10L);
+        store.sync();
+        long intact = Files.size(dir.resolve("checkpoint.log"));
+        store.putMark("imap", 7L, 11L);
+        store.sync();
+        Path crashed = crash(dir);
+        store.close();
+
+        // Cut the second record short, as a crash in the middle of a write would
+        try (FileChannel c = FileChannel.open(crashed.resolve("checkpoint.log"), StandardOpenOption.WRITE)) {
+            c.truncate(c.size() - 3);
+        }
+
+        CheckpointStore recovered = CheckpointStore.open(crashed);
+        assertArrayEquals(new long[] {7L, 10L}, recovered.getMark("imap"));
+        assertEquals(intact, Files.size(crashed.resolve("checkpoint.log")));
+
+        // The records appended after the recovery follow the last intact one
+        recovered.addUIDL("pop3", "a");
+        recovered.sync();
+        CheckpointStore again = CheckpointStore.open(crash(crashed));
+        try {
+            assertArrayEquals(new long[] {7L, 10L}, again.getMark("imap"));
+            assertEquals(new HashSet<>(Arrays.asList("a")), again.getUIDLs("pop3"));
+        } finally {
+            again.close();
+            recovered.close();
+        }
+    }
+
+    @Test
+    public void testCorruptRecordDiscarded() throws Exception {
+        Path dir = tmp.newFolder().toPath();
+        CheckpointStore store = CheckpointStore.open(dir);
+        store.addUIDL("pop3", "a");
+        store.addUIDL("pop3", "b");
+        store.sync();
+
+        Path crashed = crash(dir);
+        store.close();
+        try (FileChannel c = FileChannel.open(crashed.resolve("checkpoint.log"), StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            // Flip the last byte of the UIDL of the second record
+            ByteBuffer b = ByteBuffer.allocate(1);
+            c.read(b, c.size() - 1);
+            b.put(0, (byte) (b.get(0) ^ 0x01));
+            b.rewind();
+            c.write(b, c.size() - 1);
+        }
+
+        CheckpointStore recovered = CheckpointStore.open(crashed);
+        try {
+            assertEquals(new HashSet<>(Arrays.asList("a")), recovered.getUIDLs("pop3"));
+        } finally {
+            recovered.close();
+        }
+    }
+
+    @Test
+    public void testSnapshotReplay() throws Exception {
+        Path dir = tmp.newFolder().toPath();
+        CheckpointStore store = CheckpointStore.open(dir);
+        store.putMark("imap", 7L, 10L);
+        store.addUIDL("pop3", "a");
+        store.addUIDL("pop3", "b");
+        store.close();
+
+        assertEquals(0L, Files.size(dir.resolve("checkpoint.log")));
+        assertTrue(Files.exists(dir.resolve("checkpoint.snapshot")));
+
+        // Log records on top of the snapshot
+        store = CheckpointStore.open(dir);
+        assertArrayEquals(new long[] {7L, 10L}, store.getMark("imap"));
+        store.putMark("imap", 7L, 15L);
+        store.removeUIDL("pop3", "a");
+        store.addUIDL("pop3", "c");
+        store.sync();
+
+        CheckpointStore recovered = CheckpointStore.open(crash(dir));
+        try {
+            assertArrayEquals(new long[] {7L, 15L}, recovered.getMark("imap"));
+            assertEquals(new HashSet<>(Arrays.asList("b", "c")), recovered.getUIDLs("pop3"));
+        } finally {
+            recovered.close();
+            store.close();
+        }
+    }
+
+    @Test
+    public void testReplayOverNewerSnapshot() throws Exception {
+        // A crash after the snapshot is renamed, but before the log is truncated
+        Path dir = tmp.newFolder().toPath();
+        CheckpointStore store = CheckpointStore.open(dir);
+        store.putMark("imap", 7L, 10L);
+        store.addUIDL("pop3", "a");
+        store.removeUIDL("pop3", "a");
+        store.addUIDL("pop3", "b");
+        store.sync();
+        byte[] log = Files.readAllBytes(dir.resolve("checkpoint.log"));
+        store.close();
+        Files.write(dir.resolve("checkpoint.log"), log);
+
+        CheckpointStore recovered = CheckpointStore.open(dir);
+        try {
+            assertArrayEquals(new long[] {7L, 10L}, recovered.getMark("imap"));
+            assertEquals(new HashSet<>(Arrays.asList("b")), recovered.getUIDLs("pop3"));
+        } finally {
+            recovered.close();
+        }
+    }
+
+    @Test
+    public void testRepeatedSnapshots() throws Exception {
+        Path dir = tmp.newFolder().toPath();
+        for (long uid = 1L; uid <= 3L; uid++) {
+            CheckpointStore store = CheckpointStore.open(dir);
+            assertArrayEquals(uid == 1L ? null : new long[] {7L, uid - 1L}, store.getMark("imap"));
+            store.putMark("imap", 7L, uid);
+            store.addUIDL("pop3", "u" + uid);
+            // Each close replaces the snapshot of the previous one
+            store.close();
+
+            assertTrue(Files.exists(dir.resolve("checkpoint.snapshot")));
+            assertFalse(Files.exists(dir.resolve("checkpoint.snapshot.tmp")));
+        }
+
+        CheckpointStore store = CheckpointStore.open(dir);
+        try {
+            assertArrayEquals(new long[] {7L, 3L}, store.getMark("imap"));
+            assertEquals(new HashSet<>(Arrays.asList("u1", "u2", "u3")), store.getUIDLs("pop3"));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testDirectoryLocked() throws Exception {
+        Path dir = tmp.newFolder().toPath();
+        CheckpointStore store = CheckpointStore.open(dir);
+        try {
+            CheckpointStore.open(dir);
+            fail("Opened a directory in use");
+        } catch (IOException e) {
+            // Expected
+        }
+        store.close();
+
+        CheckpointStore.open(dir).close();
+    }
+
+    /**
+     * Copy the files of an open store, as a crash would leave them
+     *
+     * @param dir The directory of the store
+     * @return The copy
+     * @throws IOException Thrown if an error occurs
+     */
+    private Path crash(Path dir) throws IOException {
+        Path copy = tmp.newFolder().toPath();
+        for (String name : new String[] {"checkpoint.log", "checkpoint.snapshot"}) {
+            if (Files.exists(dir.resolve(name))) { Files.copy(dir.resolve(name), copy.resolve(name)); }
+        }
+        return copy;
+    }
+}
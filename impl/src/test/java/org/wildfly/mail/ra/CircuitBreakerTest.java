@@ -0,0 +1,157 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wildfly.mail.ra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import javax.mail.AuthenticationFailedException;
+import javax.mail.MessagingException;
+
+import org.junit.Test;
+
+/**
+ * CircuitBreaker tests
+ */
+public class CircuitBreakerTest {
+    private static final IOException FAILURE = new ConnectException("Connection refused");
+
+    @Test
+    public void testOpensAfterThreshold() {
+        CircuitBreaker breaker = new CircuitBreaker("user@localhost:143", 3, 1000L, 8000L);
+
+        breaker.failure(0L, FAILURE);
+        breaker.failure(0L, FAILURE);
+        assertFalse(breaker.isOpen(0L));
+        assertTrue(breaker.tryAcquire(0L));
+        assertEquals(0L, breaker.getRetryTime());
+
+        breaker.failure(100L, FAILURE);
+        assertTrue(breaker.isOpen(100L));
+        assertFalse(breaker.tryAcquire(100L));
+        assertEquals(1100L, breaker.getRetryTime());
+    }
+
+    @Test
+    public void testSuccessResetsFailures() {
+        CircuitBreaker breaker = new CircuitBreaker("user@localhost:143", 3, 1000L, 8000L);
+
+        breaker.failure(0L, FAILURE);
+        breaker.failure(0L, FAILURE);
+        breaker.success();
+        breaker.failure(0L, FAILURE);
+        breaker.failure(0L, FAILURE);
+
+        assertFalse(breaker.isOpen(0L));
+    }
+
+    @Test
+    public void testHalfOpenProbe() {
+        CircuitBreaker breaker = open();
+
+        // Once the backoff elapses, a single check probes the server
+        assertTrue(breaker.tryAcquire(1000L));
+        assertTrue(breaker.isOpen(1000L));
+        assertFalse(breaker.tryAcquire(1000L));
+
+        breaker.success();
+        assertFalse(breaker.isOpen(1000L));
+        assertTrue(breaker.tryAcquire(1000L));
+        assertEquals(0L, breaker.getRetryTime());
+    }
+
+    @Test
+    public void testProbeTimeout() {
+        CircuitBreaker breaker = open();
+
+        assertTrue(breaker.tryAcquire(1000L));
+        assertFalse(breaker.tryAcquire(1999L));
+        // The probe didn't complete in time, another one is let through
+        assertTrue(breaker.tryAcquire(2000L));
+    }
+
+    @Test
+    public void testBackoffGrowth() {
+        CircuitBreaker breaker = open();
+        long now = 1000L;
+
+        for (long backoff : new long[] {2000L, 4000L, 8000L, 8000L}) {
+            assertTrue(breaker.tryAcquire(now));
+            breaker.failure(now, FAILURE);
+            assertEquals(now + backoff, breaker.getRetryTime());
+            now += backoff;
+        }
+
+        // A success starts the next outage from the initial backoff
+        assertTrue(breaker.tryAcquire(now));
+        breaker.success();
+        breaker.failure(now, FAILURE);
+        assertEquals(now + 1000L, breaker.getRetryTime());
+    }
+
+    @Test
+    public void testIsConnectFailure() {
+        assertTrue(CircuitBreaker.isConnectFailure(FAILURE));
+        assertTrue(CircuitBreaker.isConnectFailure(new MessagingException("Connect failed", FAILURE)));
+        assertTrue(CircuitBreaker.isConnectFailure(
+                new MessagingException("Connect failed", new RuntimeException(new SocketTimeoutException()))));
+
+        assertFalse(CircuitBreaker.isConnectFailure(new AuthenticationFailedException("Invalid credentials")));
+        assertFalse(CircuitBreaker.isConnectFailure(new MessagingException("Folder not found")));
+        assertFalse(CircuitBreaker.isConnectFailure(null));
+    }
+
+    @Test
+    public void testKeyedByAccount() {
+        MailResourceAdapter ra = new MailResourceAdapter();
+        MailActivationSpec spec = spec("user");
+
+        assertSame(ra.getCircuitBreaker(spec), ra.getCircuitBreaker(spec("user")));
+        assertNotSame(ra.getCircuitBreaker(spec), ra.getCircuitBreaker(spec("other")));
+        assertEquals("user@localhost:143", CircuitBreaker.getAccount(spec));
+    }
+
+    /**
+     * Get a breaker opened at 0 for the initial backoff of 1000 MS
+     *
+     * @return The value
+     */
+    private static CircuitBreaker open() {
+        CircuitBreaker breaker = new CircuitBreaker("user@localhost:143", 1, 1000L, 8000L);
+        breaker.failure(0L, FAILURE);
+        assertEquals(1000L, breaker.getRetryTime());
+        return breaker;
+    }
+
+    private static MailActivationSpec spec(String user) {
+        MailActivationSpec spec = new MailActivationSpec();
+        spec.setMailServer("localhost");
+        spec.setPort(143);
+        spec.setMailFolder("INBOX");
+        spec.setUserName(user);
+        return spec;
+    }
+}
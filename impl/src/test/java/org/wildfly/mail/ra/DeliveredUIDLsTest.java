@@ -0,0 +1,205 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wildfly.mail.ra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * DeliveredUIDLs tests
+ */
+public class DeliveredUIDLsTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testRecoveryFromCheckpoints() throws Exception {
+        Path dir = tmp.newFolder().toPath();
+        CheckpointStore store = CheckpointStore.open(dir);
+        DeliveredUIDLs uidls = new DeliveredUIDLs(store, tmp.getRoot().toPath().resolve("unused.txt"), "pop3");
+        uidls.add("a");
+        uidls.add("b");
+        uidls.save();
+        store.close();
+
+        // The file is only used without a checkpoint store
+        assertNull(uidls.getFile());
+
+        store = CheckpointStore.open(dir);
+        try {
+            DeliveredUIDLs recovered = new DeliveredUIDLs(store, null, "pop3");
+            assertEquals(2, recovered.size());
+            assertTrue(recovered.contains("a"));
+            assertTrue(recovered.contains("b"));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testRecoveryFromFile() throws Exception {
+        Path file = tmp.newFolder().toPath().resolve("state").resolve("uidl.txt");
+        DeliveredUIDLs uidls = new DeliveredUIDLs(null, file, "pop3");
+        uidls.add("a");
+        uidls.add("b");
+        uidls.save();
+
+        DeliveredUIDLs recovered = new DeliveredUIDLs(null, file, "pop3");
+        assertEquals(2, recovered.size());
+        assertTrue(recovered.contains("a"));
+        assertTrue(recovered.contains("b"));
+        assertFalse(Files.exists(file.resolveSibling("uidl.txt.tmp")));
+    }
+
+    @Test
+    public void testFileOnlyWrittenOnChange() throws Exception {
+        Path file = tmp.newFolder().toPath().resolve("uidl.txt");
+        DeliveredUIDLs uidls = new DeliveredUIDLs(null, file, "pop3");
+        uidls.save();
+        assertFalse(Files.exists(file));
+
+        uidls.add("a");
+        uidls.save();
+        Files.delete(file);
+
+        // Nothing changed since the last save
+        uidls.add("a");
+        uidls.save();
+        assertFalse(Files.exists(file));
+    }
+
+    @Test
+    public void testPrune() {
+        DeliveredUIDLs uidls = new DeliveredUIDLs(null, null, "pop3");
+        uidls.add("a");
+        uidls.add("b");
+        uidls.add("c");
+
+        uidls.retain(new HashSet<>(Arrays.asList("b", "c", "d")));
+
+        assertEquals(2, uidls.size());
+        assertFalse(uidls.contains("a"));
+        assertTrue(uidls.contains("b"));
+        assertTrue(uidls.contains("c"));
+        // Only delivered messages are recorded
+        assertFalse(uidls.contains("d"));
+    }
+
+    @Test
+    public void testPruneRecordedInCheckpoints() throws Exception {
+        Path dir = tmp.newFolder().toPath();
+        CheckpointStore store = CheckpointStore.open(dir);
+        DeliveredUIDLs uidls = new DeliveredUIDLs(store, null, "pop3");
+        uidls.add("a");
+        uidls.add("b");
+        uidls.save();
+        uidls.retain(Collections.singleton("b"));
+        uidls.save();
+        store.close();
+
+        store = CheckpointStore.open(dir);
+        try {
+            DeliveredUIDLs recovered = new DeliveredUIDLs(store, null, "pop3");
+            assertEquals(1, recovered.size());
+            assertTrue(recovered.contains("b"));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testPruneRecordedInFile() throws Exception {
+        Path file = tmp.newFolder().toPath().resolve("uidl.txt");
+        DeliveredUIDLs uidls = new DeliveredUIDLs(null, file, "pop3");
+        uidls.add("a");
+        uidls.add("b");
+        uidls.save();
+
+        uidls.retain(Collections.singleton("b"));
+        uidls.save();
+
+        List<String> lines = Files.readAllLines(file);
+        assertEquals(Collections.singletonList("b"), lines);
+    }
+
+    @Test
+    public void testCopyForHandOver() throws Exception {
+        Path file = tmp.newFolder().toPath().resolve("uidl.txt");
+        DeliveredUIDLs uidls = new DeliveredUIDLs(null, file, "pop3");
+        uidls.add("a");
+
+        // The successor saves the changes its predecessor didn't
+        DeliveredUIDLs copy = uidls.copy();
+        assertEquals(file, copy.getFile());
+        assertTrue(copy.contains("a"));
+        copy.save();
+        assertEquals(Collections.singletonList("a"), Files.readAllLines(file));
+
+        // The copy is independent of the set it was taken from
+        copy.add("b");
+        assertFalse(uidls.contains("b"));
+        copy.save();
+        assertEquals(2, new DeliveredUIDLs(null, file, "pop3").size());
+    }
+
+    @Test
+    public void testCopyWithCheckpoints() throws Exception {
+        CheckpointStore store = CheckpointStore.open(tmp.newFolder().toPath());
+        try {
+            DeliveredUIDLs uidls = new DeliveredUIDLs(store, null, "pop3");
+            uidls.add("a");
+
+            DeliveredUIDLs copy = uidls.copy();
+            assertTrue(copy.contains("a"));
+            assertEquals(store, copy.getCheckpoints());
+
+            copy.add("b");
+            copy.save();
+            assertTrue(new DeliveredUIDLs(store, null, "pop3").contains("b"));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testFilePerMailbox() {
+        MailActivationSpec spec = new MailActivationSpec();
+        spec.setStateDirectory(tmp.getRoot().getPath());
+        Path file = DeliveredUIDLs.getFile(spec, "pop3://user@localhost:110/INBOX");
+
+        assertEquals(tmp.getRoot().toPath(), file.getParent());
+        assertEquals(file, DeliveredUIDLs.getFile(spec, "pop3://user@localhost:110/INBOX"));
+        assertFalse(file.equals(DeliveredUIDLs.getFile(spec, "pop3://other@localhost:110/INBOX")));
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wildfly.mail.ra;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * IMAPResponseParser tests
+ */
+public class IMAPResponseParserTest {
+
+    @Test
+    public void testLines() throws Exception {
+        List<IMAPResponse> responses = parse("* 3 EXISTS\r\n* OK [UIDVALIDITY 7] UIDs valid\r\nA1 OK done\r\n");
+
+        assertEquals(3, responses.size());
+        assertEquals("* 3 EXISTS", responses.get(0).toString());
+        assertEquals("7", responses.get(1).getResponseCode("UIDVALIDITY"));
+        assertEquals("A1", responses.get(2).getTag());
+    }
+
+    @Test
+    public void testBareLineFeed() throws Exception {
+        List<IMAPResponse> responses = parse("* SEARCH 1 2\nA1 OK\n");
+
+        assertEquals(2, responses.size());
+        assertEquals("* SEARCH 1 2", responses.get(0).toString());
+    }
+
+    @Test
+    public void testLiteral() throws Exception {
+        List<IMAPResponse> responses =
+                parse("* 1 FETCH (UID 5 BODY[] {8}\r\nab\r\ncd\r\n FLAGS (\\Seen))\r\nA1 OK\r\n");
+
+        assertEquals(2, responses.size());
+        List<Object> tokens = responses.get(0).parse();
+        List<?> items = (List<?>) tokens.get(2);
+        assertArrayEquals("ab\r\ncd\r\n".getBytes(StandardCharsets.ISO_8859_1), (byte[]) items.get(3));
+        assertEquals("FLAGS", items.get(4));
+    }
+
+    @Test
+    public void testEmptyLiteral() throws Exception {
+        List<IMAPResponse> responses = parse("* 1 FETCH (BODY[TEXT] {0}\r\n)\r\n");
+
+        List<?> items = (List<?>) responses.get(0).parse().get(2);
+        assertEquals(0, ((byte[]) items.get(1)).length);
+    }
+
+    @Test
+    public void testSplitAcrossReads() throws Exception {
+        byte[] bytes = "* 1 FETCH (UID 5 BODY[] {5}\r\nhello)\r\nA1 OK\r\n".getBytes(StandardCharsets.ISO_8859_1);
+        IMAPResponseParser parser = new IMAPResponseParser();
+        List<IMAPResponse> responses = new ArrayList<>();
+
+        // One byte per read, as a slow connection could deliver them
+        for (byte b : bytes) {
+            parser.parse(ByteBuffer.wrap(new byte[] {b}), responses::add);
+        }
+
+        assertEquals(2, responses.size());
+        List<?> items = (List<?>) responses.get(0).parse().get(2);
+        assertArrayEquals("hello".getBytes(StandardCharsets.ISO_8859_1), (byte[]) items.get(3));
+    }
+
+    @Test
+    public void testIncompleteResponseHeldBack() throws Exception {
+        IMAPResponseParser parser = new IMAPResponseParser();
+        List<IMAPResponse> responses = new ArrayList<>();
+
+        parser.parse(buffer("* 1 FETCH (BODY[] {10}\r\n0123"), responses::add);
+        assertTrue(responses.isEmpty());
+
+        parser.parse(buffer("456789)\r\n"), responses::add);
+        assertEquals(1, responses.size());
+    }
+
+    @Test
+    public void testLiteralTooLarge() {
+        try {
+            parse("* 1 FETCH (BODY[] {99999999999}\r\n");
+            fail("Accepted a literal larger than an array");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    private static List<IMAPResponse> parse(String s) throws IOException {
+        List<IMAPResponse> responses = new ArrayList<>();
+        new IMAPResponseParser().parse(buffer(s), responses::add);
+        return responses;
+    }
+
+    private static ByteBuffer buffer(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.ISO_8859_1));
+    }
+}
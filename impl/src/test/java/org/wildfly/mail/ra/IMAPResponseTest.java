@@ -0,0 +1,149 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wildfly.mail.ra;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import javax.mail.MessagingException;
+
+import org.junit.Test;
+
+/**
+ * IMAPResponse tests
+ */
+public class IMAPResponseTest {
+
+    @Test
+    public void testTagAndStatus() {
+        IMAPResponse untagged = response("* search 1 2");
+        assertTrue(untagged.isUntagged());
+        assertEquals("SEARCH", untagged.getStatus());
+
+        IMAPResponse tagged = response("A12 NO [AUTHENTICATIONFAILED] Invalid credentials");
+        assertEquals("A12", tagged.getTag());
+        assertFalse(tagged.isOK());
+        assertEquals("NO [AUTHENTICATIONFAILED] Invalid credentials", tagged.getRest());
+
+        assertTrue(response("+ go ahead").isContinuation());
+    }
+
+    @Test
+    public void testResponseCode() {
+        assertEquals("3857529045", response("* OK [UIDVALIDITY 3857529045] UIDs valid").getResponseCode("UIDVALIDITY"));
+        assertEquals("", response("A1 OK [READ-WRITE] SELECT completed").getResponseCode("READ-WRITE"));
+        assertNull(response("* OK [UIDNEXT 4392] Predicted next UID").getResponseCode("UIDVALIDITY"));
+        assertNull(response("* OK [UIDVALIDITYX 1]").getResponseCode("UIDVALIDITY"));
+        assertNull(response("* OK no code").getResponseCode("UIDVALIDITY"));
+    }
+
+    @Test
+    public void testAtomsQuotedAndNil() throws Exception {
+        List<Object> tokens = response("* LIST (\\HasNoChildren) \"/\" NIL \"a \\\"b\\\" \\\\c\"").parse();
+
+        assertEquals("LIST", tokens.get(0));
+        assertEquals(Collections.singletonList("\\HasNoChildren"), tokens.get(1));
+        assertEquals("/", tokens.get(2));
+        assertNull(tokens.get(3));
+        assertEquals("a \"b\" \\c", tokens.get(4));
+    }
+
+    @Test
+    public void testNestedLists() throws Exception {
+        List<Object> tokens = response("* 12 FETCH (UID 7 FLAGS (\\Seen $Label) RFC822.SIZE 44)").parse();
+
+        assertEquals("12", tokens.get(0));
+        assertEquals("FETCH", tokens.get(1));
+        List<?> items = (List<?>) tokens.get(2);
+        assertEquals(Arrays.asList("UID", "7", "FLAGS", Arrays.asList("\\Seen", "$Label"), "RFC822.SIZE", "44"),
+                items);
+    }
+
+    @Test
+    public void testSectionsAreAtoms() throws Exception {
+        List<?> items = (List<?>) response("* 1 FETCH (BODY[HEADER.FIELDS (FROM TO)] \"x\" BODY[TEXT]<0> \"y\")")
+                .parse().get(2);
+
+        assertEquals("BODY[HEADER.FIELDS (FROM TO)]", items.get(0));
+        assertEquals("x", items.get(1));
+        assertEquals("BODY[TEXT]<0>", items.get(2));
+        assertEquals("y", items.get(3));
+    }
+
+    @Test
+    public void testResponseCodeBrackets() throws Exception {
+        List<Object> tokens = response("* OK [PERMANENTFLAGS (\\Deleted \\Seen)] Limited").parse();
+
+        assertEquals("OK", tokens.get(0));
+        assertEquals(Arrays.asList("PERMANENTFLAGS", Arrays.asList("\\Deleted", "\\Seen")), tokens.get(1));
+        assertEquals("Limited", tokens.get(2));
+    }
+
+    @Test
+    public void testLiterals() throws Exception {
+        byte[] first = "abc".getBytes(StandardCharsets.ISO_8859_1);
+        byte[] second = "de".getBytes(StandardCharsets.ISO_8859_1);
+        IMAPResponse response = new IMAPResponse("* 1 FETCH (BODY[HEADER] {3} BODY[TEXT] {2})",
+                Arrays.asList(first, second));
+
+        List<?> items = (List<?>) response.parse().get(2);
+        assertArrayEquals(first, (byte[]) items.get(1));
+        assertArrayEquals(second, (byte[]) items.get(3));
+    }
+
+    @Test
+    public void testMalformed() {
+        assertMalformed(response("* 1 FETCH (UID 1"));
+        assertMalformed(response("* LIST () \"/\" \"unterminated"));
+        assertMalformed(response("* 1 FETCH (BODY[] {3})"));
+    }
+
+    @Test
+    public void testToLong() throws Exception {
+        assertEquals(4294967295L, IMAPResponse.toLong("4294967295"));
+        try {
+            IMAPResponse.toLong("NIL");
+            fail("Parsed NIL as a number");
+        } catch (MessagingException e) {
+            // Expected
+        }
+    }
+
+    private static IMAPResponse response(String text) {
+        return new IMAPResponse(text, Collections.<byte[]>emptyList());
+    }
+
+    private static void assertMalformed(IMAPResponse response) {
+        try {
+            response.parse();
+            fail("Parsed: " + response);
+        } catch (MessagingException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(response.toString()));
+        }
+    }
+}
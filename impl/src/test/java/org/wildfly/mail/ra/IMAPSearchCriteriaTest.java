@@ -0,0 +1,143 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wildfly.mail.ra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import javax.mail.Flags;
+import javax.mail.Message;
+import javax.mail.search.AndTerm;
+import javax.mail.search.BodyTerm;
+import javax.mail.search.ComparisonTerm;
+import javax.mail.search.FlagTerm;
+import javax.mail.search.FromStringTerm;
+import javax.mail.search.HeaderTerm;
+import javax.mail.search.NotTerm;
+import javax.mail.search.OrTerm;
+import javax.mail.search.ReceivedDateTerm;
+import javax.mail.search.RecipientStringTerm;
+import javax.mail.search.SentDateTerm;
+import javax.mail.search.SizeTerm;
+import javax.mail.search.SubjectTerm;
+
+import org.junit.Test;
+
+/**
+ * IMAPSearchCriteria tests
+ */
+public class IMAPSearchCriteriaTest {
+
+    @Test
+    public void testStrings() {
+        assertEquals("FROM \"billing@\"", IMAPSearchCriteria.toCriteria(new FromStringTerm("billing@")));
+        assertEquals("CC \"team\"",
+                IMAPSearchCriteria.toCriteria(new RecipientStringTerm(Message.RecipientType.CC, "team")));
+        assertEquals("TO \"me\"",
+                IMAPSearchCriteria.toCriteria(new RecipientStringTerm(Message.RecipientType.TO, "me")));
+        assertEquals("SUBJECT \"say \\\"hi\\\"\"", IMAPSearchCriteria.toCriteria(new SubjectTerm("say \"hi\"")));
+        assertEquals("BODY \"a\\\\b\"", IMAPSearchCriteria.toCriteria(new BodyTerm("a\\b")));
+        assertEquals("HEADER \"X-Priority\" \"1\"", IMAPSearchCriteria.toCriteria(new HeaderTerm("X-Priority", "1")));
+    }
+
+    @Test
+    public void testLogicalTerms() {
+        FromStringTerm a = new FromStringTerm("a");
+        FromStringTerm b = new FromStringTerm("b");
+        FromStringTerm c = new FromStringTerm("c");
+
+        assertEquals("(FROM \"a\" FROM \"b\")", IMAPSearchCriteria.toCriteria(new AndTerm(a, b)));
+        assertEquals("NOT FROM \"a\"", IMAPSearchCriteria.toCriteria(new NotTerm(a)));
+        // OR is binary in IMAP
+        assertEquals("OR FROM \"a\" OR FROM \"b\" FROM \"c\"",
+                IMAPSearchCriteria.toCriteria(new OrTerm(new FromStringTerm[] {a, b, c})));
+    }
+
+    @Test
+    public void testSizes() {
+        assertEquals("SMALLER 10", size(ComparisonTerm.LT));
+        assertEquals("SMALLER 11", size(ComparisonTerm.LE));
+        assertEquals("LARGER 10", size(ComparisonTerm.GT));
+        assertEquals("LARGER 9", size(ComparisonTerm.GE));
+        assertEquals("(NOT LARGER 10 NOT SMALLER 10)", size(ComparisonTerm.EQ));
+        assertEquals("OR LARGER 10 SMALLER 10", size(ComparisonTerm.NE));
+    }
+
+    @Test
+    public void testSelectorSizes() {
+        // The rewrites of the message selector
+        assertEquals("NOT LARGER 10", criteria("size <= 10"));
+        assertEquals("(NOT LARGER 10 NOT SMALLER 10)", criteria("size = 10"));
+        assertEquals("OR LARGER 10 SMALLER 10", criteria("size <> 10"));
+    }
+
+    @Test
+    public void testDates() throws Exception {
+        Date date = new SimpleDateFormat("yyyy-MM-dd", Locale.ENGLISH).parse("2016-03-01");
+
+        assertEquals("SENTBEFORE 1-Mar-2016",
+                IMAPSearchCriteria.toCriteria(new SentDateTerm(ComparisonTerm.LT, date)));
+        assertEquals("OR SENTBEFORE 1-Mar-2016 SENTON 1-Mar-2016",
+                IMAPSearchCriteria.toCriteria(new SentDateTerm(ComparisonTerm.LE, date)));
+        assertEquals("(SINCE 1-Mar-2016 NOT ON 1-Mar-2016)",
+                IMAPSearchCriteria.toCriteria(new ReceivedDateTerm(ComparisonTerm.GT, date)));
+        assertEquals("SINCE 1-Mar-2016", IMAPSearchCriteria.toCriteria(new ReceivedDateTerm(ComparisonTerm.GE, date)));
+        assertEquals("ON 1-Mar-2016", IMAPSearchCriteria.toCriteria(new ReceivedDateTerm(ComparisonTerm.EQ, date)));
+        assertEquals("NOT SENTON 1-Mar-2016", IMAPSearchCriteria.toCriteria(new SentDateTerm(ComparisonTerm.NE, date)));
+    }
+
+    @Test
+    public void testUnsupported() {
+        try {
+            IMAPSearchCriteria.toCriteria(new FlagTerm(new Flags(Flags.Flag.SEEN), false));
+            fail("Wrote a flag term");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testQuote() {
+        assertEquals("\"\"", IMAPSearchCriteria.quote(""));
+        assertEquals("\"INBOX.a b\"", IMAPSearchCriteria.quote("INBOX.a b"));
+        assertNotQuotable("caf\u00e9");
+        assertNotQuotable("a\r\nb");
+    }
+
+    private static String size(int comparison) {
+        return IMAPSearchCriteria.toCriteria(new SizeTerm(comparison, 10));
+    }
+
+    private static String criteria(String selector) {
+        return IMAPSearchCriteria.toCriteria(MessageSelector.parse(selector));
+    }
+
+    private static void assertNotQuotable(String s) {
+        try {
+            IMAPSearchCriteria.quote(s);
+            fail("Quoted: " + s);
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wildfly.mail.ra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+/**
+ * MailActivationMetrics tests
+ */
+public class MailActivationMetricsTest {
+
+    @Test
+    public void testCounters() {
+        MailActivationMetrics metrics = new MailActivationMetrics(new MailActivationSpec(), null);
+
+        metrics.pollCompleted(true);
+        metrics.pollCompleted(true);
+        metrics.pollCompleted(false);
+        metrics.connected(TimeUnit.MILLISECONDS.toNanos(5), true);
+        metrics.connected(0L, false);
+        metrics.delivered(TimeUnit.MILLISECONDS.toNanos(2), true);
+        metrics.delivered(TimeUnit.MILLISECONDS.toNanos(4), 10, true);
+        metrics.delivered(TimeUnit.MILLISECONDS.toNanos(6), 3, false);
+
+        assertEquals(3L, metrics.getPolls());
+        assertEquals(1L, metrics.getPollFailures());
+        assertEquals(1L, metrics.getConnectFailures());
+        assertEquals(11L, metrics.getMessagesDelivered());
+        assertEquals(3L, metrics.getDeliveryFailures());
+        assertTrue(metrics.getLastPollTime() > 0L);
+        assertTrue(metrics.getPollRate() > 0.0);
+        assertTrue(metrics.getMessageRate() > 0.0);
+        assertEquals(0, metrics.getQueueDepth());
+    }
+
+    @Test
+    public void testLatencies() {
+        MailActivationMetrics metrics = new MailActivationMetrics(new MailActivationSpec(), null);
+        assertEquals(0.0, metrics.getSearchTimeAverage(), 0.0);
+
+        metrics.searched(TimeUnit.MILLISECONDS.toNanos(10));
+        metrics.searched(TimeUnit.MILLISECONDS.toNanos(30));
+        metrics.fetched(TimeUnit.MICROSECONDS.toNanos(500));
+        metrics.connected(TimeUnit.MILLISECONDS.toNanos(8), true);
+        // A failed connection has no connect time
+        metrics.connected(TimeUnit.MILLISECONDS.toNanos(1000), false);
+        metrics.delivered(TimeUnit.MILLISECONDS.toNanos(1), true);
+        metrics.delivered(TimeUnit.MILLISECONDS.toNanos(3), true);
+
+        assertEquals(20.0, metrics.getSearchTimeAverage(), 0.001);
+        assertEquals(30.0, metrics.getSearchTimeMax(), 0.001);
+        assertEquals(0.5, metrics.getFetchTimeAverage(), 0.001);
+        assertEquals(0.5, metrics.getFetchTimeMax(), 0.001);
+        assertEquals(8.0, metrics.getConnectTimeAverage(), 0.001);
+        assertEquals(8.0, metrics.getConnectTimeMax(), 0.001);
+        assertEquals(2.0, metrics.getOnMessageTimeAverage(), 0.001);
+        assertEquals(3.0, metrics.getOnMessageTimeMax(), 0.001);
+    }
+
+    @Test
+    public void testReset() {
+        MailActivationMetrics metrics = new MailActivationMetrics(new MailActivationSpec(), null);
+        metrics.pollCompleted(false);
+        metrics.connected(0L, false);
+        metrics.searched(TimeUnit.MILLISECONDS.toNanos(10));
+        metrics.delivered(TimeUnit.MILLISECONDS.toNanos(2), 5, true);
+
+        metrics.reset();
+
+        assertEquals(0L, metrics.getPolls());
+        assertEquals(0L, metrics.getPollFailures());
+        assertEquals(0L, metrics.getConnectFailures());
+        assertEquals(0L, metrics.getMessagesDelivered());
+        assertEquals(0.0, metrics.getSearchTimeAverage(), 0.0);
+        assertEquals(0.0, metrics.getSearchTimeMax(), 0.0);
+        assertEquals(0.0, metrics.getOnMessageTimeMax(), 0.0);
+        assertEquals(0.0, metrics.getMessageRate(), 0.0);
+    }
+
+    @Test
+    public void testConcurrentUpdates() throws Exception {
+        MailActivationMetrics metrics = new MailActivationMetrics(new MailActivationSpec(), null);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread thread = new Thread(() -> {
+                for (int j = 0; j < 10000; j++) {
+                    metrics.delivered(j, true);
+                    metrics.pollCompleted(j % 2 == 0);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(40000L, metrics.getMessagesDelivered());
+        assertEquals(40000L, metrics.getPolls());
+        assertEquals(20000L, metrics.getPollFailures());
+    }
+
+    @Test
+    public void testQueueDepth() throws Exception {
+        NewMsgsWorker worker = new NewMsgsWorker(null);
+        MailActivationSpec spec = new MailActivationSpec();
+        spec.setMailServer("localhost");
+        spec.setMailFolder("INBOX");
+        MailActivationMetrics metrics = new MailActivationMetrics(spec, worker);
+
+        worker.watch(new MailActivation(null, spec));
+
+        assertEquals(1, metrics.getQueueDepth());
+    }
+
+    @Test
+    public void testMBean() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.wildfly.mail.ra:type=MailActivationMetricsTest");
+        MailActivationMetrics metrics = new MailActivationMetrics(new MailActivationSpec(), null);
+        metrics.pollCompleted(true);
+        metrics.delivered(0L, 2, true);
+
+        server.registerMBean(metrics, name);
+        try {
+            assertEquals(1L, server.getAttribute(name, "Polls"));
+            assertEquals(2L, server.getAttribute(name, "MessagesDelivered"));
+
+            server.invoke(name, "reset", null, null);
+            assertEquals(0L, server.getAttribute(name, "MessagesDelivered"));
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+}
@@ -0,0 +1,534 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wildfly.mail.ra;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Stream;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.Store;
+import javax.mail.internet.MimeMessage;
+import javax.resource.spi.endpoint.MessageEndpoint;
+import javax.resource.spi.endpoint.MessageEndpointFactory;
+import javax.transaction.xa.XAResource;
+
+import org.junit.Test;
+
+/**
+ * MailActivation tests
+ */
+public class MailActivationTest {
+
+    @Test
+    public void testBatches() throws Exception {
+        MailActivationSpec spec = spec();
+        spec.setBatchSize(10);
+        EndpointFactory endpoints = new EndpointFactory(true);
+        TestMailFolder folder = new TestMailFolder(spec, messages(25));
+
+        new MailActivation(endpoints, spec).deliverAll(folder);
+
+        assertEquals(Arrays.asList(10, 10, 5), endpoints.getBatchSizes());
+        assertEquals(folder.inbox, endpoints.getMessages());
+        assertEquals(25, folder.seen.size());
+    }
+
+    @Test
+    public void testMarkedAfterDelivery() throws Exception {
+        MailActivationSpec spec = spec();
+        spec.setBatchSize(2);
+        TestMailFolder folder = new TestMailFolder(spec, messages(3));
+        List<Integer> seenOnDelivery = new ArrayList<>();
+        EndpointFactory endpoints = new EndpointFactory(true) {
+            @Override
+            void onMessages(Message[] msgs) {
+                seenOnDelivery.add(folder.seen.size());
+                super.onMessages(msgs);
+            }
+        };
+
+        new MailActivation(endpoints, spec).deliverAll(folder);
+
+        assertEquals(Arrays.asList(0, 2), seenOnDelivery);
+        assertEquals(3, folder.seen.size());
+    }
+
+    @Test
+    public void testMarkedAfterDeliveryOneByOne() throws Exception {
+        MailActivationSpec spec = spec();
+        TestMailFolder folder = new TestMailFolder(spec, messages(3));
+        List<Integer> seenOnDelivery = new ArrayList<>();
+        EndpointFactory endpoints = new EndpointFactory(false) {
+            @Override
+            void onMessages(Message[] msgs) {
+                seenOnDelivery.add(folder.seen.size());
+                super.onMessages(msgs);
+            }
+        };
+
+        new MailActivation(endpoints, spec).deliverAll(folder);
+
+        assertEquals(Arrays.asList(0, 1, 2), seenOnDelivery);
+        assertEquals(folder.inbox, endpoints.getMessages());
+        assertEquals(3, folder.seen.size());
+    }
+
+    @Test
+    public void testIdleWithoutLinger() throws Exception {
+        MailActivationSpec spec = spec();
+        spec.setDeliveryMode("idle");
+        spec.setBatchSize(10);
+        EndpointFactory endpoints = new EndpointFactory(true);
+        TestMailFolder folder = new TestMailFolder(spec, messages(0), messages(1), messages(2));
+
+        new MailActivation(endpoints, spec).deliverAll(folder);
+
+        assertEquals(Arrays.asList(1, 2), endpoints.getBatchSizes());
+    }
+
+    @Test
+    public void testIdleLinger() throws Exception {
+        MailActivationSpec spec = spec();
+        spec.setDeliveryMode("idle");
+        spec.setBatchSize(10);
+        spec.setBatchLinger(200L);
+        EndpointFactory endpoints = new EndpointFactory(true);
+        // The second message arrives after the first refresh, while the partial batch lingers
+        TestMailFolder folder = new TestMailFolder(spec, messages(0), messages(1), messages(1));
+        folder.idles = 1;
+
+        long start = System.currentTimeMillis();
+        new MailActivation(endpoints, spec).deliverAll(folder);
+
+        assertEquals(Collections.singletonList(2), endpoints.getBatchSizes());
+        assertEquals(folder.inbox, endpoints.getMessages());
+        assertEquals(2, folder.seen.size());
+        assertTrue(endpoints.getFirstDeliveryTime() - start >= 200L);
+    }
+
+    @Test
+    public void testIdleLingerEndsOnRelease() throws Exception {
+        MailActivationSpec spec = spec();
+        spec.setDeliveryMode("idle");
+        spec.setBatchSize(10);
+        spec.setBatchLinger(60000L);
+        EndpointFactory endpoints = new EndpointFactory(true);
+        TestMailFolder folder = new TestMailFolder(spec, messages(0), messages(1));
+        folder.idles = 1;
+        MailActivation activation = new MailActivation(endpoints, spec);
+
+        Thread check = new Thread(() -> {
+            try {
+                activation.deliverAll(folder);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        check.start();
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (check.getState() != Thread.State.TIMED_WAITING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        activation.release();
+        check.join(5000L);
+
+        assertFalse(check.isAlive());
+        // Left unmarked, for the next check
+        assertTrue(endpoints.getBatchSizes().isEmpty());
+        assertTrue(folder.seen.isEmpty());
+    }
+
+    @Test
+    public void testSpooledDelivery() throws Exception {
+        Path directory = Files.createTempDirectory("spool");
+        try {
+            MailActivationSpec spec = spec();
+            spec.setSpoolThreshold(1024);
+            spec.setSpoolDirectory(directory.toString());
+            byte[] raw = MessageSpoolTest.message(4096);
+            Message large = new MessageSpoolTest.TestMessage(raw);
+            Message small = new MessageSpoolTest.TestMessage(MessageSpoolTest.message(512));
+            List<Long> spooledOnDelivery = new ArrayList<>();
+            EndpointFactory endpoints = new EndpointFactory(false) {
+                @Override
+                void onMessages(Message[] msgs) {
+                    try (Stream<Path> files = Files.list(directory)) {
+                        spooledOnDelivery.add(files.count());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    super.onMessages(msgs);
+                }
+            };
+
+            new MailActivation(endpoints, spec).deliverAll(new TestMailFolder(spec, new Message[] {large, small}));
+
+            List<Message> delivered = endpoints.getMessages();
+            assertNotSame(large, delivered.get(0));
+            assertSame(small, delivered.get(1));
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            delivered.get(0).writeTo(content);
+            assertArrayEquals(raw, content.toByteArray());
+            // The spool file only lives during the delivery
+            assertEquals(Arrays.asList(1L, 0L), spooledOnDelivery);
+            try (Stream<Path> files = Files.list(directory)) {
+                assertEquals(0L, files.count());
+            }
+        } finally {
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    public void testAdaptiveInterval() throws Exception {
+        MailActivationSpec spec = spec();
+        spec.setAdaptivePolling(true);
+        spec.setPollingInterval(10000L);
+        spec.setMinPollingInterval(2000L);
+        spec.setMaxPollingInterval(60000L);
+        spec.setPollingBackoffFactor(2.0);
+        MailActivation activation = new MailActivation(new EndpointFactory(false), spec);
+        // Past the first check, which is spread across the interval
+        activation.updateNextNewMsgCheckTime(1L);
+        assertEquals(10000L, getInterval(activation));
+
+        // Shrinks toward the min while messages arrive
+        for (long interval : new long[] {5000L, 2500L, 2000L, 2000L}) {
+            activation.deliverAll(new TestMailFolder(spec, messages(1)));
+            assertEquals(interval, getInterval(activation));
+        }
+
+        // Backs off toward the max while the mailbox stays empty
+        for (long interval : new long[] {4000L, 8000L, 16000L, 32000L, 60000L, 60000L}) {
+            activation.deliverAll(new TestMailFolder(spec, messages(0)));
+            assertEquals(interval, getInterval(activation));
+        }
+
+        activation.deliverAll(new TestMailFolder(spec, messages(3)));
+        assertEquals(30000L, getInterval(activation));
+    }
+
+    @Test
+    public void testFixedInterval() throws Exception {
+        MailActivationSpec spec = spec();
+        spec.setPollingInterval(10000L);
+        MailActivation activation = new MailActivation(new EndpointFactory(false), spec);
+        activation.updateNextNewMsgCheckTime(1L);
+
+        activation.deliverAll(new TestMailFolder(spec, messages(0)));
+        assertEquals(10000L, getInterval(activation));
+        activation.deliverAll(new TestMailFolder(spec, messages(1)));
+        assertEquals(10000L, getInterval(activation));
+    }
+
+    @Test
+    public void testFirstCheckSpread() {
+        int[] quarters = new int[4];
+        Set<Long> offsets = new HashSet<>();
+        for (int i = 0; i < 200; i++) {
+            MailActivationSpec spec = spec();
+            spec.setUserName("user" + i);
+            spec.setPollingInterval(60000L);
+            MailActivation activation = new MailActivation(null, spec);
+            activation.updateNextNewMsgCheckTime(1000L);
+
+            long offset = activation.getNextNewMsgCheckTime() - 1000L;
+            assertTrue(offset >= 0L && offset < 60000L);
+            offsets.add(offset);
+            quarters[(int) (offset / 15000L)]++;
+        }
+
+        assertTrue(offsets.size() > 190);
+        for (int quarter : quarters) {
+            assertTrue(Arrays.toString(quarters), quarter >= 25);
+        }
+    }
+
+    @Test
+    public void testFirstCheckStable() {
+        MailActivation activation = new MailActivation(null, spec());
+        MailActivation redeployed = new MailActivation(null, spec());
+
+        activation.updateNextNewMsgCheckTime(1000L);
+        redeployed.updateNextNewMsgCheckTime(1000L);
+
+        assertEquals(activation.getNextNewMsgCheckTime(), redeployed.getNextNewMsgCheckTime());
+    }
+
+    @Test
+    public void testJitter() {
+        MailActivationSpec spec = spec();
+        spec.setPollingInterval(10000L);
+        spec.setPollingJitter(500L);
+        MailActivation activation = new MailActivation(null, spec);
+        activation.updateNextNewMsgCheckTime(1L);
+
+        Set<Long> delays = new HashSet<>();
+        for (int i = 0; i < 200; i++) {
+            long interval = getInterval(activation);
+            assertTrue(interval >= 10000L && interval <= 10500L);
+            delays.add(interval);
+        }
+        assertTrue(delays.size() > 1);
+    }
+
+    @Test
+    public void testBacklogCheckedAtOnce() throws Exception {
+        MailActivationSpec spec = spec();
+        spec.setPollingInterval(10000L);
+        MailActivation activation = new MailActivation(new EndpointFactory(false), spec);
+        activation.updateNextNewMsgCheckTime(1L);
+        TestMailFolder folder = new TestMailFolder(spec, messages(2));
+        folder.backlog = true;
+
+        activation.deliverAll(folder);
+        assertEquals(0L, getInterval(activation));
+
+        activation.deliverAll(new TestMailFolder(spec, messages(0)));
+        assertEquals(10000L, getInterval(activation));
+    }
+
+    /**
+     * Get the interval until the next check, as scheduled after a check
+     *
+     * @param activation The activation, past its first check
+     * @return The value in MS
+     */
+    private static long getInterval(MailActivation activation) {
+        activation.updateNextNewMsgCheckTime(100000L);
+        return activation.getNextNewMsgCheckTime() - 100000L;
+    }
+
+    private static MailActivationSpec spec() {
+        MailActivationSpec spec = new MailActivationSpec();
+        spec.setMailServer("localhost");
+        spec.setMailFolder("INBOX");
+        spec.setUserName("user");
+        return spec;
+    }
+
+    private static Message[] messages(int count) {
+        Message[] msgs = new Message[count];
+        for (int i = 0; i < count; i++) {
+            msgs[i] = new MimeMessage((Session) null);
+        }
+        return msgs;
+    }
+
+    /**
+     * A folder serving a scripted arrival of messages: the first arrival is found by the check,
+     * each of the next ones by a refresh. A refresh finds again the messages not marked yet
+     */
+    private static class TestMailFolder extends MailFolder {
+        private final Queue<Message[]> arrivals = new ArrayDeque<>();
+        private final List<Message> inbox = new CopyOnWriteArrayList<>();
+        private final Set<Message> seen = ConcurrentHashMap.newKeySet();
+        private volatile int idles;
+        private volatile boolean backlog;
+
+        TestMailFolder(MailActivationSpec spec, Message[]... arrivals) {
+            super(spec);
+            this.arrivals.addAll(Arrays.asList(arrivals));
+            this.idles = arrivals.length - 1;
+            refresh();
+        }
+
+        @Override
+        public void refresh() {
+            Message[] arrival = arrivals.poll();
+            if (arrival != null) { inbox.addAll(Arrays.asList(arrival)); }
+
+            List<Message> unseen = new ArrayList<>(inbox);
+            unseen.removeAll(seen);
+            setMessages(unseen.toArray(new Message[unseen.size()]), false);
+        }
+
+        @Override
+        public boolean hasBacklog() {
+            return backlog;
+        }
+
+        @Override
+        public boolean isIdleSupported() {
+            return true;
+        }
+
+        @Override
+        public boolean idle() {
+            if (idles == 0) { return false; }
+
+            idles--;
+            return true;
+        }
+
+        @Override
+        protected void close(boolean checkSuccessful) {
+        }
+
+        @Override
+        protected Store openStore(Session session) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected void closeStore(boolean success, Store store, Folder folder) {
+        }
+
+        @Override
+        protected Message[] getMessages(Folder folder) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected void markMessageSeen(Message message) {
+            seen.add(message);
+        }
+    }
+
+    /**
+     * Creates MailListener or MailBatchListener endpoints, recording the batches they receive;
+     * a message delivered on its own is recorded as a batch of one
+     */
+    private static class EndpointFactory implements MessageEndpointFactory {
+        private final boolean batch;
+        private final List<Message[]> batches = new CopyOnWriteArrayList<>();
+        private volatile long firstDeliveryTime;
+
+        EndpointFactory(boolean batch) {
+            this.batch = batch;
+        }
+
+        void onMessages(Message[] msgs) {
+            if (batches.isEmpty()) { firstDeliveryTime = System.currentTimeMillis(); }
+            batches.add(msgs);
+        }
+
+        List<Integer> getBatchSizes() {
+            List<Integer> sizes = new ArrayList<>();
+            for (Message[] batch : batches) {
+                sizes.add(batch.length);
+            }
+            return sizes;
+        }
+
+        List<Message> getMessages() {
+            List<Message> msgs = new ArrayList<>();
+            for (Message[] batch : batches) {
+                msgs.addAll(Arrays.asList(batch));
+            }
+            return msgs;
+        }
+
+        long getFirstDeliveryTime() {
+            return firstDeliveryTime;
+        }
+
+        @Override
+        public MessageEndpoint createEndpoint(XAResource xaResource) {
+            return batch ? new BatchEndpoint(this) : new Endpoint(this);
+        }
+
+        @Override
+        public MessageEndpoint createEndpoint(XAResource xaResource, long timeout) {
+            return createEndpoint(xaResource);
+        }
+
+        @Override
+        public boolean isDeliveryTransacted(Method method) {
+            return false;
+        }
+
+        @Override
+        public String getActivationName() {
+            return batch ? "batch" : "single";
+        }
+
+        @Override
+        public Class<?> getEndpointClass() {
+            return batch ? BatchEndpoint.class : Endpoint.class;
+        }
+    }
+
+    /**
+     * A MailListener endpoint
+     */
+    private static class Endpoint implements MessageEndpoint, MailListener {
+        protected final EndpointFactory factory;
+
+        Endpoint(EndpointFactory factory) {
+            this.factory = factory;
+        }
+
+        @Override
+        public void onMessage(Message msg) {
+            factory.onMessages(new Message[] {msg});
+        }
+
+        @Override
+        public void beforeDelivery(Method method) {
+        }
+
+        @Override
+        public void afterDelivery() {
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+
+    /**
+     * A MailBatchListener endpoint
+     */
+    private static class BatchEndpoint extends Endpoint implements MailBatchListener {
+
+        BatchEndpoint(EndpointFactory factory) {
+            super(factory);
+        }
+
+        @Override
+        public void onMessages(Message[] msgs) {
+            factory.onMessages(msgs);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wildfly.mail.ra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Properties;
+import javax.mail.Folder;
+import javax.mail.Session;
+import javax.mail.Store;
+import javax.mail.URLName;
+
+import org.junit.Test;
+
+/**
+ * MailStorePool tests
+ */
+public class MailStorePoolTest {
+    private static final MailStorePool.Key KEY = new MailStorePool.Key("imap", "localhost", 143, "user", "secret",
+            false);
+
+    @Test
+    public void testReuse() {
+        MailStorePool pool = new MailStorePool(4, 60000L);
+        TestStore store = new TestStore();
+        pool.release(new MailStorePool.PooledStore(KEY, store));
+        assertEquals(1, pool.getIdleCount());
+
+        MailStorePool.PooledStore pooled = pool.borrow(KEY);
+        assertSame(store, pooled.getStore());
+        assertEquals(0, pool.getIdleCount());
+        assertNull(pool.borrow(KEY));
+        assertFalse(store.closed);
+    }
+
+    @Test
+    public void testNotSharedAcrossKeys() {
+        MailStorePool pool = new MailStorePool(4, 60000L);
+        pool.release(new MailStorePool.PooledStore(KEY, new TestStore()));
+
+        assertNull(pool.borrow(new MailStorePool.Key("imap", "localhost", 143, "user", "other", false)));
+        assertNull(pool.borrow(new MailStorePool.Key("imap", "localhost", 143, "other", "secret", false)));
+        assertEquals(1, pool.getIdleCount());
+    }
+
+    @Test
+    public void testMaxIdle() {
+        MailStorePool pool = new MailStorePool(1, 60000L);
+        TestStore first = new TestStore();
+        TestStore second = new TestStore();
+        pool.release(new MailStorePool.PooledStore(KEY, first));
+        pool.release(new MailStorePool.PooledStore(KEY, second));
+
+        assertEquals(1, pool.getIdleCount());
+        assertFalse(first.closed);
+        assertTrue(second.closed);
+    }
+
+    @Test
+    public void testBrokenStoreDiscarded() {
+        MailStorePool pool = new MailStorePool(4, 60000L);
+        TestStore broken = new TestStore();
+        TestStore healthy = new TestStore();
+        pool.release(new MailStorePool.PooledStore(KEY, healthy));
+        pool.release(new MailStorePool.PooledStore(KEY, broken));
+        broken.connected = false;
+
+        // The most recently returned store is tried first
+        assertSame(healthy, pool.borrow(KEY).getStore());
+        assertTrue(broken.closed);
+        assertEquals(0, pool.getIdleCount());
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        MailStorePool pool = new MailStorePool(4, 10L);
+        TestStore store = new TestStore();
+        pool.release(new MailStorePool.PooledStore(KEY, store));
+
+        pool.evict();
+        assertEquals(1, pool.getIdleCount());
+
+        Thread.sleep(50L);
+        pool.evict();
+        assertEquals(0, pool.getIdleCount());
+        assertTrue(store.closed);
+    }
+
+    @Test
+    public void testExpiredOnBorrow() throws Exception {
+        MailStorePool pool = new MailStorePool(4, 10L);
+        TestStore store = new TestStore();
+        pool.release(new MailStorePool.PooledStore(KEY, store));
+
+        Thread.sleep(50L);
+        assertNull(pool.borrow(KEY));
+        assertTrue(store.closed);
+    }
+
+    @Test
+    public void testClose() {
+        MailStorePool pool = new MailStorePool(4, 60000L);
+        TestStore first = new TestStore();
+        TestStore second = new TestStore();
+        pool.release(new MailStorePool.PooledStore(KEY, first));
+        pool.release(new MailStorePool.PooledStore(KEY, second));
+
+        pool.close();
+        assertEquals(0, pool.getIdleCount());
+        assertTrue(first.closed);
+        assertTrue(second.closed);
+    }
+
+    @Test
+    public void testPOP3NotPooled() {
+        MailActivationSpec spec = new MailActivationSpec();
+        spec.setStoreProtocol("pop3");
+        spec.setMailServer("localhost");
+        spec.setMailFolder("INBOX");
+        POP3MailFolder folder = new POP3MailFolder(spec);
+
+        folder.setStorePool(new MailStorePool(4, 60000L));
+        assertNull(folder.getStorePool());
+    }
+
+    /**
+     * A store which is connected until told otherwise
+     */
+    private static class TestStore extends Store {
+        private boolean connected = true;
+        private boolean closed;
+
+        TestStore() {
+            super(Session.getInstance(new Properties()), null);
+        }
+
+        @Override
+        public boolean isConnected() {
+            return connected && !closed;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        @Override
+        public Folder getDefaultFolder() {
+            return null;
+        }
+
+        @Override
+        public Folder getFolder(String name) {
+            return null;
+        }
+
+        @Override
+        public Folder getFolder(URLName url) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wildfly.mail.ra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import javax.mail.Message;
+import javax.mail.search.AndTerm;
+import javax.mail.search.ComparisonTerm;
+import javax.mail.search.FromStringTerm;
+import javax.mail.search.HeaderTerm;
+import javax.mail.search.NotTerm;
+import javax.mail.search.OrTerm;
+import javax.mail.search.ReceivedDateTerm;
+import javax.mail.search.RecipientStringTerm;
+import javax.mail.search.SearchTerm;
+import javax.mail.search.SentDateTerm;
+import javax.mail.search.SizeTerm;
+import javax.mail.search.SubjectTerm;
+
+import org.junit.Test;
+
+/**
+ * MessageSelector tests
+ */
+public class MessageSelectorTest {
+
+    @Test
+    public void testEmpty() {
+        assertNull(MessageSelector.parse(null));
+        assertNull(MessageSelector.parse("  "));
+    }
+
+    @Test
+    public void testStrings() {
+        FromStringTerm from = (FromStringTerm) MessageSelector.parse("FROM = 'billing@'");
+        assertEquals("billing@", from.getPattern());
+
+        SubjectTerm subject = (SubjectTerm) MessageSelector.parse("subject='it''s'");
+        assertEquals("it's", subject.getPattern());
+
+        RecipientStringTerm cc = (RecipientStringTerm) MessageSelector.parse("cc = 'team'");
+        assertSame(Message.RecipientType.CC, cc.getRecipientType());
+
+        HeaderTerm header = (HeaderTerm) MessageSelector.parse("header('X-Priority') = '1'");
+        assertEquals("X-Priority", header.getHeaderName());
+        assertEquals("1", header.getPattern());
+    }
+
+    @Test
+    public void testPrecedence() {
+        // AND binds tighter than OR
+        OrTerm or = (OrTerm) MessageSelector.parse("from = 'a' OR from = 'b' AND NOT subject = 'c'");
+        assertTrue(or.getTerms()[0] instanceof FromStringTerm);
+
+        AndTerm and = (AndTerm) or.getTerms()[1];
+        assertTrue(and.getTerms()[0] instanceof FromStringTerm);
+        assertTrue(((NotTerm) and.getTerms()[1]).getTerm() instanceof SubjectTerm);
+
+        assertTrue(MessageSelector.parse("(from = 'a' OR from = 'b') AND subject = 'c'") instanceof AndTerm);
+    }
+
+    @Test
+    public void testSizeSmallerAndLarger() {
+        assertSize(ComparisonTerm.LT, 100, MessageSelector.parse("size < 100"));
+        assertSize(ComparisonTerm.GT, 100, MessageSelector.parse("size > 100"));
+    }
+
+    @Test
+    public void testSizeRewrittenForServerSearch() {
+        assertSize(ComparisonTerm.GT, 100, ((NotTerm) MessageSelector.parse("size <= 100")).getTerm());
+        assertSize(ComparisonTerm.LT, 100, ((NotTerm) MessageSelector.parse("size >= 100")).getTerm());
+
+        AndTerm eq = (AndTerm) MessageSelector.parse("size = 100");
+        assertSize(ComparisonTerm.GT, 100, ((NotTerm) eq.getTerms()[0]).getTerm());
+        assertSize(ComparisonTerm.LT, 100, ((NotTerm) eq.getTerms()[1]).getTerm());
+
+        OrTerm ne = (OrTerm) MessageSelector.parse("size <> 100");
+        assertSize(ComparisonTerm.GT, 100, ne.getTerms()[0]);
+        assertSize(ComparisonTerm.LT, 100, ne.getTerms()[1]);
+    }
+
+    @Test
+    public void testDates() throws Exception {
+        SentDateTerm sent = (SentDateTerm) MessageSelector.parse("sent >= '2016-03-01'");
+        assertEquals(ComparisonTerm.GE, sent.getComparison());
+        assertEquals(new SimpleDateFormat("yyyy-MM-dd", Locale.ENGLISH).parse("2016-03-01"), sent.getDate());
+
+        ReceivedDateTerm received = (ReceivedDateTerm) MessageSelector.parse("received < '2016-03-01'");
+        assertEquals(ComparisonTerm.LT, received.getComparison());
+    }
+
+    @Test
+    public void testErrors() {
+        assertInvalid("to 'x'");
+        assertInvalid("unknown = 'x'");
+        assertInvalid("subject = 'unterminated");
+        assertInvalid("size < big");
+        assertInvalid("sent > '2016-13-45'");
+        assertInvalid("from = 'a' from = 'b'");
+        assertInvalid("(from = 'a'");
+    }
+
+    private static void assertSize(int comparison, int size, SearchTerm term) {
+        SizeTerm sizeTerm = (SizeTerm) term;
+        assertEquals(comparison, sizeTerm.getComparison());
+        assertEquals(size, sizeTerm.getNumber());
+    }
+
+    private static void assertInvalid(String selector) {
+        try {
+            MessageSelector.parse(selector);
+            fail("Accepted: " + selector);
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(selector));
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wildfly.mail.ra;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Date;
+import java.util.stream.Stream;
+import javax.mail.Flags;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * MessageSpool tests
+ */
+public class MessageSpoolTest {
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("spool");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            files.forEach(file -> file.toFile().delete());
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void testBelowThreshold() throws Exception {
+        MessageSpool spool = new MessageSpool(directory.toString(), 1024);
+        Message msg = new TestMessage(message(512));
+
+        assertSame(msg, spool.spool(msg));
+        assertEquals(0, countFiles());
+    }
+
+    @Test
+    public void testSpooled() throws Exception {
+        MessageSpool spool = new MessageSpool(directory.toString(), 1024);
+        byte[] raw = message(4096);
+        TestMessage msg = new TestMessage(raw);
+        msg.flags.add(Flags.Flag.FLAGGED);
+
+        Message spooled = spool.spool(msg);
+        assertNotSame(msg, spooled);
+        assertEquals(1, countFiles());
+
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        spooled.writeTo(content);
+        assertArrayEquals(raw, content.toByteArray());
+        // The flags and the received date are those of the original message
+        assertTrue(spooled.getFlags().contains(Flags.Flag.FLAGGED));
+        assertEquals(msg.getReceivedDate(), spooled.getReceivedDate());
+        spooled.setFlags(new Flags(Flags.Flag.SEEN), true);
+        assertTrue(msg.flags.contains(Flags.Flag.SEEN));
+
+        spool.release(spooled);
+        assertEquals(0, countFiles());
+    }
+
+    @Test
+    public void testReleaseUnspooled() throws Exception {
+        MessageSpool spool = new MessageSpool(directory.toString(), 1024);
+        Message msg = new TestMessage(message(10));
+
+        spool.release(spool.spool(msg));
+        assertEquals(0, countFiles());
+    }
+
+    @Test
+    public void testFailedSpoolCleanedUp() throws Exception {
+        MessageSpool spool = new MessageSpool(directory.toString(), 1024);
+        Message msg = new TestMessage(message(4096)) {
+            @Override
+            public void writeTo(OutputStream os) throws IOException {
+                os.write(new byte[2048]);
+                throw new IOException("Connection reset");
+            }
+        };
+
+        assertSame(msg, spool.spool(msg));
+        assertEquals(0, countFiles());
+    }
+
+    @Test
+    public void testDirectoryCreated() throws Exception {
+        Path nested = directory.resolve("spool");
+        MessageSpool spool = new MessageSpool(nested.toString(), 1024);
+
+        Message spooled = spool.spool(new TestMessage(message(4096)));
+        try (Stream<Path> files = Files.list(nested)) {
+            assertEquals(1L, files.count());
+        }
+
+        spool.release(spooled);
+        Files.delete(nested);
+    }
+
+    private long countFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+    /**
+     * Get a raw message of about a size
+     *
+     * @param size The size of the body
+     * @return The value
+     */
+    static byte[] message(int size) {
+        StringBuilder sb = new StringBuilder("Subject: spool\r\n\r\n");
+        while (sb.length() < size) {
+            sb.append("0123456789012345678901234567890123456789012345678901234567890123456789012345\r\n");
+        }
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * A message read from a store
+     */
+    static class TestMessage extends MimeMessage {
+        private final byte[] raw;
+        private final Flags flags = new Flags();
+        private final Date received = new Date(1000000L);
+
+        TestMessage(byte[] raw) {
+            super((Session) null);
+            this.raw = raw;
+        }
+
+        @Override
+        public int getSize() {
+            return raw.length;
+        }
+
+        @Override
+        public void writeTo(OutputStream os) throws IOException, MessagingException {
+            os.write(raw);
+        }
+
+        @Override
+        public Flags getFlags() {
+            return (Flags) flags.clone();
+        }
+
+        @Override
+        public void setFlags(Flags flag, boolean set) {
+            if (set) {
+                flags.add(flag);
+            } else {
+                flags.remove(flag);
+            }
+        }
+
+        @Override
+        public Date getReceivedDate() {
+            return received;
+        }
+    }
+}
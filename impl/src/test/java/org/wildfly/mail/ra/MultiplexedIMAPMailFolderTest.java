@@ -0,0 +1,163 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wildfly.mail.ra;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import javax.mail.MessagingException;
+
+import org.junit.Test;
+
+/**
+ * MultiplexedIMAPMailFolder tests
+ */
+public class MultiplexedIMAPMailFolderTest {
+
+    @Test
+    public void testSequenceSet() {
+        assertEquals("", MultiplexedIMAPMailFolder.toSequenceSet(new long[0]));
+        assertEquals("4", MultiplexedIMAPMailFolder.toSequenceSet(new long[] {4}));
+        assertEquals("1:3,5,7:8", MultiplexedIMAPMailFolder.toSequenceSet(new long[] {1, 2, 3, 5, 7, 8}));
+        assertEquals("2,4,6", MultiplexedIMAPMailFolder.toSequenceSet(new long[] {2, 4, 6}));
+        assertEquals("1:2", MultiplexedIMAPMailFolder.toSequenceSet(new long[] {1, 2, 2}));
+    }
+
+    @Test
+    public void testSearchResults() {
+        List<IMAPResponse> responses = Arrays.asList(response("* SEARCH 9 4 12"), response("* SEARCH"),
+                response("* OK [UIDNEXT 13]"), response("A3 OK SEARCH completed"));
+
+        assertArrayEquals(new long[] {4, 9, 12}, MultiplexedIMAPMailFolder.searchResults(responses, 0));
+        // "UID 10:*" matches the last message even if it is older
+        assertArrayEquals(new long[] {12}, MultiplexedIMAPMailFolder.searchResults(responses, 9));
+        assertArrayEquals(new long[0], MultiplexedIMAPMailFolder.searchResults(responses, 12));
+    }
+
+    @Test
+    public void testInvalidSearchResults() {
+        try {
+            MultiplexedIMAPMailFolder.searchResults(Collections.singletonList(response("* SEARCH 1 x")), 0);
+            fail("Accepted a non numeric UID");
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof MessagingException);
+        }
+    }
+
+    @Test
+    public void testFetchItems() throws Exception {
+        List<?> tokens = MultiplexedIMAPMailFolder.fetchItems(response("* 3 FETCH (UID 17 RFC822.SIZE 120)"));
+        assertEquals("3", tokens.get(0));
+        assertEquals(Arrays.asList("UID", "17", "RFC822.SIZE", "120"), tokens.get(2));
+
+        assertNull(MultiplexedIMAPMailFolder.fetchItems(response("* 3 EXPUNGE")));
+        assertNull(MultiplexedIMAPMailFolder.fetchItems(response("* 3 FETCH 17")));
+        assertNull(MultiplexedIMAPMailFolder.fetchItems(response("A4 OK FETCH completed")));
+    }
+
+    @Test
+    public void testAll() throws Exception {
+        CompletableFuture<String> first = new CompletableFuture<>();
+        CompletableFuture<String> second = new CompletableFuture<>();
+        CompletableFuture<List<String>> all = MultiplexedIMAPMailFolder.all(Arrays.asList(first, second));
+
+        second.complete("b");
+        assertTrue(!all.isDone());
+        first.complete("a");
+        assertEquals(Arrays.asList("a", "b"), all.get());
+    }
+
+    @Test
+    public void testAllFailsInOrder() throws Exception {
+        MessagingException one = new MessagingException("one");
+        MessagingException two = new MessagingException("two");
+        CompletableFuture<String> first = new CompletableFuture<>();
+        CompletableFuture<String> second = new CompletableFuture<>();
+        CompletableFuture<List<String>> all = MultiplexedIMAPMailFolder.all(Arrays.asList(first, second));
+
+        second.completeExceptionally(two);
+        first.completeExceptionally(one);
+        try {
+            all.get();
+            fail("Completed");
+        } catch (ExecutionException e) {
+            assertSame(one, MultiplexedIMAPMailFolder.toMessagingException(e.getCause()));
+        }
+    }
+
+    @Test
+    public void testToMessagingException() {
+        MessagingException e = new MessagingException("failed");
+        assertSame(e, MultiplexedIMAPMailFolder.toMessagingException(e));
+        assertSame(e, MultiplexedIMAPMailFolder.toMessagingException(new CompletionException(e)));
+
+        IllegalStateException ise = new IllegalStateException("closed");
+        assertSame(ise, MultiplexedIMAPMailFolder.toMessagingException(new CompletionException(ise)).getCause());
+    }
+
+    @Test
+    public void testTlsNotSupported() {
+        assertTrue(MultiplexedIMAPMailFolder.isSupported(spec()));
+
+        MailActivationSpec starttls = spec();
+        starttls.setStarttls(true);
+        assertFalse(MultiplexedIMAPMailFolder.isSupported(starttls));
+
+        MailActivationSpec imaps = spec();
+        imaps.setStoreProtocol("imaps");
+        assertFalse(MultiplexedIMAPMailFolder.isSupported(imaps));
+
+        for (String name : new String[] {"mail.imap.starttls.enable", "mail.imap.starttls.required",
+                "mail.imap.ssl.enable"}) {
+            System.setProperty(name, "true");
+            try {
+                assertFalse(name, MultiplexedIMAPMailFolder.isSupported(spec()));
+            } finally {
+                System.clearProperty(name);
+            }
+        }
+    }
+
+    private static MailActivationSpec spec() {
+        MailActivationSpec spec = new MailActivationSpec();
+        spec.setMultiplexed(true);
+        spec.setStoreProtocol("imap");
+        spec.setMailServer("localhost");
+        spec.setMailFolder("INBOX");
+        spec.setUserName("user");
+        spec.setPassword("secret");
+        return spec;
+    }
+
+    private static IMAPResponse response(String text) {
+        return new IMAPResponse(text, Collections.<byte[]>emptyList());
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wildfly.mail.ra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.Test;
+
+/**
+ * NewMsgsWorker tests
+ */
+public class NewMsgsWorkerTest {
+
+    @Test
+    public void testDueOrdering() throws Exception {
+        List<TestActivation> checks = new CopyOnWriteArrayList<>();
+        TestActivation slow = new TestActivation("slow", 300L, checks, true);
+        TestActivation fast = new TestActivation("fast", 100L, checks, true);
+        TestActivation medium = new TestActivation("medium", 200L, checks, true);
+
+        NewMsgsWorker worker = new NewMsgsWorker(null);
+        worker.setExecutor(Runnable::run);
+        for (TestActivation activation : Arrays.asList(slow, fast, medium)) {
+            // Past the first check, which is spread across the interval
+            activation.updateNextNewMsgCheckTime(1L);
+            worker.watch(activation);
+        }
+
+        WorkerThread thread = new WorkerThread(worker);
+        thread.start();
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (checks.size() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        worker.release();
+        thread.join(5000L);
+
+        assertEquals(Arrays.asList(fast, medium, slow), checks);
+        assertFalse(thread.isAlive());
+    }
+
+    @Test
+    public void testWatchOnce() throws Exception {
+        NewMsgsWorker worker = new NewMsgsWorker(null);
+        TestActivation activation = new TestActivation("INBOX", 60000L, new ArrayList<>(), false);
+        TestActivation deactivated = new TestActivation("Archive", 60000L, new ArrayList<>(), false);
+        deactivated.deactivate();
+
+        worker.watch(activation);
+        worker.watch(activation);
+        worker.watch(deactivated);
+
+        assertEquals(1, worker.getQueueDepth());
+    }
+
+    @Test
+    public void testReleaseWakesUp() throws Exception {
+        NewMsgsWorker worker = new NewMsgsWorker(null);
+        worker.watch(new TestActivation("INBOX", 60000L, new ArrayList<>(), false));
+
+        WorkerThread thread = new WorkerThread(worker);
+        thread.start();
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (thread.getState() != Thread.State.TIMED_WAITING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        worker.release();
+        thread.join(5000L);
+
+        assertFalse(thread.isAlive());
+        assertFalse("Thread left interrupted", thread.interrupted);
+    }
+
+    @Test
+    public void testConcurrentWatchCompleteRelease() throws Exception {
+        List<TestActivation> checks = new CopyOnWriteArrayList<>();
+        List<TestActivation> activations = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            activations.add(new TestActivation("folder" + i, 5L, checks, false));
+        }
+
+        // Concurrent watches of the same activations queue each of them once
+        NewMsgsWorker worker = new NewMsgsWorker(null);
+        ExecutorService watchers = Executors.newFixedThreadPool(4);
+        CountDownLatch start = new CountDownLatch(1);
+        for (int i = 0; i < 4; i++) {
+            watchers.execute(() -> {
+                try {
+                    start.await();
+                    for (TestActivation activation : activations) {
+                        worker.watch(activation);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        start.countDown();
+        watchers.shutdown();
+        assertTrue(watchers.awaitTermination(5L, TimeUnit.SECONDS));
+        assertEquals(activations.size(), worker.getQueueDepth());
+
+        // Checks complete, and requeue their activation, concurrently with the worker taking the next one
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        worker.setExecutor(executor);
+        WorkerThread thread = new WorkerThread(worker);
+        thread.start();
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (checks.size() < activations.size() * 10 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        worker.release();
+        thread.join(5000L);
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5L, TimeUnit.SECONDS));
+
+        assertFalse(thread.isAlive());
+        assertFalse("Thread left interrupted", thread.interrupted);
+        assertTrue(worker.getQueueDepth() <= activations.size());
+        for (TestActivation activation : activations) {
+            assertTrue(activation.checks.get() > 1);
+            assertFalse("Checked concurrently: " + activation, activation.overlapped);
+        }
+    }
+
+    /**
+     * Runs the worker, and records whether it left the thread interrupted
+     */
+    private static class WorkerThread extends Thread {
+        private final NewMsgsWorker worker;
+        private volatile boolean interrupted;
+
+        WorkerThread(NewMsgsWorker worker) {
+            this.worker = worker;
+        }
+
+        @Override
+        public void run() {
+            worker.run();
+            interrupted = isInterrupted();
+        }
+    }
+
+    /**
+     * An activation recording its checks instead of checking a server
+     */
+    private static class TestActivation extends MailActivation {
+        private final List<TestActivation> log;
+        private final boolean once;
+        private final AtomicBoolean running = new AtomicBoolean();
+        private final AtomicInteger checks = new AtomicInteger();
+        private volatile boolean overlapped;
+
+        TestActivation(String folder, long pollingInterval, List<TestActivation> log, boolean once) {
+            super(null, spec(folder, pollingInterval));
+            this.log = log;
+            this.once = once;
+        }
+
+        @Override
+        public void run() {
+            if (!running.compareAndSet(false, true)) { overlapped = true; }
+            try {
+                checks.incrementAndGet();
+                log.add(this);
+                LockSupport.parkNanos(100000L);
+                if (once) { deactivate(); }
+            } finally {
+                running.set(false);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return spec.getMailFolder();
+        }
+
+        private static MailActivationSpec spec(String folder, long pollingInterval) {
+            MailActivationSpec spec = new MailActivationSpec();
+            spec.setMailServer("localhost");
+            spec.setMailFolder(folder);
+            spec.setUserName("user");
+            spec.setPollingInterval(pollingInterval);
+            return spec;
+        }
+    }
+}
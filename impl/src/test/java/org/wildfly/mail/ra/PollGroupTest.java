@@ -0,0 +1,151 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wildfly.mail.ra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * PollGroup tests
+ */
+public class PollGroupTest {
+
+    @Test
+    public void testMerge() {
+        PollGroup.Key key = new PollGroup.Key(spec());
+        PollGroup.Key other = new PollGroup.Key(spec());
+
+        assertEquals(key, other);
+        assertEquals(key.hashCode(), other.hashCode());
+    }
+
+    @Test
+    public void testSplitOnMailbox() {
+        MailActivationSpec folder = spec();
+        folder.setMailFolder("Archive");
+        MailActivationSpec selector = spec();
+        selector.setMessageSelector("from = 'billing@'");
+        MailActivationSpec user = spec();
+        user.setUserName("other");
+
+        assertSplit(folder);
+        assertSplit(selector);
+        assertSplit(user);
+    }
+
+    @Test
+    public void testSplitOnDeliveryOptions() {
+        MailActivationSpec flush = spec();
+        flush.setFlush(false);
+        MailActivationSpec deliveryMode = spec();
+        deliveryMode.setDeliveryMode("idle");
+        MailActivationSpec incrementalFetch = spec();
+        incrementalFetch.setIncrementalFetch(true);
+        MailActivationSpec maxMessages = spec();
+        maxMessages.setMaxMessages(10);
+        MailActivationSpec deliveryConcurrency = spec();
+        deliveryConcurrency.setDeliveryConcurrency(4);
+        MailActivationSpec spoolThreshold = spec();
+        spoolThreshold.setSpoolThreshold(1024);
+        MailActivationSpec pollingInterval = spec();
+        pollingInterval.setPollingInterval(1000L);
+        MailActivationSpec batchSize = spec();
+        batchSize.setBatchSize(50);
+
+        assertSplit(flush);
+        assertSplit(deliveryMode);
+        assertSplit(incrementalFetch);
+        assertSplit(maxMessages);
+        assertSplit(deliveryConcurrency);
+        assertSplit(spoolThreshold);
+        assertSplit(pollingInterval);
+        assertSplit(batchSize);
+    }
+
+    @Test
+    public void testPollerLeaves() {
+        PollGroup group = new PollGroup(new PollGroup.Key(spec()));
+        MailActivation first = new MailActivation(null, spec());
+        MailActivation second = new MailActivation(null, spec());
+        MailActivation third = new MailActivation(null, spec());
+
+        assertTrue(group.join(first));
+        assertFalse(group.join(second));
+        assertFalse(group.join(third));
+
+        // A member which doesn't poll leaves without a hand over
+        assertNull(group.leave(third));
+        assertSame(second, group.leave(first));
+        assertNull(group.leave(second));
+        assertTrue(group.isEmpty());
+
+        // The next member to join polls
+        assertTrue(group.join(third));
+    }
+
+    @Test
+    public void testHandOverWaitsForTakeOver() {
+        MailActivation previous = new MailActivation(null, spec());
+        MailActivation successor = new MailActivation(null, spec());
+        MailActivation next = new MailActivation(null, spec());
+        AtomicInteger handedOver = new AtomicInteger();
+
+        // The successor leaves in turn before it has taken over
+        successor.holdForTakeOver();
+        successor.afterCheck(() -> next.takeOver(successor));
+        next.holdForTakeOver();
+        next.afterCheck(handedOver::incrementAndGet);
+        assertEquals(0, handedOver.get());
+
+        successor.takeOver(previous);
+        assertEquals(1, handedOver.get());
+    }
+
+    @Test
+    public void testHandOverWithoutRunningCheck() {
+        MailActivation activation = new MailActivation(null, spec());
+        AtomicInteger handedOver = new AtomicInteger();
+
+        activation.afterCheck(handedOver::incrementAndGet);
+        assertEquals(1, handedOver.get());
+    }
+
+    private static void assertSplit(MailActivationSpec spec) {
+        assertNotEquals(new PollGroup.Key(spec()), new PollGroup.Key(spec));
+    }
+
+    private static MailActivationSpec spec() {
+        MailActivationSpec spec = new MailActivationSpec();
+        spec.setMailServer("localhost");
+        spec.setPort(143);
+        spec.setMailFolder("INBOX");
+        spec.setUserName("user");
+        spec.setPassword("secret");
+        return spec;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wildfly.mail.ra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * UIDWatermark tests
+ */
+public class UIDWatermarkTest {
+
+    @Test
+    public void testNotValidUntilEstablished() {
+        UIDWatermark mark = new UIDWatermark();
+        mark.reset(7L);
+        mark.begin(new long[] {3L, 5L});
+        mark.advance(3L);
+        mark.advance(5L);
+
+        assertFalse(mark.isValid(7L));
+
+        mark.establish(9L);
+        assertTrue(mark.isValid(7L));
+        assertFalse(mark.isValid(8L));
+        assertEquals(9L, mark.getLastUid());
+    }
+
+    @Test
+    public void testAdvanceOverContiguousPrefixOnly() {
+        UIDWatermark mark = established(10L);
+        mark.begin(new long[] {11L, 12L, 13L});
+
+        mark.advance(13L);
+        assertEquals(10L, mark.getLastUid());
+
+        mark.advance(11L);
+        assertEquals(11L, mark.getLastUid());
+
+        mark.advance(12L);
+        assertEquals(13L, mark.getLastUid());
+    }
+
+    @Test
+    public void testFailedDeliveryHoldsTheMark() {
+        UIDWatermark mark = established(10L);
+        mark.begin(new long[] {11L, 12L, 13L});
+        mark.advance(11L);
+        mark.advance(13L);
+
+        mark.establish(20L);
+        assertEquals(11L, mark.getLastUid());
+    }
+
+    @Test
+    public void testIncompleteSynchronizationIsNotEstablished() {
+        UIDWatermark mark = new UIDWatermark();
+        mark.reset(7L);
+        mark.begin(new long[] {3L, 5L});
+        mark.advance(5L);
+
+        mark.establish(9L);
+        assertFalse(mark.isValid(7L));
+    }
+
+    @Test
+    public void testResetClearsTheMark() {
+        UIDWatermark mark = established(10L);
+        mark.reset(8L);
+
+        assertEquals(0L, mark.getLastUid());
+        assertEquals(8L, mark.getUidValidity());
+        assertFalse(mark.isValid(8L));
+    }
+
+    private static UIDWatermark established(long lastUid) {
+        UIDWatermark mark = new UIDWatermark();
+        mark.reset(1L);
+        mark.establish(lastUid);
+        return mark;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.mail.ra.testsuite;
+
+import com.icegreen.greenmail.store.FolderException;
+import com.icegreen.greenmail.user.GreenMailUser;
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetup;
+import com.icegreen.greenmail.util.ServerSetupTest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Store;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.wildfly.mail.ra.MailActivationSpec;
+
+/**
+ * An IMAP and POP3 server on localhost, serving the INBOX of a single user
+ */
+public class EmbeddedMailServer {
+    private static final String EMAIL = "test@localhost";
+
+    private static final String USER = "test";
+
+    private static final String PASSWORD = "secret";
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final Session session = Session.getInstance(new Properties());
+
+    private GreenMail greenMail;
+
+    private GreenMailUser user;
+
+    /**
+     * Start the server
+     */
+    public void start() {
+        greenMail = new GreenMail(new ServerSetup[] {ServerSetupTest.IMAP, ServerSetupTest.POP3});
+        greenMail.start();
+        user = greenMail.setUser(EMAIL, USER, PASSWORD);
+    }
+
+    /**
+     * Stop the server
+     */
+    public void stop() {
+        if (greenMail != null) {
+            greenMail.stop();
+            greenMail = null;
+        }
+    }
+
+    /**
+     * Create an activation spec for the INBOX
+     *
+     * @param protocol The store protocol; imap or pop3
+     * @return The spec
+     */
+    public MailActivationSpec createSpec(String protocol) {
+        MailActivationSpec spec = new MailActivationSpec();
+        spec.setMailServer("localhost");
+        spec.setStoreProtocol(protocol);
+        spec.setPort("pop3".equals(protocol) ? ServerSetupTest.POP3.getPort() : ServerSetupTest.IMAP.getPort());
+        spec.setMailFolder("INBOX");
+        spec.setUserName(USER);
+        spec.setPassword(PASSWORD);
+        return spec;
+    }
+
+    /**
+     * Remove all the messages
+     *
+     * @throws FolderException Thrown if the mailbox can't be purged
+     */
+    public void purge() throws FolderException {
+        greenMail.purgeEmailFromAllMailboxes();
+    }
+
+    /**
+     * Deliver new messages to the INBOX
+     *
+     * @param count The number of messages
+     * @param size  The approximate size of the body in bytes
+     * @return The Message-IDs
+     * @throws Exception Thrown if a message can't be delivered
+     */
+    public List<String> deliver(int count, int size) throws Exception {
+        List<String> ids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ids.add(deliver(size));
+        }
+        return ids;
+    }
+
+    /**
+     * Deliver a new message to the INBOX
+     *
+     * @param size The approximate size of the body in bytes
+     * @return The Message-ID
+     * @throws Exception Thrown if the message can't be delivered
+     */
+    public String deliver(int size) throws Exception {
+        long n = sequence.incrementAndGet();
+
+        StringBuilder body = new StringBuilder(size + 64);
+        while (body.length() < size) {
+            body.append("The quick brown fox jumps over the lazy dog.\r\n");
+        }
+
+        MimeMessage message = new MimeMessage(session);
+        message.setFrom(new InternetAddress("sender@localhost"));
+        message.setRecipient(Message.RecipientType.TO, new InternetAddress(EMAIL));
+        message.setSubject("Message " + n);
+        message.setText(body.toString());
+        message.saveChanges();
+
+        user.deliver(message);
+        return message.getMessageID();
+    }
+
+    /**
+     * Wait until the resource adapter has consumed the messages of the INBOX: IMAP marks
+     * them SEEN, POP3 deletes them
+     *
+     * @param protocol The store protocol
+     * @param timeout  The timeout
+     * @param unit     The unit of the timeout
+     * @throws Exception Thrown if the messages aren't consumed in time
+     */
+    public void awaitConsumed(String protocol, long timeout, TimeUnit unit) throws Exception {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        boolean deleting = "pop3".equals(protocol);
+        int remaining;
+
+        while ((remaining = count(!deleting)) > 0) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException(remaining + (deleting ? " messages not deleted" : " messages not seen"));
+            }
+            Thread.sleep(50L);
+        }
+    }
+
+    /**
+     * Count the messages of the INBOX over IMAP
+     *
+     * @param unseen Only count the unseen messages
+     * @return The value
+     * @throws MessagingException Thrown if the INBOX can't be read
+     */
+    public int count(boolean unseen) throws MessagingException {
+        Store store = session.getStore("imap");
+        store.connect("localhost", ServerSetupTest.IMAP.getPort(), USER, PASSWORD);
+        try {
+            Folder inbox = store.getFolder("INBOX");
+            inbox.open(Folder.READ_ONLY);
+            try {
+                return unseen ? inbox.getUnreadCount() : inbox.getMessageCount();
+            } finally {
+                inbox.close(false);
+            }
+        } finally {
+            store.close();
+        }
+    }
+}
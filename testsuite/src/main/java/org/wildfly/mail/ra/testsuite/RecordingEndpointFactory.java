@@ -0,0 +1,283 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.mail.ra.testsuite;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.resource.spi.endpoint.MessageEndpoint;
+import javax.resource.spi.endpoint.MessageEndpointFactory;
+import javax.transaction.xa.XAResource;
+
+import org.wildfly.mail.ra.MailListener;
+
+/**
+ * A message endpoint factory whose endpoints record the Message-ID of every delivery,
+ * so that a run can check that each message was delivered exactly once
+ */
+public class RecordingEndpointFactory implements MessageEndpointFactory {
+    private final String activationName;
+
+    private final boolean readContent;
+
+    private final ConcurrentHashMap<String, Object> contents = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<String, Long> deliveryTimes = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<String, AtomicInteger> deliveries = new ConcurrentHashMap<>();
+
+    private final BlockingQueue<String> delivered = new LinkedBlockingQueue<>();
+
+    private final Semaphore distinct = new Semaphore(0);
+
+    private final LongAdder failures = new LongAdder();
+
+    /**
+     * Constructor
+     *
+     * @param activationName The activation name
+     */
+    public RecordingEndpointFactory(String activationName) {
+        this(activationName, false);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param activationName The activation name
+     * @param readContent    Read the content of every message during its delivery
+     */
+    public RecordingEndpointFactory(String activationName, boolean readContent) {
+        this.activationName = activationName;
+        this.readContent = readContent;
+    }
+
+    /**
+     * Wait until a number of distinct messages has been delivered
+     *
+     * @param count   The number of messages
+     * @param timeout The timeout
+     * @param unit    The unit of the timeout
+     * @return True if the messages were delivered; false on timeout
+     * @throws InterruptedException Thrown if interrupted
+     */
+    public boolean awaitDistinct(int count, long timeout, TimeUnit unit) throws InterruptedException {
+        return distinct.tryAcquire(count, timeout, unit);
+    }
+
+    /**
+     * Wait until a message has been delivered. The deliveries of other messages
+     * recorded in the meantime are skipped
+     *
+     * @param messageId The Message-ID
+     * @param timeout   The timeout
+     * @param unit      The unit of the timeout
+     * @return True if the message was delivered; false on timeout
+     * @throws InterruptedException Thrown if interrupted
+     */
+    public boolean awaitMessage(String messageId, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            String id = delivered.poll(remaining, TimeUnit.NANOSECONDS);
+            if (messageId.equals(id)) { return true; }
+        }
+        return false;
+    }
+
+    /**
+     * Get the number of distinct messages delivered
+     *
+     * @return The value
+     */
+    public int getDistinct() {
+        return deliveries.size();
+    }
+
+    /**
+     * Get the number of deliveries of a message
+     *
+     * @param messageId The Message-ID
+     * @return The value
+     */
+    public int getDeliveries(String messageId) {
+        AtomicInteger count = deliveries.get(messageId);
+        return count != null ? count.get() : 0;
+    }
+
+    /**
+     * Get the time of the first delivery of a message
+     *
+     * @param messageId The Message-ID
+     * @return The value, from System.nanoTime(); <code>null</code> if the message wasn't delivered
+     */
+    public Long getDeliveryTime(String messageId) {
+        return deliveryTimes.get(messageId);
+    }
+
+    /**
+     * Get the content of a message, as read during its delivery
+     *
+     * @param messageId The Message-ID
+     * @return The value; <code>null</code> if the message wasn't delivered or its content wasn't read
+     */
+    public Object getContent(String messageId) {
+        return contents.get(messageId);
+    }
+
+    /**
+     * Get the number of deliveries whose Message-ID or content couldn't be read
+     *
+     * @return The value
+     */
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    /**
+     * Check that exactly the expected messages were delivered, each of them once
+     *
+     * @param expected The Message-IDs of the expected messages
+     * @throws IllegalStateException Thrown if a message is missing, duplicated or unexpected
+     */
+    public void verifyExactlyOnce(Collection<String> expected) {
+        Set<String> missing = new HashSet<>(expected);
+        int duplicates = 0;
+        int unexpected = 0;
+
+        for (Map.Entry<String, AtomicInteger> entry : deliveries.entrySet()) {
+            if (!missing.remove(entry.getKey())) {
+                unexpected++;
+            } else if (entry.getValue().get() > 1) {
+                duplicates++;
+            }
+        }
+
+        if (!missing.isEmpty() || duplicates > 0 || unexpected > 0 || failures.sum() > 0) {
+            throw new IllegalStateException("Delivery is not exactly-once: expected=" + expected.size() +
+                    ", missing=" + missing.size() + ", duplicated=" + duplicates + ", unexpected=" + unexpected +
+                    ", unreadable=" + failures.sum());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public MessageEndpoint createEndpoint(XAResource xaResource) {
+        return new Endpoint();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public MessageEndpoint createEndpoint(XAResource xaResource, long timeout) {
+        return new Endpoint();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isDeliveryTransacted(Method method) {
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getActivationName() {
+        return activationName;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Class<?> getEndpointClass() {
+        return Endpoint.class;
+    }
+
+    private void record(Message msg) {
+        long now = System.nanoTime();
+        String[] ids;
+        try {
+            ids = msg.getHeader("Message-ID");
+        } catch (MessagingException e) {
+            ids = null;
+        }
+
+        if (ids == null || ids.length == 0) {
+            failures.increment();
+            return;
+        }
+
+        if (readContent) {
+            try {
+                contents.put(ids[0], msg.getContent());
+            } catch (IOException | MessagingException e) {
+                failures.increment();
+            }
+        }
+
+        deliveryTimes.putIfAbsent(ids[0], now);
+        AtomicInteger count = deliveries.computeIfAbsent(ids[0], k -> new AtomicInteger());
+        if (count.incrementAndGet() == 1) { distinct.release(); }
+        delivered.offer(ids[0]);
+    }
+
+    /**
+     * An endpoint recording the messages
+     */
+    public class Endpoint implements MessageEndpoint, MailListener {
+        /**
+         * {@inheritDoc}
+         */
+        public void onMessage(Message msg) {
+            record(msg);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void beforeDelivery(Method method) {
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void afterDelivery() {
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void release() {
+        }
+    }
+}
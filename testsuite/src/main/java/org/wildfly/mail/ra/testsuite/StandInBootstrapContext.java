@@ -0,0 +1,77 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.mail.ra.testsuite;
+
+import java.util.Timer;
+import javax.resource.spi.BootstrapContext;
+import javax.resource.spi.XATerminator;
+import javax.resource.spi.work.WorkContext;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+/**
+ * A bootstrap context standing in for the one of the container; it provides the work
+ * manager and timers, but no transaction support
+ */
+public class StandInBootstrapContext implements BootstrapContext {
+    private final StandInWorkManager workManager;
+
+    /**
+     * Constructor
+     *
+     * @param maxThreads The maximum number of work manager threads
+     */
+    public StandInBootstrapContext(int maxThreads) {
+        this.workManager = new StandInWorkManager(maxThreads);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public StandInWorkManager getWorkManager() {
+        return workManager;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public XATerminator getXATerminator() {
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Timer createTimer() {
+        return new Timer("StandInBootstrapContext-timer", true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isContextSupported(Class<? extends WorkContext> workContextClass) {
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public TransactionSynchronizationRegistry getTransactionSynchronizationRegistry() {
+        return null;
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.mail.ra.testsuite;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.resource.spi.work.ExecutionContext;
+import javax.resource.spi.work.Work;
+import javax.resource.spi.work.WorkCompletedException;
+import javax.resource.spi.work.WorkEvent;
+import javax.resource.spi.work.WorkException;
+import javax.resource.spi.work.WorkListener;
+import javax.resource.spi.work.WorkManager;
+import javax.resource.spi.work.WorkRejectedException;
+
+/**
+ * A work manager standing in for the one of the container. Work is handed directly to
+ * a bounded pool of threads and rejected when all of them are busy, as a container work
+ * manager does when its thread pool is exhausted
+ */
+public class StandInWorkManager implements WorkManager {
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Constructor
+     *
+     * @param maxThreads The maximum number of threads
+     */
+    public StandInWorkManager(int maxThreads) {
+        AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(0, maxThreads, 60L, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+            Thread t = new Thread(r, "StandInWorkManager-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void doWork(Work work) throws WorkException {
+        doWork(work, INDEFINITE, null, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void doWork(Work work, long startTimeout, ExecutionContext ctx, WorkListener listener)
+        throws WorkException {
+        fire(listener, WorkEvent.WORK_ACCEPTED, work, null);
+        fire(listener, WorkEvent.WORK_STARTED, work, null);
+
+        WorkException failure = execute(work);
+        fire(listener, WorkEvent.WORK_COMPLETED, work, failure);
+
+        if (failure != null) { throw failure; }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long startWork(Work work) throws WorkException {
+        return startWork(work, INDEFINITE, null, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long startWork(Work work, long startTimeout, ExecutionContext ctx, WorkListener listener)
+        throws WorkException {
+        long start = System.currentTimeMillis();
+        CountDownLatch started = new CountDownLatch(1);
+
+        submit(work, listener, started);
+
+        try {
+            started.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new WorkException(e);
+        }
+
+        return System.currentTimeMillis() - start;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void scheduleWork(Work work) throws WorkException {
+        scheduleWork(work, INDEFINITE, null, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void scheduleWork(Work work, long startTimeout, ExecutionContext ctx, WorkListener listener)
+        throws WorkException {
+        submit(work, listener, null);
+    }
+
+    /**
+     * Stop the threads
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void submit(Work work, WorkListener listener, CountDownLatch started) throws WorkException {
+        try {
+            executor.execute(() -> {
+                fire(listener, WorkEvent.WORK_STARTED, work, null);
+                if (started != null) { started.countDown(); }
+
+                fire(listener, WorkEvent.WORK_COMPLETED, work, execute(work));
+            });
+        } catch (RejectedExecutionException e) {
+            WorkRejectedException rejected = new WorkRejectedException(e);
+            rejected.setErrorCode(WorkException.START_TIMED_OUT);
+            fire(listener, WorkEvent.WORK_REJECTED, work, rejected);
+            throw rejected;
+        }
+
+        fire(listener, WorkEvent.WORK_ACCEPTED, work, null);
+    }
+
+    private static WorkException execute(Work work) {
+        try {
+            work.run();
+            return null;
+        } catch (RuntimeException e) {
+            return new WorkCompletedException(e);
+        }
+    }
+
+    private void fire(WorkListener listener, int type, Work work, WorkException e) {
+        if (listener == null) { return; }
+
+        WorkEvent event = new WorkEvent(this, type, work, e);
+        switch (type) {
+            case WorkEvent.WORK_ACCEPTED:
+                listener.workAccepted(event);
+                break;
+            case WorkEvent.WORK_REJECTED:
+                listener.workRejected(event);
+                break;
+            case WorkEvent.WORK_STARTED:
+                listener.workStarted(event);
+                break;
+            default:
+                listener.workCompleted(event);
+                break;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wildfly.mail.ra.testsuite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import org.wildfly.mail.ra.MailActivationSpec;
+import org.wildfly.mail.ra.MailResourceAdapter;
+
+/**
+ * Delivery tests against an embedded mail server: every message is delivered exactly once,
+ * and is then SEEN over IMAP or DELETED over POP3
+ */
+@RunWith(Parameterized.class)
+public class DeliveryIT {
+    private static final long POLLING_INTERVAL = 100L;
+
+    private static final long TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+    private final String protocol;
+
+    private final boolean multiplexed;
+
+    private EmbeddedMailServer server;
+
+    private StandInBootstrapContext ctx;
+
+    private MailResourceAdapter ra;
+
+    /**
+     * Get the configurations
+     *
+     * @return The value
+     */
+    @Parameters(name = "{0} multiplexed={1}")
+    public static Collection<Object[]> parameters() {
+        return Arrays.asList(new Object[][] {{"imap", false}, {"imap", true}, {"pop3", false}});
+    }
+
+    /**
+     * Constructor
+     *
+     * @param protocol    The store protocol
+     * @param multiplexed Use the multiplexed IMAP engine
+     */
+    public DeliveryIT(String protocol, boolean multiplexed) {
+        this.protocol = protocol;
+        this.multiplexed = multiplexed;
+    }
+
+    @Before
+    public void start() throws Exception {
+        server = new EmbeddedMailServer();
+        server.start();
+
+        ctx = new StandInBootstrapContext(16);
+        ra = new MailResourceAdapter();
+        ra.start(ctx);
+    }
+
+    @After
+    public void stop() {
+        if (ra != null) { ra.stop(); }
+        if (ctx != null) { ctx.getWorkManager().shutdown(); }
+        if (server != null) { server.stop(); }
+    }
+
+    @Test
+    public void testExactlyOnce() throws Exception {
+        List<String> expected = new ArrayList<>(server.deliver(25, 512));
+        RecordingEndpointFactory endpointFactory = new RecordingEndpointFactory("exactly-once");
+        MailActivationSpec spec = createSpec();
+        // Several checks to drain the mailbox
+        spec.setMaxMessages(10);
+        spec.setDeliveryConcurrency(4);
+
+        ra.endpointActivation(endpointFactory, spec);
+        try {
+            assertTrue("Delivered " + endpointFactory.getDistinct() + " of 25",
+                    endpointFactory.awaitDistinct(25, TIMEOUT, TimeUnit.MILLISECONDS));
+
+            // Messages arriving while the activation watches the mailbox
+            expected.addAll(server.deliver(5, 512));
+            assertTrue("Delivered " + endpointFactory.getDistinct() + " of 30",
+                    endpointFactory.awaitDistinct(5, TIMEOUT, TimeUnit.MILLISECONDS));
+
+            server.awaitConsumed(protocol, TIMEOUT, TimeUnit.MILLISECONDS);
+            // Consumed messages aren't found by later checks
+            Thread.sleep(POLLING_INTERVAL * 5);
+        } finally {
+            ra.endpointDeactivation(endpointFactory, spec);
+        }
+
+        assertDeliveredOnce(endpointFactory, expected);
+        assertConsumed(expected.size());
+    }
+
+    @Test
+    public void testNoRedeliveryAfterReactivation() throws Exception {
+        List<String> expected = server.deliver(5, 512);
+        RecordingEndpointFactory first = new RecordingEndpointFactory("first");
+        MailActivationSpec spec = createSpec();
+
+        ra.endpointActivation(first, spec);
+        try {
+            assertTrue(first.awaitDistinct(5, TIMEOUT, TimeUnit.MILLISECONDS));
+            server.awaitConsumed(protocol, TIMEOUT, TimeUnit.MILLISECONDS);
+        } finally {
+            ra.endpointDeactivation(first, spec);
+        }
+
+        RecordingEndpointFactory second = new RecordingEndpointFactory("second");
+        MailActivationSpec respec = createSpec();
+        ra.endpointActivation(second, respec);
+        try {
+            String id = server.deliver(512);
+            assertTrue(second.awaitMessage(id, TIMEOUT, TimeUnit.MILLISECONDS));
+            Thread.sleep(POLLING_INTERVAL * 5);
+
+            assertDeliveredOnce(second, Arrays.asList(id));
+        } finally {
+            ra.endpointDeactivation(second, respec);
+        }
+
+        assertDeliveredOnce(first, expected);
+        assertConsumed(expected.size() + 1);
+    }
+
+    @Test
+    public void testLargeMessages() throws Exception {
+        assumeTrue("imap".equals(protocol));
+
+        List<String> small = server.deliver(3, 512);
+        List<String> large = server.deliver(3, 20000);
+        RecordingEndpointFactory endpointFactory = new RecordingEndpointFactory("large", true);
+        MailActivationSpec spec = createSpec();
+        // Only the small bodies are fetched with the messages, the large ones are read in chunks
+        spec.setFetchContentMaxSize(4096);
+        spec.setLargeMessageThreshold(4096);
+        spec.setPartialFetch(true);
+        spec.setFetchSize(1024);
+
+        ra.endpointActivation(endpointFactory, spec);
+        try {
+            assertTrue(endpointFactory.awaitDistinct(6, TIMEOUT, TimeUnit.MILLISECONDS));
+            server.awaitConsumed(protocol, TIMEOUT, TimeUnit.MILLISECONDS);
+        } finally {
+            ra.endpointDeactivation(endpointFactory, spec);
+        }
+
+        for (String id : small) {
+            assertBody(endpointFactory.getContent(id), 512);
+        }
+        for (String id : large) {
+            assertBody(endpointFactory.getContent(id), 20000);
+        }
+        assertEquals(0L, endpointFactory.getFailures());
+    }
+
+    private MailActivationSpec createSpec() {
+        MailActivationSpec spec = server.createSpec(protocol);
+        spec.setPollingInterval(POLLING_INTERVAL);
+        spec.setMultiplexed(multiplexed);
+        return spec;
+    }
+
+    private void assertConsumed(int count) throws Exception {
+        if ("pop3".equals(protocol)) {
+            assertEquals("Messages not deleted", 0, server.count(false));
+        } else {
+            assertEquals("Messages not seen", 0, server.count(true));
+            assertEquals("Messages deleted", count, server.count(false));
+        }
+    }
+
+    private static void assertDeliveredOnce(RecordingEndpointFactory endpointFactory, List<String> expected) {
+        assertEquals(0L, endpointFactory.getFailures());
+        assertEquals("Unexpected deliveries", expected.size(), endpointFactory.getDistinct());
+        for (String id : expected) {
+            assertEquals("Deliveries of " + id, 1, endpointFactory.getDeliveries(id));
+        }
+    }
+
+    private static void assertBody(Object content, int size) {
+        assertTrue("Not a text body: " + content, content instanceof String);
+
+        String body = (String) content;
+        assertTrue("Truncated body: " + body.length(), body.length() >= size);
+        assertTrue(body.startsWith("The quick brown fox jumps over the lazy dog."));
+        assertTrue(body.trim().endsWith("The quick brown fox jumps over the lazy dog."));
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016, Red Hat, Inc., and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wildfly.mail.ra.testsuite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.logging.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import org.wildfly.mail.ra.MailActivationSpec;
+import org.wildfly.mail.ra.MailResourceAdapter;
+
+/**
+ * Throughput and latency tests against an embedded mail server. The limits are generous, so
+ * that only a regression by an order of magnitude fails the build; they can be set with the
+ * testsuite.messages, testsuite.minThroughput (messages / s) and testsuite.maxLatency (MS)
+ * system properties
+ */
+@RunWith(Parameterized.class)
+public class ThroughputIT {
+    private static final Logger log = Logger.getLogger(ThroughputIT.class);
+
+    private static final int MESSAGES = Integer.getInteger("testsuite.messages", 2000);
+
+    private static final long MIN_THROUGHPUT = Long.getLong("testsuite.minThroughput", 20L);
+
+    private static final long MAX_LATENCY = Long.getLong("testsuite.maxLatency", 10000L);
+
+    private static final long POLLING_INTERVAL = 200L;
+
+    private static final long TIMEOUT = TimeUnit.MINUTES.toMillis(5);
+
+    private final String protocol;
+
+    private final boolean multiplexed;
+
+    private EmbeddedMailServer server;
+
+    private StandInBootstrapContext ctx;
+
+    private MailResourceAdapter ra;
+
+    /**
+     * Get the configurations
+     *
+     * @return The value
+     */
+    @Parameters(name = "{0} multiplexed={1}")
+    public static Collection<Object[]> parameters() {
+        return Arrays.asList(new Object[][] {{"imap", false}, {"imap", true}, {"pop3", false}});
+    }
+
+    /**
+     * Constructor
+     *
+     * @param protocol    The store protocol
+     * @param multiplexed Use the multiplexed IMAP engine
+     */
+    public ThroughputIT(String protocol, boolean multiplexed) {
+        this.protocol = protocol;
+        this.multiplexed = multiplexed;
+    }
+
+    @Before
+    public void start() throws Exception {
+        server = new EmbeddedMailServer();
+        server.start();
+
+        ctx = new StandInBootstrapContext(16);
+        ra = new MailResourceAdapter();
+        ra.start(ctx);
+    }
+
+    @After
+    public void stop() {
+        if (ra != null) { ra.stop(); }
+        if (ctx != null) { ctx.getWorkManager().shutdown(); }
+        if (server != null) { server.stop(); }
+    }
+
+    @Test
+    public void testDrainThroughput() throws Exception {
+        List<String> expected = server.deliver(MESSAGES, 2048);
+        RecordingEndpointFactory endpointFactory = new RecordingEndpointFactory("drain");
+        MailActivationSpec spec = createSpec();
+        spec.setMaxMessages(500);
+        spec.setDeliveryConcurrency(4);
+        spec.setFlagBatchSize(50);
+
+        long start = System.nanoTime();
+        ra.endpointActivation(endpointFactory, spec);
+        long elapsed;
+        try {
+            assertTrue("Delivered " + endpointFactory.getDistinct() + " of " + MESSAGES,
+                    endpointFactory.awaitDistinct(MESSAGES, TIMEOUT, TimeUnit.MILLISECONDS));
+            server.awaitConsumed(protocol, TIMEOUT, TimeUnit.MILLISECONDS);
+            elapsed = System.nanoTime() - start;
+        } finally {
+            ra.endpointDeactivation(endpointFactory, spec);
+        }
+
+        double throughput = MESSAGES * 1e9 / elapsed;
+        log.infof("%s: drained %d messages in %d ms, %.1f messages/s", this, MESSAGES,
+                TimeUnit.NANOSECONDS.toMillis(elapsed), throughput);
+
+        endpointFactory.verifyExactlyOnce(expected);
+        assertTrue("Throughput " + throughput + " messages/s is below " + MIN_THROUGHPUT,
+                throughput >= MIN_THROUGHPUT);
+    }
+
+    @Test
+    public void testDeliveryLatency() throws Exception {
+        int messages = Math.max(1, MESSAGES / 20);
+        RecordingEndpointFactory endpointFactory = new RecordingEndpointFactory("latency");
+        MailActivationSpec spec = createSpec();
+
+        List<String> ids = new ArrayList<>(messages);
+        long[] sent = new long[messages];
+        ra.endpointActivation(endpointFactory, spec);
+        try {
+            for (int i = 0; i < messages; i++) {
+                sent[i] = System.nanoTime();
+                ids.add(server.deliver(2048));
+                Thread.sleep(POLLING_INTERVAL / 10);
+            }
+            assertTrue("Delivered " + endpointFactory.getDistinct() + " of " + messages,
+                    endpointFactory.awaitDistinct(messages, TIMEOUT, TimeUnit.MILLISECONDS));
+        } finally {
+            ra.endpointDeactivation(endpointFactory, spec);
+        }
+
+        long[] latencies = new long[messages];
+        for (int i = 0; i < messages; i++) {
+            Long delivered = endpointFactory.getDeliveryTime(ids.get(i));
+            assertNotNull("Not delivered: " + ids.get(i), delivered);
+            latencies[i] = TimeUnit.NANOSECONDS.toMillis(delivered - sent[i]);
+        }
+        Arrays.sort(latencies);
+        long p50 = latencies[messages / 2];
+        long p99 = latencies[Math.min(messages - 1, messages * 99 / 100)];
+        log.infof("%s: latency of %d messages p50=%d ms, p99=%d ms, max=%d ms", this, messages, p50, p99,
+                latencies[messages - 1]);
+
+        endpointFactory.verifyExactlyOnce(ids);
+        assertEquals(0L, endpointFactory.getFailures());
+        assertTrue("p99 latency " + p99 + " ms is above " + MAX_LATENCY, p99 <= MAX_LATENCY);
+    }
+
+    private MailActivationSpec createSpec() {
+        MailActivationSpec spec = server.createSpec(protocol);
+        spec.setPollingInterval(POLLING_INTERVAL);
+        spec.setMultiplexed(multiplexed);
+        return spec;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String toString() {
+        return protocol + (multiplexed ? " multiplexed" : "");
+    }
+}